@@ -30,6 +30,7 @@ public class Application {
 
 //        syntheticImport();
 //        syntheticQuery();
+//        syntheticRebuild();
 
 //        codaImport();
 //        codaQuery();
@@ -71,6 +72,23 @@ public class Application {
         });
     }
 
+    /**
+     * Rebuild the index of an imported graph with limits adapted to the queries recorded so far
+     */
+    private static void syntheticRebuild() {
+        HypergraphDatabase.execute("syn-rebuild", "db/syn", false, () -> {
+            GraphDatabaseService graphDb = HypergraphDatabase.getGraphDatabase();
+            AdaptiveDecompositionPolicy policy = AdaptiveDecompositionPolicy.load(graphDb);
+            if (policy == null)
+                policy = new AdaptiveDecompositionPolicy(512, HypergraphDatabase.getQueryFrequency());
+
+            FastDecompositionBuilder builder = new FastDecompositionBuilder();
+            builder.setDecompositionPolicy(policy);
+            builder.run();
+            policy.save(graphDb);
+        });
+    }
+
     private static void syntheticQuery() {
         HypergraphDatabase.executeTx("syn-query", "db/syn", false, () -> {
             Measure measureNaive = new Measure("Naive Query MSS");
@@ -133,6 +151,7 @@ public class Application {
         HypergraphDatabase.execute("coda-import", "db/coda", true, () -> {
             Importer importer = new CodaImporter();
             importer.run();
+            new RedundantHyperedgePruner().run();
 
             MinimalSourceSetBuilder builder = new DecompositionBuilder(512);
             builder.run();
@@ -163,6 +182,7 @@ public class Application {
                 }
             }
             measure.printStatistic();
+            ReconstructionCache.getInstance().printStatistic();
         });
     }
 
@@ -170,8 +190,10 @@ public class Application {
         HypergraphDatabase.execute("kegg-import", "db/kegg", true, () -> {
             Importer importer = new KeggImporter();
             importer.run();
+            new RedundantHyperedgePruner().run();
 
-            MinimalSourceSetBuilder builder = new NaiveBuilder();
+            // metabolic pathways have many cycles
+            MinimalSourceSetBuilder builder = new CondensationBuilder();
             builder.run();
         });
     }
@@ -197,6 +219,7 @@ public class Application {
                 }
             }
             measure.printStatistic();
+            ReconstructionCache.getInstance().printStatistic();
         });
     }
 
@@ -397,9 +420,11 @@ public class Application {
                     measureIndexed.start();
 
                     FastDecompositionFinder finder = new FastDecompositionFinder();
-                    Set<Long> min = finder.findMinimum(node);
+                    MinimumSearchResult min = finder.searchMinimum(node);
                     measureIndexed.end();
-                    printSet(min);
+                    printSet(min.getSourceSet());
+                    if (!min.isOptimal())
+                        countErr++;
 
                     // temp - print for every time
                     Log.debug("query done" + measureIndexed.getRecentMeasureTime());
@@ -21,4 +21,11 @@ public class Const {
     public static final String PROP_MSS = "mss";
     public static final String PROP_COUNT = "count";
     public static final String PROP_DECOMPOSED = "decomposed";
+    public static final String PROP_NODE_IDS = "nodeIds";
+    public static final String PROP_HYPERNODE_IDS = "hypernodeIds";
+    public static final String PROP_REDUNDANT = "redundant";
+    public static final String PROP_DECOMPOSED_IDS = "decomposedIds";
+    public static final String PROP_DECOMPOSE_BASE = "decomposeBase";
+    public static final String PROP_QUERY_NODE_IDS = "queryNodeIds";
+    public static final String PROP_QUERY_COUNTS = "queryCounts";
 }
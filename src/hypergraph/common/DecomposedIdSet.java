@@ -0,0 +1,140 @@
+package hypergraph.common;
+
+import hypergraph.util.Log;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.BitSet;
+import java.util.Collection;
+
+/**
+ * Decomposed id bitmap
+ * Neo4j ids of decomposed hypernodes and nodes (PROP_DECOMPOSED of NodeDecompositionBuilder),
+ * the ids in an MSS which need reconstruction. Finders test a bit instead of reading labels
+ * or properties from the store.
+ *
+ * Saved by every builder and the maintainer as a long[] property of the meta node
+ * (see HypergraphDatabase.getDecomposedIdSet for graphs built before).
+ * Immutable, updates return a new set.
+ * Bits are indexed by Neo4j id, ids beyond the int range are rejected (Neo4j 2.x ids of
+ * embedded stores fit, a larger store needs a dictionary keyed set).
+ */
+public class DecomposedIdSet {
+    private final BitSet ids;
+
+    public DecomposedIdSet(BitSet ids) {
+        this.ids = ids;
+    }
+
+    /**
+     * @param hypernodes dense ids of decomposed hypernodes
+     */
+    public static DecomposedIdSet of(HypergraphSnapshot snapshot, BitSet hypernodes) {
+        BitSet ids = new BitSet();
+        for (int h = hypernodes.nextSetBit(0); h >= 0; h = hypernodes.nextSetBit(h + 1)) {
+            ids.set(index(snapshot.hypernodeId(h)));
+        }
+        return new DecomposedIdSet(ids);
+    }
+
+    public static DecomposedIdSet of(Collection<Long> nodeIds) {
+        BitSet ids = new BitSet();
+        for (long id : nodeIds) {
+            ids.set(index(id));
+        }
+        return new DecomposedIdSet(ids);
+    }
+
+    /**
+     * Scan all hypernodes and nodes with the decomposed property
+     * A hypernode id is only in an MSS if decomposed, so every hypernode is included
+     * (maintenance of such a graph keeps all hyperedges decomposed until the next build).
+     */
+    public static DecomposedIdSet build(GraphDatabaseService graphDb) {
+        try (Transaction tx = graphDb.beginTx()) {
+            BitSet ids = new BitSet();
+            ResourceIterator<Node> iter = graphDb.findNodes(Const.LABEL_HYPERNODE);
+            while (iter.hasNext()) {
+                ids.set(index(iter.next().getId()));
+            }
+            iter = graphDb.findNodes(Const.LABEL_NODE);
+            while (iter.hasNext()) {
+                Node node = iter.next();
+                if (node.hasProperty(Const.PROP_DECOMPOSED))
+                    ids.set(index(node.getId()));
+            }
+            tx.success();
+            return new DecomposedIdSet(ids);
+        }
+    }
+
+    /**
+     * @return persisted set, null if graph does not have one
+     */
+    public static DecomposedIdSet load(GraphDatabaseService graphDb) {
+        try (Transaction tx = graphDb.beginTx()) {
+            DecomposedIdSet set = null;
+            ResourceIterator<Node> iter = graphDb.findNodes(Const.LABEL_META);
+            while (iter.hasNext()) {
+                Node meta = iter.next();
+                if (meta.hasProperty(Const.PROP_DECOMPOSED_IDS))
+                    set = new DecomposedIdSet(BitSet.valueOf((long[]) meta.getProperty(Const.PROP_DECOMPOSED_IDS)));
+            }
+            tx.success();
+            return set;
+        }
+    }
+
+    /**
+     * Store into the meta node (created if not exists)
+     */
+    public void save(GraphDatabaseService graphDb) {
+        try (Transaction tx = graphDb.beginTx()) {
+            ResourceIterator<Node> iter = graphDb.findNodes(Const.LABEL_META);
+            Node meta = iter.hasNext() ? iter.next() : graphDb.createNode(Const.LABEL_META);
+            iter.close();
+
+            meta.setProperty(Const.PROP_DECOMPOSED_IDS, ids.toLongArray());
+            tx.success();
+        }
+        Log.info("DecomposedIdSet saved - decomposed " + size());
+    }
+
+    private static int index(long id) {
+        if (id < 0 || id >= Integer.MAX_VALUE)
+            throw new IllegalArgumentException("id " + id + " out of decomposed id bitmap range");
+        return (int) id;
+    }
+
+    public boolean contains(long id) {
+        return id >= 0 && id < Integer.MAX_VALUE && ids.get((int) id);
+    }
+
+    public int size() {
+        return ids.cardinality();
+    }
+
+    /**
+     * @return ids in increasing order
+     */
+    public long[] toArray() {
+        return ids.stream().asLongStream().toArray();
+    }
+
+    /**
+     * @return copy with added ids set and removed ids cleared
+     */
+    public DecomposedIdSet update(Collection<Long> added, Collection<Long> removed) {
+        BitSet copy = (BitSet) ids.clone();
+        for (long id : added) {
+            copy.set(index(id));
+        }
+        for (long id : removed) {
+            if (contains(id))
+                copy.clear((int) id);
+        }
+        return new DecomposedIdSet(copy);
+    }
+}
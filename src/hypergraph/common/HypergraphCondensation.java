@@ -0,0 +1,200 @@
+package hypergraph.common;
+
+import hypergraph.util.Log;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Strongly connected components of the hypergraph
+ * Node u reaches node v through hyperedge h if u is a source and v is a target of h.
+ * Components are numbered in topological order of the condensation DAG,
+ * so every hyperedge goes from a component to itself or to a later one.
+ *
+ * Members of component c are member(memberBegin(c) .. memberEnd(c)-1) in dense node ids.
+ * A component is trivial if it is a single node without a self loop.
+ * Computed over a subset of nodes, nodes outside of it have component -1.
+ */
+public class HypergraphCondensation {
+    private final int[] component; // dense node id -> component, -1 if not computed
+    private final int[] memberOffset;
+    private final int[] members;
+    private final BitSet cyclic; // components which are not trivial
+
+    private HypergraphCondensation(int[] component, int[] memberOffset, int[] members, BitSet cyclic) {
+        this.component = component;
+        this.memberOffset = memberOffset;
+        this.members = members;
+        this.cyclic = cyclic;
+    }
+
+    /**
+     * Iterative Tarjan over the node graph of snapshot
+     */
+    public static HypergraphCondensation compute(HypergraphSnapshot snapshot) {
+        BitSet nodes = new BitSet(snapshot.numNodes());
+        nodes.set(0, snapshot.numNodes());
+        return compute(snapshot, nodes);
+    }
+
+    /**
+     * Components of the subgraph induced by nodes, e.g. a forward cone
+     */
+    public static HypergraphCondensation compute(HypergraphSnapshot snapshot, BitSet nodes) {
+        long t = System.currentTimeMillis();
+        int numNodes = snapshot.numNodes();
+        int numSubset = nodes.cardinality();
+
+        int[] index = new int[numNodes];
+        int[] lowlink = new int[numNodes];
+        Arrays.fill(index, -1);
+        BitSet onStack = new BitSet(numNodes);
+        BitSet selfLoop = new BitSet(numNodes);
+        int[] stack = new int[numSubset];
+        int stackSize = 0;
+
+        // dfs frames: node, position in forward star, position in targets of current hyperedge
+        int[] frameNode = new int[numSubset];
+        int[] frameForward = new int[numSubset];
+        int[] frameTarget = new int[numSubset];
+
+        // components in reverse topological order (Tarjan emits sinks first)
+        int[] found = new int[numSubset];
+        int[] foundOffset = new int[numSubset + 1];
+        int numFound = 0;
+        int numMembers = 0;
+
+        int counter = 0;
+        for (int root = nodes.nextSetBit(0); root >= 0; root = nodes.nextSetBit(root + 1)) {
+            if (index[root] >= 0)
+                continue;
+
+            int depth = 0;
+            frameNode[0] = root;
+            frameForward[0] = snapshot.forwardBegin(root);
+            frameTarget[0] = -1;
+            index[root] = lowlink[root] = counter++;
+            stack[stackSize++] = root;
+            onStack.set(root);
+
+            while (depth >= 0) {
+                int u = frameNode[depth];
+
+                // next successor of u
+                int v = -1;
+                while (frameForward[depth] < snapshot.forwardEnd(u)) {
+                    int h = snapshot.forward(frameForward[depth]);
+                    if (frameTarget[depth] < 0)
+                        frameTarget[depth] = snapshot.targetBegin(h);
+                    if (frameTarget[depth] < snapshot.targetEnd(h)) {
+                        v = snapshot.target(frameTarget[depth]++);
+                        if (!nodes.get(v)) {
+                            v = -1;
+                            continue;
+                        }
+                        break;
+                    }
+                    frameForward[depth]++;
+                    frameTarget[depth] = -1;
+                }
+
+                if (v >= 0) {
+                    if (v == u)
+                        selfLoop.set(u);
+
+                    if (index[v] < 0) {
+                        // descend
+                        index[v] = lowlink[v] = counter++;
+                        stack[stackSize++] = v;
+                        onStack.set(v);
+                        depth++;
+                        frameNode[depth] = v;
+                        frameForward[depth] = snapshot.forwardBegin(v);
+                        frameTarget[depth] = -1;
+                    } else if (onStack.get(v)) {
+                        lowlink[u] = Math.min(lowlink[u], index[v]);
+                    }
+                    continue;
+                }
+
+                // u is finished
+                if (lowlink[u] == index[u]) {
+                    int w;
+                    do {
+                        w = stack[--stackSize];
+                        onStack.clear(w);
+                        found[numMembers++] = w;
+                    } while (w != u);
+                    foundOffset[++numFound] = numMembers;
+                }
+
+                depth--;
+                if (depth >= 0) {
+                    int parent = frameNode[depth];
+                    lowlink[parent] = Math.min(lowlink[parent], lowlink[u]);
+                }
+            }
+        }
+
+        // renumber in topological order
+        int[] component = new int[numNodes];
+        Arrays.fill(component, -1);
+        int[] memberOffset = new int[numFound + 1];
+        int[] members = new int[numSubset];
+        BitSet cyclic = new BitSet(numFound);
+        int size = 0;
+        for (int c = 0; c < numFound; c++) {
+            int f = numFound - 1 - c;
+            for (int i = foundOffset[f]; i < foundOffset[f + 1]; i++) {
+                int v = found[i];
+                component[v] = c;
+                members[size++] = v;
+            }
+            memberOffset[c + 1] = size;
+
+            int first = members[memberOffset[c]];
+            if (size - memberOffset[c] > 1 || selfLoop.get(first))
+                cyclic.set(c);
+        }
+
+        HypergraphCondensation condensation = new HypergraphCondensation(component, memberOffset, members, cyclic);
+        Log.info("HypergraphCondensation computed - components " + numFound + ", cyclic " + cyclic.cardinality()
+                + " (" + (System.currentTimeMillis() - t) + " ms)");
+        return condensation;
+    }
+
+    public int numComponents() {
+        return memberOffset.length - 1;
+    }
+
+    public int numCyclicComponents() {
+        return cyclic.cardinality();
+    }
+
+    /**
+     * @return component of dense node id, in topological order
+     */
+    public int component(int node) {
+        return component[node];
+    }
+
+    public boolean isCyclic(int c) {
+        return cyclic.get(c);
+    }
+
+    public int size(int c) {
+        return memberOffset[c + 1] - memberOffset[c];
+    }
+
+    public int memberBegin(int c) {
+        return memberOffset[c];
+    }
+
+    public int memberEnd(int c) {
+        return memberOffset[c + 1];
+    }
+
+    public int member(int i) {
+        return members[i];
+    }
+}
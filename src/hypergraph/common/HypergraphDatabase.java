@@ -18,6 +18,11 @@ import java.util.concurrent.TimeUnit;
 public class HypergraphDatabase {
     private static GraphDatabaseService graphDb = null;
     private static Thread hook = null;
+    private static NodeIdDictionary dictionary = null;
+    private static boolean dictionaryModified = false; // persisted one is stale, saved by close
+    private static HypergraphSnapshot snapshot = null;
+    private static DecomposedIdSet decomposed = null;
+    private static QueryFrequency queryFrequency = null;
 
     public static GraphDatabaseService getGraphDatabase() {
         return graphDb;
@@ -25,6 +30,11 @@ public class HypergraphDatabase {
 
     public static GraphDatabaseService init(String path) {
         delete(path);
+        dictionary = null;
+        dictionaryModified = false;
+        snapshot = null;
+        decomposed = null;
+        queryFrequency = null;
         graphDb = open(path);
         createIndex();
         return graphDb;
@@ -39,9 +49,104 @@ public class HypergraphDatabase {
     }
 
     public static void close() {
+        if (queryFrequency != null && queryFrequency.isModified())
+            queryFrequency.save(graphDb);
+        if (dictionaryModified)
+            dictionary.save(graphDb);
+
         removeShutdownHook();
         graphDb.shutdown();
         graphDb = null;
+        dictionary = null;
+        dictionaryModified = false;
+        snapshot = null;
+        decomposed = null;
+        queryFrequency = null;
+    }
+
+    /**
+     * @return dense id dictionary of current graph, built and saved if graph does not have one
+     */
+    public static NodeIdDictionary getNodeIdDictionary() {
+        if (dictionary == null) {
+            dictionary = NodeIdDictionary.load(graphDb);
+            if (dictionary == null)
+                buildNodeIdDictionary();
+        }
+        return dictionary;
+    }
+
+    /**
+     * Rebuild and save dense id dictionary, call after import
+     */
+    public static NodeIdDictionary buildNodeIdDictionary() {
+        dictionary = NodeIdDictionary.build(graphDb);
+        dictionary.save(graphDb);
+        dictionaryModified = false;
+        snapshot = null;
+        return dictionary;
+    }
+
+    /**
+     * @return in-memory snapshot of current graph, loaded on first call
+     */
+    public static HypergraphSnapshot getHypergraphSnapshot() {
+        if (snapshot == null)
+            snapshot = HypergraphSnapshot.load(graphDb, getNodeIdDictionary());
+        return snapshot;
+    }
+
+    /**
+     * Replace snapshot by one derived after modification (see HypergraphSnapshot.update),
+     * its dictionary is saved by close instead of the persisted one
+     */
+    public static void setHypergraphSnapshot(HypergraphSnapshot updated) {
+        if (updated.getDictionary() != getNodeIdDictionary()) {
+            // a crash before close rebuilds the dictionary instead of loading a stale one
+            if (!dictionaryModified)
+                NodeIdDictionary.delete(graphDb);
+            dictionary = updated.getDictionary();
+            dictionaryModified = true;
+        }
+        snapshot = updated;
+    }
+
+    /**
+     * Drop snapshot after the graph structure is modified
+     */
+    public static void invalidateHypergraphSnapshot() {
+        snapshot = null;
+    }
+
+    /**
+     * @return decomposed ids of the MSS index, loaded on first call (scanned and saved if graph does not have them)
+     */
+    public static synchronized DecomposedIdSet getDecomposedIdSet() {
+        if (decomposed == null) {
+            decomposed = DecomposedIdSet.load(graphDb);
+            if (decomposed == null) {
+                decomposed = DecomposedIdSet.build(graphDb);
+                decomposed.save(graphDb);
+            }
+        }
+        return decomposed;
+    }
+
+    /**
+     * Replace and save decomposed ids, call after the MSS index is built or maintained
+     */
+    public static synchronized void setDecomposedIdSet(DecomposedIdSet set) {
+        set.save(graphDb);
+        decomposed = set;
+    }
+
+    /**
+     * @return query counts of current graph, loaded on first call and saved by close
+     */
+    public static synchronized QueryFrequency getQueryFrequency() {
+        if (queryFrequency == null)
+            queryFrequency = QueryFrequency.load(graphDb);
+        return queryFrequency;
     }
 
     public static void copy(String from, String to) {
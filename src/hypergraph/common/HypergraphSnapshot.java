@@ -0,0 +1,395 @@
+package hypergraph.common;
+
+import hypergraph.util.Log;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Read-only in-memory snapshot of the hypergraph
+ * Adjacency is kept in compressed sparse row form over the dense ids of NodeIdDictionary,
+ * so hot loops of traversals and builders run without Neo4j calls.
+ *
+ * For each direction, the neighbors of x are array[begin(x) .. end(x)-1]
+ *   forward  : node -> hypernodes it is a source of (fromSource)
+ *   backward : node -> hypernodes targeting it (toTarget)
+ *   source   : hypernode -> its source nodes
+ *   target   : hypernode -> its target nodes
+ * Neighbors keep the relationship order of Neo4j.
+ * Hypernodes marked redundant (see RedundantHyperedgePruner) stay in the adjacency,
+ * MSS builders skip them by isRedundant, traversals do not.
+ *
+ * The snapshot does not see later changes of the graph, reload it after modification
+ * (or derive the modified one by update / updateStartable).
+ */
+public class HypergraphSnapshot {
+    private final NodeIdDictionary dictionary;
+
+    private final int[] forwardOffset;
+    private final int[] forward;
+    private final int[] backwardOffset;
+    private final int[] backward;
+    private final int[] sourceOffset;
+    private final int[] sources;
+    private final int[] targetOffset;
+    private final int[] targets;
+    private final BitSet startable;
+    private final BitSet redundant; // dense hypernode ids
+
+    private HypergraphSnapshot(NodeIdDictionary dictionary, int[][] forward, int[][] backward,
+                               int[][] sources, int[][] targets, BitSet startable, BitSet redundant) {
+        this.dictionary = dictionary;
+        this.forwardOffset = forward[0];
+        this.forward = forward[1];
+        this.backwardOffset = backward[0];
+        this.backward = backward[1];
+        this.sourceOffset = sources[0];
+        this.sources = sources[1];
+        this.targetOffset = targets[0];
+        this.targets = targets[1];
+        this.startable = startable;
+        this.redundant = redundant;
+    }
+
+    public static HypergraphSnapshot load(GraphDatabaseService graphDb, NodeIdDictionary dictionary) {
+        long t = System.currentTimeMillis();
+
+        try (Transaction tx = graphDb.beginTx()) {
+            int numNodes = dictionary.numNodes();
+            int numHypernodes = dictionary.numHypernodes();
+
+            CsrBuilder forward = new CsrBuilder(numNodes);
+            CsrBuilder backward = new CsrBuilder(numNodes);
+            for (int v = 0; v < numNodes; v++) {
+                Node node = graphDb.getNodeById(dictionary.fromNode(v));
+                forward.addRow(v, node, Direction.OUTGOING, Const.REL_FROM_SOURCE, dictionary, true);
+                backward.addRow(v, node, Direction.INCOMING, Const.REL_TO_TARGET, dictionary, true);
+            }
+
+            CsrBuilder sources = new CsrBuilder(numHypernodes);
+            CsrBuilder targets = new CsrBuilder(numHypernodes);
+            BitSet redundant = new BitSet(numHypernodes);
+            for (int h = 0; h < numHypernodes; h++) {
+                Node hypernode = graphDb.getNodeById(dictionary.fromHypernode(h));
+                sources.addRow(h, hypernode, Direction.INCOMING, Const.REL_FROM_SOURCE, dictionary, false);
+                targets.addRow(h, hypernode, Direction.OUTGOING, Const.REL_TO_TARGET, dictionary, false);
+                if (hypernode.hasProperty(Const.PROP_REDUNDANT))
+                    redundant.set(h);
+            }
+
+            BitSet startable = new BitSet(numNodes);
+            ResourceIterator<Node> iter = graphDb.findNodes(Const.LABEL_STARTABLE);
+            while (iter.hasNext()) {
+                int v = dictionary.toNode(iter.next().getId());
+                if (v >= 0)
+                    startable.set(v);
+            }
+
+            tx.success();
+
+            HypergraphSnapshot snapshot = new HypergraphSnapshot(dictionary,
+                    forward.build(), backward.build(), sources.build(), targets.build(), startable, redundant);
+            Log.info("HypergraphSnapshot loaded - nodes " + numNodes + ", hypernodes " + numHypernodes
+                    + ", redundant " + redundant.cardinality() + " (" + (System.currentTimeMillis() - t) + " ms)");
+            return snapshot;
+        }
+    }
+
+    /**
+     * Snapshot after hypernodes are added to / removed from the graph, see NodeIdDictionary.update
+     * Only the added hypernodes and the nodes touched by added or removed ones are read from the graph,
+     * rows of the others are copied. Call on the snapshot loaded before the modification.
+     */
+    public HypergraphSnapshot update(GraphDatabaseService graphDb, Collection<Long> addedHypernodes,
+                                     Collection<Long> removedHypernodes) {
+        long t = System.currentTimeMillis();
+
+        try (Transaction tx = graphDb.beginTx()) {
+            // nodes whose rows change (neo4j ids), nodes new to the dictionary included
+            Set<Long> touched = new HashSet<>();
+            for (long id : removedHypernodes) {
+                int h = toHypernode(id);
+                if (h < 0)
+                    continue;
+                for (int i = sourceBegin(h); i < sourceEnd(h); i++)
+                    touched.add(nodeId(source(i)));
+                for (int j = targetBegin(h); j < targetEnd(h); j++)
+                    touched.add(nodeId(target(j)));
+            }
+            for (long id : addedHypernodes) {
+                Node hypernode = graphDb.getNodeById(id);
+                for (Relationship rel : hypernode.getRelationships(Direction.INCOMING, Const.REL_FROM_SOURCE))
+                    touched.add(rel.getStartNode().getId());
+                for (Relationship rel : hypernode.getRelationships(Direction.OUTGOING, Const.REL_TO_TARGET))
+                    touched.add(rel.getEndNode().getId());
+            }
+            List<Long> addedNodes = new ArrayList<>();
+            for (long id : touched) {
+                if (toNode(id) < 0)
+                    addedNodes.add(id);
+            }
+
+            NodeIdDictionary updated = dictionary.update(addedNodes, addedHypernodes, removedHypernodes);
+            int numNodes = updated.numNodes();
+            int numHypernodes = updated.numHypernodes();
+
+            // dense hypernode id of this snapshot -> of the updated one, -1 if removed
+            Set<Long> removed = new HashSet<>(removedHypernodes);
+            int[] remap = new int[numHypernodes()];
+            for (int h = 0; h < remap.length; h++) {
+                long id = hypernodeId(h);
+                remap[h] = removed.contains(id) ? -1 : updated.toHypernode(id);
+            }
+
+            // kept hypernodes come first in their order, added ones after
+            CsrBuilder sources = new CsrBuilder(numHypernodes);
+            CsrBuilder targets = new CsrBuilder(numHypernodes);
+            BitSet redundant = new BitSet(numHypernodes);
+            for (int h = 0; h < remap.length; h++) {
+                int k = remap[h];
+                if (k < 0)
+                    continue;
+                sources.copyRow(k, this.sources, sourceBegin(h), sourceEnd(h), null);
+                targets.copyRow(k, this.targets, targetBegin(h), targetEnd(h), null);
+                if (this.redundant.get(h))
+                    redundant.set(k);
+            }
+            for (int k = sources.numRows(); k < numHypernodes; k++) {
+                Node hypernode = graphDb.getNodeById(updated.fromHypernode(k));
+                sources.addRow(k, hypernode, Direction.INCOMING, Const.REL_FROM_SOURCE, updated, false);
+                targets.addRow(k, hypernode, Direction.OUTGOING, Const.REL_TO_TARGET, updated, false);
+                if (hypernode.hasProperty(Const.PROP_REDUNDANT))
+                    redundant.set(k);
+            }
+
+            CsrBuilder forward = new CsrBuilder(numNodes);
+            CsrBuilder backward = new CsrBuilder(numNodes);
+            BitSet startable = (BitSet) this.startable.clone();
+            for (int v = 0; v < numNodes; v++) {
+                if (!touched.contains(updated.fromNode(v))) {
+                    forward.copyRow(v, this.forward, forwardBegin(v), forwardEnd(v), remap);
+                    backward.copyRow(v, this.backward, backwardBegin(v), backwardEnd(v), remap);
+                    continue;
+                }
+
+                Node node = graphDb.getNodeById(updated.fromNode(v));
+                forward.addRow(v, node, Direction.OUTGOING, Const.REL_FROM_SOURCE, updated, true);
+                backward.addRow(v, node, Direction.INCOMING, Const.REL_TO_TARGET, updated, true);
+                if (v >= numNodes() && node.hasLabel(Const.LABEL_STARTABLE))
+                    startable.set(v);
+
+                // marks of hyperedges into a touched node may be removed, see RedundantHyperedgePruner.unmark
+                for (Relationship rel : node.getRelationships(Direction.INCOMING, Const.REL_TO_TARGET)) {
+                    int h = updated.toHypernode(rel.getStartNode().getId());
+                    if (h >= 0)
+                        redundant.set(h, rel.getStartNode().hasProperty(Const.PROP_REDUNDANT));
+                }
+            }
+
+            tx.success();
+
+            HypergraphSnapshot snapshot = new HypergraphSnapshot(updated,
+                    forward.build(), backward.build(), sources.build(), targets.build(), startable, redundant);
+            Log.info("HypergraphSnapshot updated - nodes " + numNodes + ", hypernodes " + numHypernodes
+                    + ", touched " + touched.size() + " (" + (System.currentTimeMillis() - t) + " ms)");
+            return snapshot;
+        }
+    }
+
+    /**
+     * Snapshot after startable labels are added / removed, adjacency is shared
+     */
+    public HypergraphSnapshot updateStartable(Collection<Long> added, Collection<Long> removed) {
+        BitSet updated = (BitSet) startable.clone();
+        for (long id : added) {
+            int v = toNode(id);
+            if (v >= 0)
+                updated.set(v);
+        }
+        for (long id : removed) {
+            int v = toNode(id);
+            if (v >= 0)
+                updated.clear(v);
+        }
+        return new HypergraphSnapshot(dictionary, new int[][] { forwardOffset, forward },
+                new int[][] { backwardOffset, backward }, new int[][] { sourceOffset, sources },
+                new int[][] { targetOffset, targets }, updated, redundant);
+    }
+
+    // growing CSR arrays, rows are added in order
+    private static class CsrBuilder {
+        private final int[] offset;
+        private int[] values = new int[1024];
+        private int size = 0;
+        private int numRows = 0;
+
+        CsrBuilder(int numRows) {
+            offset = new int[numRows + 1];
+        }
+
+        void addRow(int row, Node node, Direction direction, RelationshipType type,
+                    NodeIdDictionary dictionary, boolean toHypernode) {
+            for (Relationship rel : node.getRelationships(direction, type)) {
+                long id = rel.getOtherNode(node).getId();
+                int dense = toHypernode ? dictionary.toHypernode(id) : dictionary.toNode(id);
+                if (dense >= 0)
+                    add(dense);
+            }
+            offset[row + 1] = size;
+            numRows = row + 1;
+        }
+
+        // row of another snapshot, values mapped by remap if given (dropped if -1)
+        void copyRow(int row, int[] from, int begin, int end, int[] remap) {
+            for (int i = begin; i < end; i++) {
+                int dense = remap == null ? from[i] : remap[from[i]];
+                if (dense >= 0)
+                    add(dense);
+            }
+            offset[row + 1] = size;
+            numRows = row + 1;
+        }
+
+        private void add(int dense) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = dense;
+        }
+
+        int numRows() {
+            return numRows;
+        }
+
+        int[][] build() {
+            return new int[][] { offset, Arrays.copyOf(values, size) };
+        }
+    }
+
+    public NodeIdDictionary getDictionary() {
+        return dictionary;
+    }
+
+    public int numNodes() {
+        return dictionary.numNodes();
+    }
+
+    public int numHypernodes() {
+        return dictionary.numHypernodes();
+    }
+
+    // ---------- id conversion ----------
+
+    public long nodeId(int node) {
+        return dictionary.fromNode(node);
+    }
+
+    public long hypernodeId(int hypernode) {
+        return dictionary.fromHypernode(hypernode);
+    }
+
+    public int toNode(long id) {
+        return dictionary.toNode(id);
+    }
+
+    public int toHypernode(long id) {
+        return dictionary.toHypernode(id);
+    }
+
+    public boolean isStartable(int node) {
+        return startable.get(node);
+    }
+
+    /**
+     * @return dense ids of startable nodes
+     */
+    public int[] getStartables() {
+        return startable.stream().toArray();
+    }
+
+    /**
+     * @return true if every target of hypernode has another hyperedge with a subset of its sources
+     */
+    public boolean isRedundant(int hypernode) {
+        return redundant.get(hypernode);
+    }
+
+    public int numRedundant() {
+        return redundant.cardinality();
+    }
+
+    // ---------- node -> hypernodes it is a source of ----------
+
+    public int forwardBegin(int node) {
+        return forwardOffset[node];
+    }
+
+    public int forwardEnd(int node) {
+        return forwardOffset[node + 1];
+    }
+
+    public int forward(int i) {
+        return forward[i];
+    }
+
+    // ---------- node -> hypernodes targeting it ----------
+
+    public int backwardBegin(int node) {
+        return backwardOffset[node];
+    }
+
+    public int backwardEnd(int node) {
+        return backwardOffset[node + 1];
+    }
+
+    public int backward(int i) {
+        return backward[i];
+    }
+
+    public int inDegree(int node) {
+        return backwardOffset[node + 1] - backwardOffset[node];
+    }
+
+    // ---------- hypernode -> source nodes ----------
+
+    public int sourceBegin(int hypernode) {
+        return sourceOffset[hypernode];
+    }
+
+    public int sourceEnd(int hypernode) {
+        return sourceOffset[hypernode + 1];
+    }
+
+    public int source(int i) {
+        return sources[i];
+    }
+
+    public int numSources(int hypernode) {
+        return sourceOffset[hypernode + 1] - sourceOffset[hypernode];
+    }
+
+    // ---------- hypernode -> target nodes ----------
+
+    public int targetBegin(int hypernode) {
+        return targetOffset[hypernode];
+    }
+
+    public int targetEnd(int hypernode) {
+        return targetOffset[hypernode + 1];
+    }
+
+    public int target(int i) {
+        return targets[i];
+    }
+}
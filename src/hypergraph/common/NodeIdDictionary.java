@@ -0,0 +1,196 @@
+package hypergraph.common;
+
+import hypergraph.util.Log;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Dense id dictionary
+ * Maps sparse Neo4j ids to compact int ids, nodes and hypernodes have separate spaces
+ * (node 0..numNodes-1, hypernode 0..numHypernodes-1), so per-node state can be kept
+ * in arrays and bitsets instead of hashed boxed longs.
+ *
+ * Dense ids follow the Neo4j id order when built, ids added later are appended (see update).
+ * Persisted as long[] properties of the meta node in dense id order, built at import time
+ * (see HypergraphDatabase.getNodeIdDictionary for graphs imported before).
+ */
+public class NodeIdDictionary {
+    private final long[] nodeIds; // dense id -> neo4j id
+    private final long[] hypernodeIds;
+    private final int[] denseIds; // neo4j id -> dense id of its space, -1 if none
+    private final boolean[] hypernode; // neo4j id -> true if hypernode
+
+    private NodeIdDictionary(long[] nodeIds, long[] hypernodeIds) {
+        this.nodeIds = nodeIds;
+        this.hypernodeIds = hypernodeIds;
+
+        long maxId = -1;
+        for (long id : nodeIds) maxId = Math.max(maxId, id);
+        for (long id : hypernodeIds) maxId = Math.max(maxId, id);
+
+        denseIds = new int[(int) (maxId + 1)];
+        hypernode = new boolean[denseIds.length];
+        Arrays.fill(denseIds, -1);
+        for (int i = 0; i < nodeIds.length; i++) {
+            denseIds[(int) nodeIds[i]] = i;
+        }
+        for (int i = 0; i < hypernodeIds.length; i++) {
+            denseIds[(int) hypernodeIds[i]] = i;
+            hypernode[(int) hypernodeIds[i]] = true;
+        }
+    }
+
+    /**
+     * Scan all nodes and hypernodes of graph
+     */
+    public static NodeIdDictionary build(GraphDatabaseService graphDb) {
+        try (Transaction tx = graphDb.beginTx()) {
+            NodeIdDictionary dictionary = new NodeIdDictionary(
+                    collectIds(graphDb, Const.LABEL_NODE), collectIds(graphDb, Const.LABEL_HYPERNODE));
+            tx.success();
+            return dictionary;
+        }
+    }
+
+    /**
+     * @return persisted dictionary, null if graph does not have one
+     */
+    public static NodeIdDictionary load(GraphDatabaseService graphDb) {
+        try (Transaction tx = graphDb.beginTx()) {
+            NodeIdDictionary dictionary = null;
+            ResourceIterator<Node> iter = graphDb.findNodes(Const.LABEL_META);
+            while (iter.hasNext()) {
+                Node meta = iter.next();
+                if (meta.hasProperty(Const.PROP_NODE_IDS) && meta.hasProperty(Const.PROP_HYPERNODE_IDS)) {
+                    dictionary = new NodeIdDictionary(
+                            (long[]) meta.getProperty(Const.PROP_NODE_IDS), (long[]) meta.getProperty(Const.PROP_HYPERNODE_IDS));
+                }
+            }
+            tx.success();
+            return dictionary;
+        }
+    }
+
+    /**
+     * Dictionary after hypernodes are added to / removed from the graph, without a scan
+     * Added ids get dense ids after the existing ones. Removed hypernodes are dropped and
+     * the dense ids of later hypernodes shift down, node ids are kept.
+     */
+    public NodeIdDictionary update(Collection<Long> addedNodes, Collection<Long> addedHypernodes,
+                                   Collection<Long> removedHypernodes) {
+        long[] nodes = Arrays.copyOf(nodeIds, nodeIds.length + addedNodes.size());
+        int n = nodeIds.length;
+        for (long id : addedNodes) {
+            if (toNode(id) < 0)
+                nodes[n++] = id;
+        }
+
+        Set<Long> removed = new HashSet<>(removedHypernodes);
+        long[] hypernodes = new long[hypernodeIds.length + addedHypernodes.size()];
+        int m = 0;
+        for (long id : hypernodeIds) {
+            if (!removed.contains(id))
+                hypernodes[m++] = id;
+        }
+        for (long id : addedHypernodes) {
+            if (toHypernode(id) < 0 || removed.contains(id))
+                hypernodes[m++] = id;
+        }
+        return new NodeIdDictionary(Arrays.copyOf(nodes, n), Arrays.copyOf(hypernodes, m));
+    }
+
+    /**
+     * Remove the persisted dictionary, it is built again when the graph is opened next
+     */
+    public static void delete(GraphDatabaseService graphDb) {
+        try (Transaction tx = graphDb.beginTx()) {
+            ResourceIterator<Node> iter = graphDb.findNodes(Const.LABEL_META);
+            while (iter.hasNext()) {
+                Node meta = iter.next();
+                meta.removeProperty(Const.PROP_NODE_IDS);
+                meta.removeProperty(Const.PROP_HYPERNODE_IDS);
+            }
+            tx.success();
+        }
+    }
+
+    /**
+     * Store into the meta node (created if not exists)
+     */
+    public void save(GraphDatabaseService graphDb) {
+        try (Transaction tx = graphDb.beginTx()) {
+            ResourceIterator<Node> iter = graphDb.findNodes(Const.LABEL_META);
+            Node meta = iter.hasNext() ? iter.next() : graphDb.createNode(Const.LABEL_META);
+            iter.close();
+
+            meta.setProperty(Const.PROP_NODE_IDS, nodeIds);
+            meta.setProperty(Const.PROP_HYPERNODE_IDS, hypernodeIds);
+            tx.success();
+        }
+        Log.info("NodeIdDictionary saved - nodes " + nodeIds.length + ", hypernodes " + hypernodeIds.length);
+    }
+
+    private static long[] collectIds(GraphDatabaseService graphDb, Label label) {
+        long[] ids = new long[1024];
+        int n = 0;
+        ResourceIterator<Node> iter = graphDb.findNodes(label);
+        while (iter.hasNext()) {
+            if (n == ids.length)
+                ids = Arrays.copyOf(ids, n * 2);
+            ids[n++] = iter.next().getId();
+        }
+        ids = Arrays.copyOf(ids, n);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    public int numNodes() {
+        return nodeIds.length;
+    }
+
+    public int numHypernodes() {
+        return hypernodeIds.length;
+    }
+
+    public boolean isHypernode(long id) {
+        return id >= 0 && id < hypernode.length && hypernode[(int) id];
+    }
+
+    /**
+     * @return dense node id, -1 if id is not a node
+     */
+    public int toNode(long id) {
+        if (id < 0 || id >= denseIds.length || hypernode[(int) id])
+            return -1;
+        return denseIds[(int) id];
+    }
+
+    /**
+     * @return dense hypernode id, -1 if id is not a hypernode
+     */
+    public int toHypernode(long id) {
+        return isHypernode(id) ? denseIds[(int) id] : -1;
+    }
+
+    /**
+     * @return neo4j id of dense node id
+     */
+    public long fromNode(int node) {
+        return nodeIds[node];
+    }
+
+    /**
+     * @return neo4j id of dense hypernode id
+     */
+    public long fromHypernode(int hypernode) {
+        return hypernodeIds[hypernode];
+    }
+}
@@ -0,0 +1,102 @@
+package hypergraph.common;
+
+import hypergraph.util.Log;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Number of queries per target node
+ * Recorded by finders and backward discovery, read by AdaptiveDecompositionPolicy.
+ *
+ * Saved as two long[] properties of the meta node (see HypergraphDatabase.getQueryFrequency,
+ * saved when the database is closed). Thread-safe.
+ */
+public class QueryFrequency {
+    private final Map<Long, Long> counts = new HashMap<>();
+    private boolean modified = false;
+
+    public synchronized void record(long nodeId) {
+        counts.merge(nodeId, 1L, Long::sum);
+        modified = true;
+    }
+
+    public synchronized long get(long nodeId) {
+        return counts.getOrDefault(nodeId, 0L);
+    }
+
+    /**
+     * Replace all counts
+     */
+    public synchronized void set(Map<Long, Long> counts) {
+        this.counts.clear();
+        this.counts.putAll(counts);
+        modified = true;
+    }
+
+    /**
+     * @return copy of the counts
+     */
+    public synchronized Map<Long, Long> asMap() {
+        return Collections.unmodifiableMap(new HashMap<>(counts));
+    }
+
+    public synchronized int size() {
+        return counts.size();
+    }
+
+    public synchronized boolean isModified() {
+        return modified;
+    }
+
+    /**
+     * @return persisted counts, empty if graph does not have them
+     */
+    public static QueryFrequency load(GraphDatabaseService graphDb) {
+        QueryFrequency frequency = new QueryFrequency();
+        try (Transaction tx = graphDb.beginTx()) {
+            ResourceIterator<Node> iter = graphDb.findNodes(Const.LABEL_META);
+            while (iter.hasNext()) {
+                Node meta = iter.next();
+                long[] ids = (long[]) meta.getProperty(Const.PROP_QUERY_NODE_IDS, new long[0]);
+                long[] counts = (long[]) meta.getProperty(Const.PROP_QUERY_COUNTS, new long[0]);
+                for (int i = 0; i < ids.length; i++) {
+                    frequency.counts.put(ids[i], counts[i]);
+                }
+            }
+            tx.success();
+        }
+        return frequency;
+    }
+
+    /**
+     * Store into the meta node (created if not exists)
+     */
+    public synchronized void save(GraphDatabaseService graphDb) {
+        long[] ids = new long[counts.size()];
+        long[] values = new long[counts.size()];
+        int n = 0;
+        for (Map.Entry<Long, Long> entry : counts.entrySet()) {
+            ids[n] = entry.getKey();
+            values[n] = entry.getValue();
+            n++;
+        }
+
+        try (Transaction tx = graphDb.beginTx()) {
+            ResourceIterator<Node> iter = graphDb.findNodes(Const.LABEL_META);
+            Node meta = iter.hasNext() ? iter.next() : graphDb.createNode(Const.LABEL_META);
+            iter.close();
+
+            meta.setProperty(Const.PROP_QUERY_NODE_IDS, ids);
+            meta.setProperty(Const.PROP_QUERY_COUNTS, values);
+            tx.success();
+        }
+        modified = false;
+        Log.info("QueryFrequency saved - queried nodes " + n);
+    }
+}
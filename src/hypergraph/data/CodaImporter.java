@@ -55,6 +55,8 @@ public class CodaImporter implements Importer {
         importRuleFile(new File("input/coda/FinalNetwork/kegg.txt"));
         importDrugAndInteraction(new File("input/coda/drug_target_interaction_alldrugs.txt"));
 
+        HypergraphDatabase.buildNodeIdDictionary();
+
         Log.info("CodaImporter DONE");
         Log.info("countEntity: " + countEntity);
         Log.info("countRelationship: " + countRelationship);
@@ -240,6 +240,8 @@ public class KeggImporter implements Importer {
 
 //        markStartables();
 
+        HypergraphDatabase.buildNodeIdDictionary();
+
         Log.info("countFile : " + countFile);
         Log.info("countEntry : " + countEntry);
         Log.info("countRelations : " + countRelations);
@@ -251,6 +253,8 @@ public class KeggImporter implements Importer {
 
         DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
         try {
+            // KGML DTD is on www.kegg.jp, not needed for parsing (import works offline)
+            dbf.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
             DocumentBuilder db = dbf.newDocumentBuilder();
             Document doc = db.parse(file);
             handleDocument(doc);
@@ -64,6 +64,8 @@ public class SimpleImporter implements Importer {
             e.printStackTrace();
         }
 
+        HypergraphDatabase.buildNodeIdDictionary();
+
         Log.debug("hypergraph.data.SimpleImporter DONE");
     }
 
@@ -1,6 +1,7 @@
 package hypergraph.discovery;
 
 import hypergraph.mss.MinimalSourceSet;
+import hypergraph.mss.MinimumSearchResult;
 import org.neo4j.graphdb.Node;
 
 import java.util.HashSet;
@@ -31,6 +32,34 @@ public interface BackwardDiscovery {
         return minimum;
     }
 
+    /**
+     * Anytime query, returns the source sets found within budget
+     * Discoveries which cannot be interrupted run to completion.
+     */
+    default DiscoveryResult findMinimal(Set<Node> target, QueryBudget budget) {
+        budget.start();
+        MinimalSourceSet mss = findMinimal(target);
+        return new DiscoveryResult(mss, true, budget.getOperations(), budget.getElapsed());
+    }
+
+    /**
+     * Anytime minimum query, smallest source set found within budget
+     * An incomplete discovery only proves that a source set has at least one node.
+     */
+    default MinimumSearchResult findMinimum(Set<Node> target, QueryBudget budget) {
+        DiscoveryResult result = findMinimal(target, budget);
+        Set<Long> minimum = null;
+        for (Set<Long> s : result.getMinimalSourceSet().getSourceSets()) {
+            if (minimum == null || minimum.size() > s.size())
+                minimum = s;
+        }
+
+        int lowerBound = 1;
+        if (result.isComplete())
+            lowerBound = minimum == null ? Integer.MAX_VALUE : minimum.size();
+        return new MinimumSearchResult(minimum, lowerBound, result.isComplete(), result.getOperations(), result.getTime());
+    }
+
     default MinimalSourceSet findMinimal(Node t) {
         Set<Node> target = new HashSet<>();
         target.add(t);
@@ -0,0 +1,50 @@
+package hypergraph.discovery;
+
+import hypergraph.mss.MinimalSourceSet;
+
+/**
+ * Result of a budgeted backward discovery
+ * A complete result is the MSS of target. An incomplete one holds the source sets found
+ * before the budget ran out, each of them reaches target (see the discovery for whether they are minimal).
+ */
+public class DiscoveryResult {
+    private final MinimalSourceSet mss;
+    private final boolean complete;
+    private final long operations;
+    private final long time;
+
+    /**
+     * @param mss source sets found
+     * @param complete discovery finished within budget
+     * @param operations operations charged to the budget
+     * @param time ms
+     */
+    public DiscoveryResult(MinimalSourceSet mss, boolean complete, long operations, long time) {
+        this.mss = mss;
+        this.complete = complete;
+        this.operations = operations;
+        this.time = time;
+    }
+
+    public MinimalSourceSet getMinimalSourceSet() {
+        return mss;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public long getOperations() {
+        return operations;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    @Override
+    public String toString() {
+        return (complete ? "complete" : "budget exhausted") + " - " + mss.cardinality() + " source sets, "
+                + operations + " operations, " + time + " ms";
+    }
+}
@@ -1,6 +1,7 @@
 package hypergraph.discovery;
 
 import hypergraph.common.Const;
+import hypergraph.common.HypergraphDatabase;
 import hypergraph.traversal.HypergraphTraversal;
 import org.neo4j.cypher.internal.compiler.v1_9.parser.ParserPattern;
 import org.neo4j.graphdb.Node;
@@ -9,6 +10,8 @@ import java.util.HashSet;
 import java.util.Set;
 
 /**
+ * Forward traversal from source nodes on the in-memory snapshot, visited nodes are handed to the rule
+ *
  * Created by Hyunjun on 2015-05-14.
  */
 public class ForwardDiscovery {
@@ -18,7 +21,7 @@ public class ForwardDiscovery {
 
     public Set<Node> find(Set<Node> source, Rule rule) {
         Set<Node> result = new HashSet<>();
-        HypergraphTraversal traversal = new HypergraphTraversal(node -> {
+        HypergraphTraversal traversal = new HypergraphTraversal(HypergraphDatabase.getHypergraphSnapshot(), node -> {
             if (rule.isTarget(node)) {
                 result.add(node);
             }
@@ -42,7 +45,7 @@ public class ForwardDiscovery {
         for (Node t : target)
             check.add(t.getId());
 
-        HypergraphTraversal traversal = new HypergraphTraversal(node -> {
+        HypergraphTraversal traversal = new HypergraphTraversal(HypergraphDatabase.getHypergraphSnapshot(), node -> {
             if (check.contains(node.getId())) {
                 check.remove(node.getId());
             }
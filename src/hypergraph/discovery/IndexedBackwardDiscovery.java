@@ -3,24 +3,94 @@ package hypergraph.discovery;
 import hypergraph.mss.*;
 import org.neo4j.graphdb.Node;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 /**
+ * Backward discovery on the MSS index of NodeDecompositionBuilder
+ * Each target is looked up by its finder, which records the query (see AdaptiveDecompositionPolicy).
+ * Minimal queries reconstruct proxy nodes with NodeDecompositionFinder, minimum queries, budgeted or not,
+ * search the same proxy MSSs with FastDecompositionFinder.searchMinimum.
+ *
  * Created by Hyunjun on 2015-05-06.
  */
 public class IndexedBackwardDiscovery implements BackwardDiscovery {
     
     @Override
     public MinimalSourceSet findMinimal(Set<Node> target) {
-        MinimalSourceSet result = null;
+        return findMinimalLazy(target).materialize();
+    }
+
+    /**
+     * Each streamed source set is an operation. Sets stream in size order and are final,
+     * so an incomplete result holds the smallest source sets of target.
+     * Targets are loaded one by one, the budget is checked between them. Reconstruction of a single
+     * target is not interrupted, so this query is anytime only across targets and streamed sets.
+     */
+    @Override
+    public DiscoveryResult findMinimal(Set<Node> target, QueryBudget budget) {
+        budget.start();
+        MinimalSourceSet mss = new MinimalSourceSet();
+        boolean complete = true;
 
+        List<MinimalSourceSetExpression> leaves = new ArrayList<>();
         for (Node t : target) {
+            if (budget.isExhausted())
+                return new DiscoveryResult(mss, false, budget.getOperations(), budget.getElapsed());
+
             MinimalSourceSetFinder finder = new NodeDecompositionFinder();
-            MinimalSourceSet mss = finder.find(t);
-            if (result == null) result = mss;
-            else result = result.cartesian(mss);
+            leaves.add(MinimalSourceSetExpression.leaf(finder.find(t)));
+        }
+
+        Iterator<Set<Long>> iter = MinimalSourceSetExpression.cartesian(leaves).iterator();
+        while (iter.hasNext()) {
+            if (budget.isExhausted()) {
+                complete = false;
+                break;
+            }
+            mss.getSourceSets().add(iter.next());
+            budget.charge();
         }
 
-        return result;
+        return new DiscoveryResult(mss, complete, budget.getOperations(), budget.getElapsed());
+    }
+
+    /**
+     * Cartesian product of the target MSSs, joined only when it is iterated or materialized
+     * Iteration streams the source sets in size order.
+     */
+    public MinimalSourceSetExpression findMinimalLazy(Set<Node> target) {
+        List<MinimalSourceSetExpression> leaves = new ArrayList<>();
+
+        for (Node t : target) {
+            MinimalSourceSetFinder finder = new NodeDecompositionFinder();
+            leaves.add(MinimalSourceSetExpression.leaf(finder, t));
+        }
+
+        return MinimalSourceSetExpression.cartesian(leaves);
+    }
+
+    @Override
+    public Set<Long> findMinimum(Set<Node> target) {
+        Set<Long> minimum = findMinimum(target, QueryBudget.unlimited()).getSourceSet();
+        return minimum == null ? new HashSet<>() : minimum;
+    }
+
+    /**
+     * Branch and bound over the decomposed index (see FastDecompositionFinder.searchMinimum)
+     * within the budget, each expanded search state is an operation
+     */
+    @Override
+    public MinimumSearchResult findMinimum(Set<Node> target, QueryBudget budget) {
+        budget.start();
+        FastDecompositionFinder finder = new FastDecompositionFinder();
+        finder.setBudget(budget.getRemainingOperations(), budget.getRemainingTime());
+        MinimumSearchResult result = finder.searchMinimum(target);
+        budget.charge(result.getExpanded());
+        return new MinimumSearchResult(result.getSourceSet(), result.getLowerBound(), result.isOptimal(),
+                budget.getOperations(), budget.getElapsed());
     }
 }
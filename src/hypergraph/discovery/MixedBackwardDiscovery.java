@@ -1,6 +1,7 @@
 package hypergraph.discovery;
 
 import hypergraph.common.Const;
+import hypergraph.common.HypergraphDatabase;
 import hypergraph.mss.MinimalSourceSet;
 import hypergraph.mss.NaiveBuilder;
 import hypergraph.traversal.BackwardTraversal;
@@ -26,7 +27,7 @@ public class MixedBackwardDiscovery extends NaiveBuilder implements BackwardDisc
     public MinimalSourceSet findMinimal(Set<Node> target) {
         // Find super source set
         Set<Node> start = new HashSet<>();
-        BackwardTraversal bt = new BackwardTraversal(node -> {
+        BackwardTraversal bt = new BackwardTraversal(HypergraphDatabase.getHypergraphSnapshot(), node -> {
             hit.add(node.getId());
             if (node.hasLabel(Const.LABEL_STARTABLE)) {
                 start.add(node);
@@ -36,7 +37,7 @@ public class MixedBackwardDiscovery extends NaiveBuilder implements BackwardDisc
 
         // Build temporal mss from start
         // only for on the hitting set
-        compute(start, (node) -> { return hit.contains(node.getId()); });
+        compute(start, (nodeId) -> { return hit.contains(nodeId); });
 
         // print mss
         for (Map.Entry<Long, MinimalSourceSet> entry : mssMap.entrySet()) {
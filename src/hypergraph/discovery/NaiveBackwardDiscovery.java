@@ -19,6 +19,7 @@ public class NaiveBackwardDiscovery implements BackwardDiscovery {
     private GraphDatabaseService graphDb;
     private Set<Long> visited;
     private int countNodeAccess = 0;
+    private QueryBudget budget;
 
     // to enumerate backward star
     Stack<Node> branchingNode = new Stack<>();
@@ -31,11 +32,30 @@ public class NaiveBackwardDiscovery implements BackwardDiscovery {
 
     @Override
     public MinimalSourceSet findMinimal(Set<Node> target) {
+        return findMinimal(target, QueryBudget.unlimited()).getMinimalSourceSet();
+    }
+
+    /**
+     * Each node access is an operation. Once the budget is exhausted the traversal in progress
+     * is dropped, and the source sets found before are checked and returned.
+     * Sets of an incomplete result reach target but may not be minimal.
+     */
+    @Override
+    public DiscoveryResult findMinimal(Set<Node> target, QueryBudget budget) {
         MinimalSourceSet mss = new MinimalSourceSet();
+        boolean complete = true;
+        budget.start();
+        this.budget = budget;
+        branchingNode.clear();
+        nextEdge.clear();
 
         do {
             visited = new HashSet<>();
             Set<Node> sources = findWithTraversal(target);
+            if (sources == null) {
+                complete = false;
+                break;
+            }
             printNodes(sources);
 
             if (!sources.isEmpty()) { // empty == unreachable
@@ -83,8 +103,10 @@ public class NaiveBackwardDiscovery implements BackwardDiscovery {
         }
 
         Log.info("countNodeAccess " + countNodeAccess);
+        if (!complete)
+            Log.warn("naive backward discovery " + budget + " exhausted - " + result.cardinality() + " source sets found");
 
-        return result;
+        return new DiscoveryResult(result, complete, budget.getOperations(), budget.getElapsed());
     }
 
     private Set<Node> toNodeSet(Set<Long> sourceSet) {
@@ -105,6 +127,9 @@ public class NaiveBackwardDiscovery implements BackwardDiscovery {
 //        System.out.println("}");
     }
 
+    /**
+     * @return null if the budget is exhausted
+     */
     private Set<Node> findWithTraversal(Set<Node> targets) {
         Queue<Node> queue = new LinkedList<Node>();
         Set<Node> result = new HashSet<>();
@@ -120,6 +145,9 @@ public class NaiveBackwardDiscovery implements BackwardDiscovery {
 //            Log.debug("visit " + v.getId());
 
             countNodeAccess++;
+            budget.charge();
+            if (budget.isExhausted())
+                return null;
 
             int inDegree = v.getDegree(Const.REL_TO_TARGET, Direction.INCOMING);
             int edgeIndex = nextEdge.getOrDefault(v.getId(), 0);
@@ -0,0 +1,84 @@
+package hypergraph.discovery;
+
+/**
+ * Time and operation budget of a query
+ * A discovery starts the budget, charges an operation per unit of work (node access,
+ * streamed source set) and stops once either limit is reached.
+ * Not thread-safe, one query at a time.
+ */
+public class QueryBudget {
+    private final long timeLimit; // ms
+    private final long maxOperations;
+    private long start;
+    private long operations;
+
+    /**
+     * @param timeLimit ms
+     * @param maxOperations number of operations
+     */
+    public QueryBudget(long timeLimit, long maxOperations) {
+        this.timeLimit = timeLimit;
+        this.maxOperations = maxOperations;
+        start();
+    }
+
+    public static QueryBudget unlimited() {
+        return new QueryBudget(Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    public static QueryBudget ofMillis(long timeLimit) {
+        return new QueryBudget(timeLimit, Long.MAX_VALUE);
+    }
+
+    public static QueryBudget ofOperations(long maxOperations) {
+        return new QueryBudget(Long.MAX_VALUE, maxOperations);
+    }
+
+    /**
+     * Reset time and operations for a new query
+     */
+    public void start() {
+        start = System.currentTimeMillis();
+        operations = 0;
+    }
+
+    public void charge() {
+        operations++;
+    }
+
+    public void charge(long count) {
+        operations += count;
+    }
+
+    public boolean isExhausted() {
+        return operations >= maxOperations || getElapsed() > timeLimit;
+    }
+
+    public long getOperations() {
+        return operations;
+    }
+
+    public long getRemainingOperations() {
+        return Math.max(0, maxOperations - operations);
+    }
+
+    /**
+     * @return ms left, Long.MAX_VALUE if unlimited
+     */
+    public long getRemainingTime() {
+        return timeLimit == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(0, timeLimit - getElapsed());
+    }
+
+    /**
+     * @return ms since start
+     */
+    public long getElapsed() {
+        return System.currentTimeMillis() - start;
+    }
+
+    @Override
+    public String toString() {
+        return "budget " + (timeLimit == Long.MAX_VALUE ? "-" : timeLimit + " ms") + ", "
+                + (maxOperations == Long.MAX_VALUE ? "-" : maxOperations + " operations");
+    }
+}
@@ -0,0 +1,181 @@
+package hypergraph.mss;
+
+import hypergraph.common.Const;
+import hypergraph.common.HypergraphDatabase;
+import hypergraph.common.HypergraphSnapshot;
+import hypergraph.common.QueryFrequency;
+import hypergraph.util.Log;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.Map;
+
+/**
+ * Cost-based decomposition limits
+ * A materialized MSS costs index size in every node it flows into, a decomposed one costs
+ * reconstruction time in every query reaching it. The base limit of each hyperedge (node) is scaled by
+ *   (1 + frequency) / (1 + mean frequency) : often queried, keep materialized
+ *   (1 + mean fan-out) / (1 + fan-out) : copied into many nodes, decompose early
+ * and clamped to [base / MAX_SCALE, base * MAX_SCALE].
+ *
+ * Fan-out of a node is the number of targets of its outgoing hyperedges, fan-out of a hyperedge is
+ * its number of targets plus their fan-out. Frequency of a hyperedge is the sum over its targets.
+ * Query frequencies are recorded by finders and backward discovery into HypergraphDatabase.getQueryFrequency
+ * (or given), the base is persisted in the meta node, so later builds and maintenance see the same policy.
+ */
+public class AdaptiveDecompositionPolicy implements DecompositionPolicy {
+    public static final int MAX_SCALE = 8;
+
+    private final int base;
+    private final QueryFrequency frequency;
+    private int[] hypernodeLimit; // dense hypernode id
+    private int[] nodeLimit; // dense node id
+
+    public AdaptiveDecompositionPolicy() {
+        this(512);
+    }
+
+    /**
+     * @param base limit of a hyperedge with mean fan-out and mean frequency
+     */
+    public AdaptiveDecompositionPolicy(int base) {
+        this(base, new QueryFrequency());
+    }
+
+    /**
+     * @param frequency query counts read by init, e.g. HypergraphDatabase.getQueryFrequency
+     */
+    public AdaptiveDecompositionPolicy(int base, QueryFrequency frequency) {
+        this.base = base;
+        this.frequency = frequency;
+    }
+
+    public void recordQuery(long nodeId) {
+        frequency.record(nodeId);
+    }
+
+    public void setQueryFrequency(Map<Long, Long> frequency) {
+        this.frequency.set(frequency);
+    }
+
+    public Map<Long, Long> getQueryFrequency() {
+        return frequency.asMap();
+    }
+
+    public int getBase() {
+        return base;
+    }
+
+    @Override
+    public void init(HypergraphSnapshot snapshot) {
+        int numNodes = snapshot.numNodes();
+        int numHypernodes = snapshot.numHypernodes();
+
+        long[] nodeFanOut = new long[numNodes];
+        long[] nodeFrequency = new long[numNodes];
+        for (int v = 0; v < numNodes; v++) {
+            for (int i = snapshot.forwardBegin(v); i < snapshot.forwardEnd(v); i++) {
+                int h = snapshot.forward(i);
+                nodeFanOut[v] += snapshot.targetEnd(h) - snapshot.targetBegin(h);
+            }
+            nodeFrequency[v] = frequency.get(snapshot.nodeId(v));
+        }
+
+        long[] fanOut = new long[numHypernodes];
+        long[] hypernodeFrequency = new long[numHypernodes];
+        for (int h = 0; h < numHypernodes; h++) {
+            for (int j = snapshot.targetBegin(h); j < snapshot.targetEnd(h); j++) {
+                int t = snapshot.target(j);
+                fanOut[h] += 1 + nodeFanOut[t];
+                hypernodeFrequency[h] += nodeFrequency[t];
+            }
+        }
+
+        nodeLimit = scale(nodeFanOut, nodeFrequency);
+        hypernodeLimit = scale(fanOut, hypernodeFrequency);
+
+        int min = Integer.MAX_VALUE, max = 0;
+        for (int limit : hypernodeLimit) {
+            min = Math.min(min, limit);
+            max = Math.max(max, limit);
+        }
+        Log.info("AdaptiveDecompositionPolicy - base " + base + ", queried nodes " + frequency.size()
+                + ", hyperedge limit " + (numHypernodes == 0 ? "-" : min + " .. " + max));
+    }
+
+    private int[] scale(long[] fanOut, long[] frequency) {
+        double meanFanOut = mean(fanOut);
+        double meanFrequency = mean(frequency);
+        int lower = Math.max(1, base / MAX_SCALE);
+        int upper = (int) Math.min(Integer.MAX_VALUE, (long) base * MAX_SCALE);
+
+        int[] limit = new int[fanOut.length];
+        for (int i = 0; i < limit.length; i++) {
+            double weight = (1.0 + frequency[i]) / (1.0 + meanFrequency) * (1.0 + meanFanOut) / (1.0 + fanOut[i]);
+            limit[i] = (int) Math.max(lower, Math.min(upper, Math.round(base * weight)));
+        }
+        return limit;
+    }
+
+    private static double mean(long[] values) {
+        if (values.length == 0)
+            return 0;
+
+        double sum = 0;
+        for (long v : values) {
+            sum += v;
+        }
+        return sum / values.length;
+    }
+
+    @Override
+    public int limit(int hypernode) {
+        return hypernodeLimit[hypernode];
+    }
+
+    @Override
+    public int nodeLimit(int node) {
+        return nodeLimit[node];
+    }
+
+    /**
+     * @return persisted policy with the query counts of the graph, null if graph does not have one
+     */
+    public static AdaptiveDecompositionPolicy load(GraphDatabaseService graphDb) {
+        try (Transaction tx = graphDb.beginTx()) {
+            AdaptiveDecompositionPolicy policy = null;
+            ResourceIterator<Node> iter = graphDb.findNodes(Const.LABEL_META);
+            while (iter.hasNext()) {
+                Node meta = iter.next();
+                if (meta.hasProperty(Const.PROP_DECOMPOSE_BASE))
+                    policy = new AdaptiveDecompositionPolicy((int) meta.getProperty(Const.PROP_DECOMPOSE_BASE),
+                            HypergraphDatabase.getQueryFrequency());
+            }
+            tx.success();
+            return policy;
+        }
+    }
+
+    /**
+     * Store base and query frequencies into the meta node (created if not exists)
+     */
+    public void save(GraphDatabaseService graphDb) {
+        try (Transaction tx = graphDb.beginTx()) {
+            ResourceIterator<Node> iter = graphDb.findNodes(Const.LABEL_META);
+            Node meta = iter.hasNext() ? iter.next() : graphDb.createNode(Const.LABEL_META);
+            iter.close();
+
+            meta.setProperty(Const.PROP_DECOMPOSE_BASE, base);
+            tx.success();
+        }
+        frequency.save(graphDb);
+        Log.info("AdaptiveDecompositionPolicy saved - base " + base);
+    }
+
+    @Override
+    public String toString() {
+        return "adaptive base = " + base;
+    }
+}
@@ -0,0 +1,90 @@
+package hypergraph.mss;
+
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Fork-join cartesian product of two MSSs
+ * Splits the outer family, each part computes its own minimal product
+ * and parts are merged with minimality pruning (addAll).
+ *
+ * Result is null when any part or merge exceeds the cardinality limit,
+ * the other parts stop as soon as they see it.
+ */
+class CartesianTask extends RecursiveTask<MinimalSourceSet> {
+    private static final long serialVersionUID = 1L;
+
+    // number of pair unions computed without splitting
+    private static final int LEAF_WORK = 4096;
+
+    private final List<long[]> outer;
+    private final List<long[]> inner;
+    private final int from;
+    private final int to;
+    private final int limit;
+    private final AtomicBoolean exceeded;
+
+    CartesianTask(List<long[]> outer, List<long[]> inner, int limit) {
+        this(outer, inner, 0, outer.size(), limit, new AtomicBoolean(false));
+    }
+
+    private CartesianTask(List<long[]> outer, List<long[]> inner, int from, int to, int limit, AtomicBoolean exceeded) {
+        this.outer = outer;
+        this.inner = inner;
+        this.from = from;
+        this.to = to;
+        this.limit = limit;
+        this.exceeded = exceeded;
+    }
+
+    @Override
+    protected MinimalSourceSet compute() {
+        if (exceeded.get())
+            return null;
+
+        if (to - from <= 1 || (long) (to - from) * inner.size() <= LEAF_WORK) {
+            return computeSequential();
+        }
+
+        int mid = (from + to) >>> 1;
+        CartesianTask left = new CartesianTask(outer, inner, from, mid, limit, exceeded);
+        CartesianTask right = new CartesianTask(outer, inner, mid, to, limit, exceeded);
+        left.fork();
+        MinimalSourceSet rightResult = right.compute();
+        MinimalSourceSet leftResult = left.join();
+
+        if (leftResult == null || rightResult == null)
+            return null;
+
+        // merge partial minimal families
+        if (leftResult.cardinality() < rightResult.cardinality()) {
+            MinimalSourceSet tmp = leftResult;
+            leftResult = rightResult;
+            rightResult = tmp;
+        }
+        leftResult.addAll(rightResult);
+        return checkLimit(leftResult);
+    }
+
+    private MinimalSourceSet computeSequential() {
+        MinimalSourceSet result = new MinimalSourceSet();
+        for (int i = from; i < to; i++) {
+            long[] s1 = outer.get(i);
+            for (long[] s2 : inner) {
+                result.add(MinimalSourceSet.union(s1, s2));
+            }
+            if (checkLimit(result) == null)
+                return null;
+        }
+        return result;
+    }
+
+    private MinimalSourceSet checkLimit(MinimalSourceSet result) {
+        if (result.cardinality() > limit) {
+            exceeded.set(true);
+            return null;
+        }
+        return exceeded.get() ? null : result;
+    }
+}
@@ -0,0 +1,221 @@
+package hypergraph.mss;
+
+import hypergraph.common.HypergraphSnapshot;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Work queue of the MSS builders
+ * Indexed binary heap of dense node ids ordered by computation rate
+ * (number of incoming hyperedges which are not computed yet), ties in insertion order.
+ *
+ * Rates are counters updated when a hyperedge is marked / unmarked computed,
+ * and a queued node is moved in the heap at once (decrease / increase key),
+ * so the heap order is never stale. contains is O(1), add / poll / key update O(log n).
+ */
+class ComputationQueue {
+    private final HypergraphSnapshot snapshot;
+    private final BitSet computed; // dense hypernode ids
+    private final int[] rate; // dense node id -> number of uncomputed incoming hyperedges
+
+    private final int[] heap;
+    private final int[] position; // dense node id -> index in heap, -1 if not queued
+    private final long[] order; // insertion order for ties
+    private int size = 0;
+    private long sequence = 0;
+
+    ComputationQueue(HypergraphSnapshot snapshot) {
+        this.snapshot = snapshot;
+        int numNodes = snapshot.numNodes();
+
+        computed = new BitSet(snapshot.numHypernodes());
+        rate = new int[numNodes];
+        for (int v = 0; v < numNodes; v++) {
+            // redundant hyperedges are never computed
+            for (int i = snapshot.backwardBegin(v); i < snapshot.backwardEnd(v); i++) {
+                if (!snapshot.isRedundant(snapshot.backward(i)))
+                    rate[v]++;
+            }
+        }
+
+        heap = new int[numNodes];
+        position = new int[numNodes];
+        order = new long[numNodes];
+        Arrays.fill(position, -1);
+    }
+
+    // ---------- computed hyperedges ----------
+
+    boolean isComputed(int hypernode) {
+        return computed.get(hypernode);
+    }
+
+    void setComputed(int hypernode) {
+        if (computed.get(hypernode))
+            return;
+        computed.set(hypernode);
+
+        for (int i = snapshot.targetBegin(hypernode); i < snapshot.targetEnd(hypernode); i++) {
+            int t = snapshot.target(i);
+            rate[t]--;
+            if (position[t] >= 0)
+                siftUp(position[t]);
+        }
+    }
+
+    /**
+     * Unmark hyperedges having node as a source (mss of node is modified)
+     */
+    void unsetComputed(int node) {
+        for (int i = snapshot.forwardBegin(node); i < snapshot.forwardEnd(node); i++) {
+            int h = snapshot.forward(i);
+            if (!computed.get(h))
+                continue;
+            computed.clear(h);
+
+            for (int j = snapshot.targetBegin(h); j < snapshot.targetEnd(h); j++) {
+                int t = snapshot.target(j);
+                rate[t]++;
+                if (position[t] >= 0)
+                    siftDown(position[t]);
+            }
+        }
+    }
+
+    int getComputationRate(int node) {
+        return rate[node];
+    }
+
+    // ---------- queue ----------
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return i-th node in heap order (not sorted)
+     */
+    int get(int i) {
+        return heap[i];
+    }
+
+    boolean contains(int node) {
+        return position[node] >= 0;
+    }
+
+    /**
+     * Enqueue node, a queued node is moved behind the nodes of the same rate
+     */
+    void add(int node) {
+        order[node] = sequence++;
+        if (position[node] >= 0) {
+            siftDown(position[node]);
+            return;
+        }
+
+        heap[size] = node;
+        position[node] = size;
+        siftUp(size++);
+    }
+
+    int poll() {
+        int node = heap[0];
+        position[node] = -1;
+        size--;
+        if (size > 0) {
+            heap[0] = heap[size];
+            position[heap[0]] = 0;
+            siftDown(0);
+        }
+        return node;
+    }
+
+    // ---------- checkpoint ----------
+
+    /**
+     * Write computed hyperedges and queued nodes, rates are derived from computed
+     */
+    void write(DataOutput out) throws IOException {
+        long[] words = computed.toLongArray();
+        out.writeInt(words.length);
+        for (long w : words) {
+            out.writeLong(w);
+        }
+
+        out.writeLong(sequence);
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeInt(heap[i]);
+            out.writeLong(order[heap[i]]);
+        }
+    }
+
+    static ComputationQueue read(HypergraphSnapshot snapshot, DataInput in) throws IOException {
+        ComputationQueue queue = new ComputationQueue(snapshot);
+
+        long[] words = new long[in.readInt()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = in.readLong();
+        }
+        BitSet computed = BitSet.valueOf(words);
+        for (int h = computed.nextSetBit(0); h >= 0; h = computed.nextSetBit(h + 1)) {
+            queue.setComputed(h);
+        }
+
+        // same rates, so the written heap order is still a heap
+        queue.sequence = in.readLong();
+        queue.size = in.readInt();
+        for (int i = 0; i < queue.size; i++) {
+            int node = in.readInt();
+            queue.heap[i] = node;
+            queue.position[node] = i;
+            queue.order[node] = in.readLong();
+        }
+        return queue;
+    }
+
+    private boolean less(int a, int b) {
+        if (rate[a] != rate[b])
+            return rate[a] < rate[b];
+        return order[a] < order[b];
+    }
+
+    private void siftUp(int i) {
+        int node = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!less(node, heap[parent]))
+                break;
+            heap[i] = heap[parent];
+            position[heap[i]] = i;
+            i = parent;
+        }
+        heap[i] = node;
+        position[node] = i;
+    }
+
+    private void siftDown(int i) {
+        int node = heap[i];
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && less(heap[child + 1], heap[child]))
+                child++;
+            if (!less(heap[child], node))
+                break;
+            heap[i] = heap[child];
+            position[heap[i]] = i;
+            i = child;
+        }
+        heap[i] = node;
+        position[node] = i;
+    }
+}
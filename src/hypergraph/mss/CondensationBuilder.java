@@ -0,0 +1,292 @@
+package hypergraph.mss;
+
+import hypergraph.common.Const;
+import hypergraph.common.DecomposedIdSet;
+import hypergraph.common.HypergraphCondensation;
+import hypergraph.common.HypergraphDatabase;
+import hypergraph.common.HypergraphSnapshot;
+import hypergraph.util.Log;
+import hypergraph.util.Measure;
+import org.neo4j.graphdb.*;
+
+import java.util.*;
+
+/**
+ * SCC condensation builder
+ * Strongly connected components are processed in topological order of the condensation DAG.
+ * MSSs of a component only depend on itself and earlier components, so
+ * - acyclic component : every incoming hyperedge is already final, computed once
+ * - cyclic component : fixpoint iteration over hyperedges inside the component only
+ * After a component is done, its outgoing hyperedges are computed once for later components.
+ * MSSs of a done component are final, they are handed to the index writer right away
+ * so commits overlap with the remaining components.
+ *
+ * No decomposition, same result as NaiveBuilder without re-enqueueing across cycles.
+ */
+public class CondensationBuilder implements MinimalSourceSetBuilder {
+    private static GraphDatabaseService graphDb;
+    protected Map<Long, MinimalSourceSet> mssMap;
+    private SourceSetPool pool;
+    private HypergraphSnapshot snapshot;
+    private HypergraphCondensation condensation;
+    private BitSet visited; // dense node ids
+    private BitSet computed; // dense hypernode ids, propagated out of their component
+    private BitSet queued; // dense hypernode ids, in the worklist of a cyclic component
+    private MinimalSourceSetWriter writer;
+
+    // statistic
+    private Measure measureIterations;
+    private int totalComputation;
+    private int maxComponentSize;
+
+    public CondensationBuilder() {
+        graphDb = HypergraphDatabase.getGraphDatabase();
+        mssMap = new HashMap<>();
+        pool = new SourceSetPool();
+        visited = new BitSet();
+        computed = new BitSet();
+        queued = new BitSet();
+    }
+
+    /**
+     * Keep about heapBudget bytes of MSSs on heap, spill the rest to a temporary file
+     * @param heapBudget approximate bytes, set before run
+     */
+    public void setMemoryBudget(long heapBudget) {
+        mssMap = new SpillingMinimalSourceSetMap(heapBudget);
+    }
+
+    public void run() {
+        long t = System.currentTimeMillis(); // measure building time
+        measureIterations = new Measure("SCC iterations");
+        totalComputation = 0;
+        maxComponentSize = 0;
+        MinimalSourceSet.resetStatistic();
+
+        Log.info("CondensationBuilder run");
+
+        try (Transaction tx = graphDb.beginTx()) {
+            // find all startable nodes
+            Set<Node> start = new HashSet<>();
+            ResourceIterator<Node> nodeIter = graphDb.findNodes(Const.LABEL_STARTABLE);
+            while (nodeIter.hasNext()) {
+                Node v = nodeIter.next();
+                start.add(v);
+            }
+
+            // compute with startable nodes, mms are written while computing
+            writer = new MinimalSourceSetWriter(Const.PROP_MSS);
+            try {
+                compute(start);
+            } finally {
+                writer.close();
+                writer = null;
+            }
+            tx.success();
+        }
+        // nothing is decomposed, replaces the ids of an earlier build
+        HypergraphDatabase.setDecomposedIdSet(DecomposedIdSet.of(Collections.emptySet()));
+
+        Log.info("Build MSSIndex complete (" + (System.currentTimeMillis() - t) + " ms)");
+        Log.info("components " + condensation.numComponents() + ", cyclic " + condensation.numCyclicComponents()
+                + ", largest " + maxComponentSize);
+        Log.info("totalComputation " + totalComputation);
+        measureIterations.printStatistic();
+        Log.info("pruned candidates " + MinimalSourceSet.getPrunedCount());
+        Log.info("indexed minimality checks " + MinimalSourceSet.getIndexedCheckCount());
+        if (mssMap instanceof SpillingMinimalSourceSetMap)
+            ((SpillingMinimalSourceSetMap) mssMap).printStatistic();
+        pool.printStatistic();
+    }
+
+    protected void compute(Set<Node> start) {
+        snapshot = HypergraphDatabase.getHypergraphSnapshot();
+        condensation = HypergraphCondensation.compute(snapshot);
+
+        // start nodes
+        for (Node node : start) {
+            int s = snapshot.toNode(node.getId());
+            setVisited(s);
+            MinimalSourceSet mss = getOrCreateMinimalSourceSet(s);
+            mss.add(node.getId());
+        }
+
+        for (int c = 0; c < condensation.numComponents(); c++) {
+            maxComponentSize = Math.max(maxComponentSize, condensation.size(c));
+
+            if (condensation.isCyclic(c)) {
+                int iterations = iterate(c);
+                measureIterations.addData(iterations);
+                Log.debug("component " + c + " size " + condensation.size(c) + " iterations " + iterations);
+            }
+
+            // mss of members are final now
+            propagate(c);
+            save(c);
+        }
+    }
+
+    // hand final mss of members of component c to the writer
+    private void save(int c) {
+        if (writer == null)
+            return;
+
+        for (int i = condensation.memberBegin(c); i < condensation.memberEnd(c); i++) {
+            long id = snapshot.nodeId(condensation.member(i));
+            MinimalSourceSet mss = mssMap.get(id);
+            if (mss != null)
+                writer.write(id, mss);
+        }
+    }
+
+    /**
+     * Fixpoint inside cyclic component c
+     * @return number of hyperedge computations
+     */
+    private int iterate(int c) {
+        Queue<Integer> work = new ArrayDeque<>();
+        for (int i = condensation.memberBegin(c); i < condensation.memberEnd(c); i++) {
+            enqueueInternal(condensation.member(i), c, work);
+        }
+
+        int iterations = 0;
+        while (!work.isEmpty()) {
+            int h = work.poll();
+            queued.clear(h);
+
+            // check enabled (all source visited)
+            if (!isEnabled(h))
+                continue;
+
+            iterations++;
+            totalComputation++;
+
+            // calculate mss of hyperedge
+            MinimalSourceSet mssHyperedge = computeMinimalSourceSet(h);
+            pool.intern(mssHyperedge);
+
+            // update targets inside component, others are done by propagate
+            for (int j = snapshot.targetBegin(h); j < snapshot.targetEnd(h); j++) {
+                int t = snapshot.target(j);
+                if (condensation.component(t) != c)
+                    continue;
+
+                setVisited(t);
+                MinimalSourceSet mssTarget = getOrCreateMinimalSourceSet(t);
+                if (mssTarget.addAll(mssHyperedge))
+                    enqueueInternal(t, c, work);
+            }
+        }
+        return iterations;
+    }
+
+    // enqueue hyperedges from node having a target inside component c
+    private void enqueueInternal(int node, int c, Queue<Integer> work) {
+        for (int i = snapshot.forwardBegin(node); i < snapshot.forwardEnd(node); i++) {
+            int h = snapshot.forward(i);
+            if (queued.get(h) || snapshot.isRedundant(h))
+                continue;
+
+            for (int j = snapshot.targetBegin(h); j < snapshot.targetEnd(h); j++) {
+                if (condensation.component(snapshot.target(j)) == c) {
+                    queued.set(h);
+                    work.add(h);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Compute outgoing hyperedges of component c whose sources are all final,
+     * and add them to the targets in later components
+     */
+    private void propagate(int c) {
+        for (int i = condensation.memberBegin(c); i < condensation.memberEnd(c); i++) {
+            int s = condensation.member(i);
+            for (int k = snapshot.forwardBegin(s); k < snapshot.forwardEnd(s); k++) {
+                int h = snapshot.forward(k);
+
+                // skip if already computed, redundant or some source is in a later component
+                if (computed.get(h) || snapshot.isRedundant(h) || !isFinal(h, c))
+                    continue;
+                computed.set(h);
+
+                // check enabled (all source visited)
+                if (!isEnabled(h))
+                    continue;
+
+                totalComputation++;
+
+                // calculate mss of hyperedge
+                MinimalSourceSet mssHyperedge = computeMinimalSourceSet(h);
+                pool.intern(mssHyperedge);
+
+                // get target node
+                for (int j = snapshot.targetBegin(h); j < snapshot.targetEnd(h); j++) {
+                    int t = snapshot.target(j);
+                    if (condensation.component(t) == c)
+                        continue;
+
+                    setVisited(t);
+                    Log.debug("add target " + snapshot.nodeId(t));
+
+                    MinimalSourceSet mssTarget = getOrCreateMinimalSourceSet(t);
+                    mssTarget.addAll(mssHyperedge);
+                }
+            }
+        }
+    }
+
+    // true if no source of hypernode is in a component after c
+    private boolean isFinal(int hypernode, int c) {
+        for (int i = snapshot.sourceBegin(hypernode); i < snapshot.sourceEnd(hypernode); i++) {
+            if (condensation.component(snapshot.source(i)) > c)
+                return false;
+        }
+        return true;
+    }
+
+    private MinimalSourceSet getOrCreateMinimalSourceSet(int node) {
+        long id = snapshot.nodeId(node);
+        MinimalSourceSet mss = mssMap.get(id);
+        if (mss != null)
+            return mss;
+
+        // allocate new mss
+        mss = new MinimalSourceSet();
+        mssMap.put(id, mss);
+        return mss;
+    }
+
+    private MinimalSourceSet computeMinimalSourceSet(int hypernode) {
+        MinimalSourceSet mss = null;
+        for (int i = snapshot.sourceBegin(hypernode); i < snapshot.sourceEnd(hypernode); i++) {
+            int s = snapshot.source(i);
+            if (mss == null) {
+                mss = getOrCreateMinimalSourceSet(s);
+            } else {
+                mss = mss.cartesian(getOrCreateMinimalSourceSet(s));
+            }
+            Log.debug("mss grow " + mss.cardinality());
+        }
+        return mss;
+    }
+
+    private void setVisited(int node) {
+        visited.set(node);
+    }
+
+    private boolean isVisited(int node) {
+        return visited.get(node);
+    }
+
+    private boolean isEnabled(int hypernode) {
+        for (int i = snapshot.sourceBegin(hypernode); i < snapshot.sourceEnd(hypernode); i++) {
+            if (!isVisited(snapshot.source(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
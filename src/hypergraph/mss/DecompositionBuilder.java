@@ -1,7 +1,9 @@
 package hypergraph.mss;
 
 import hypergraph.common.Const;
+import hypergraph.common.DecomposedIdSet;
 import hypergraph.common.HypergraphDatabase;
+import hypergraph.common.HypergraphSnapshot;
 import hypergraph.util.Log;
 import hypergraph.util.Measure;
 import org.neo4j.graphdb.*;
@@ -17,8 +19,10 @@ import java.util.*;
 public class DecompositionBuilder implements MinimalSourceSetBuilder {
     private static GraphDatabaseService graphDb;
     protected Map<Long, MinimalSourceSet> mssMap;
-    private Set<Long> visited;
-    private Set<Long> computed;
+    private HypergraphSnapshot snapshot;
+    private BitSet visited; // dense node ids
+    private ComputationQueue queue;
+    private BitSet decomposed; // dense hypernode ids
 
     // decomposition parameter
     private int maxMSS;
@@ -36,8 +40,16 @@ public class DecompositionBuilder implements MinimalSourceSetBuilder {
         this.maxMSS = maxMSS;
         graphDb = HypergraphDatabase.getGraphDatabase();
         mssMap = new HashMap<>();
-        visited = new HashSet<>();
-        computed = new HashSet<>();
+        visited = new BitSet();
+        decomposed = new BitSet();
+    }
+
+    /**
+     * Keep about heapBudget bytes of MSSs on heap, spill the rest to a temporary file
+     * @param heapBudget approximate bytes, set before run
+     */
+    public void setMemoryBudget(long heapBudget) {
+        mssMap = new SpillingMinimalSourceSetMap(heapBudget);
     }
 
     public void run() {
@@ -46,6 +58,7 @@ public class DecompositionBuilder implements MinimalSourceSetBuilder {
         statDecomposed = 0;
         totalComputation = 0;
         queueLen = 0;
+        MinimalSourceSet.resetStatistic();
 
         Log.info("MSS builder maxMSS = " + maxMSS);
 
@@ -72,6 +85,10 @@ public class DecompositionBuilder implements MinimalSourceSetBuilder {
         Log.info("Decomposed MSS " + statDecomposed);
         Log.info("totalComputation " + totalComputation);
         Log.info("queueLen " + queueLen);
+        Log.info("pruned candidates " + MinimalSourceSet.getPrunedCount());
+        Log.info("indexed minimality checks " + MinimalSourceSet.getIndexedCheckCount());
+        if (mssMap instanceof SpillingMinimalSourceSetMap)
+            ((SpillingMinimalSourceSetMap) mssMap).printStatistic();
     }
 
     @Deprecated
@@ -82,7 +99,7 @@ public class DecompositionBuilder implements MinimalSourceSetBuilder {
             Long id = entry.getKey();
             MinimalSourceSet mss = entry.getValue();
             Node node = graphDb.getNodeById(id);
-            node.setProperty(Const.PROP_MSS, mss.toString());
+            MinimalSourceSetCodec.write(node, Const.PROP_MSS, mss);
 
             Log.debug("MSS(" + id + ") = " + mss.toString());
             measureSize.addData(mss.size());
@@ -93,66 +110,40 @@ public class DecompositionBuilder implements MinimalSourceSetBuilder {
     }
 
     private void saveTx() {
-        Measure measure = new Measure("MSS size");
-        Iterator<Map.Entry<Long, MinimalSourceSet>> iter = mssMap.entrySet().iterator();
-        while (saveTxHelper(iter, measure));
-        measure.printStatistic();
-    }
-
-    private boolean saveTxHelper(Iterator<Map.Entry<Long, MinimalSourceSet>> iter, Measure measure) {
-        final int maxCount = 5000;
-        int count = 0;
-        try (Transaction tx = graphDb.beginTx()) {
-            while (iter.hasNext()) {
-                Map.Entry<Long, MinimalSourceSet> entry = iter.next();
-
-                Long id = entry.getKey();
-                MinimalSourceSet mss = entry.getValue();
-                Node node = graphDb.getNodeById(id);
-                node.setProperty(Const.PROP_MSS, mss.toString());
-
-                Log.debug("MSS(" + id + ") = " + mss.toString());
-                measure.addData(mss.size());
-
-                if (count == maxCount) {
-                    tx.success();
-                    return true;
-                }
-            }
-            tx.success();
+        try (MinimalSourceSetWriter writer = new MinimalSourceSetWriter(Const.PROP_MSS)) {
+            writer.writeAll(mssMap);
         }
-        return false;
+        HypergraphDatabase.setDecomposedIdSet(DecomposedIdSet.of(snapshot, decomposed));
     }
 
-    private void printQueue(Queue<Node> queue) {
+    private void printQueue() {
         String str = "";
-        for (Node n : queue) {
-            str += getComputationRate(n) + ":" + n.getId() + ", ";
+        for (int i = 0; i < queue.size(); i++) {
+            int n = queue.get(i);
+            str += getComputationRate(n) + ":" + snapshot.nodeId(n) + ", ";
         }
         Log.debug(str);
     }
 
     protected void compute(Set<Node> start) {
-        PriorityQueue<Node> queue = new PriorityQueue<Node>(new Comparator<Node>() {
-            @Override
-            public int compare(Node n1, Node n2) {
-                return getComputationRate(n1) - getComputationRate(n2);
-            }
-        });
+        snapshot = HypergraphDatabase.getHypergraphSnapshot();
+
+        queue = new ComputationQueue(snapshot);
 
         // enqueue start nodes
-        for (Node s : start) {
+        for (Node node : start) {
+            int s = snapshot.toNode(node.getId());
             setVisited(s);
             queue.add(s);
             MinimalSourceSet mss = getMinimalSourceSet(s);
-            mss.add(s.getId());
+            mss.add(node.getId());
         }
 
         while (!queue.isEmpty()) {
             // dequeue a normal node (one of source nodes)
-            printQueue(queue);
-            Node s = queue.poll();
-            Log.debug("node " + s.getId());
+            printQueue();
+            int s = queue.poll();
+            Log.debug("node " + snapshot.nodeId(s));
             queueLen++;
 
             if (getComputationRate(s) != 0) {
@@ -160,13 +151,12 @@ public class DecompositionBuilder implements MinimalSourceSetBuilder {
             }
 
             // get forward star
-            Iterable<Relationship> fromSources = s.getRelationships(Direction.OUTGOING, Const.REL_FROM_SOURCE);
-            for (Relationship fromSource : fromSources) {
+            for (int i = snapshot.forwardBegin(s); i < snapshot.forwardEnd(s); i++) {
                 // get pseudo hypernode and check enabled
-                Node h = fromSource.getEndNode();
+                int h = snapshot.forward(i);
 
-                // skip if already computed and not modified
-                if (isComputed(h))
+                // skip if already computed and not modified, or redundant
+                if (isComputed(h) || snapshot.isRedundant(h))
                     continue;
 
                 // check enabled (all source visited)
@@ -180,12 +170,11 @@ public class DecompositionBuilder implements MinimalSourceSetBuilder {
                 MinimalSourceSet mssHyperedge = computeMinimalSourceSet(h);
 
                 // get target node
-                Iterable<Relationship> toTargets = h.getRelationships(Direction.OUTGOING, Const.REL_TO_TARGET);
-                for (Relationship toTarget : toTargets) {
-                    Node t = toTarget.getEndNode();
+                for (int j = snapshot.targetBegin(h); j < snapshot.targetEnd(h); j++) {
+                    int t = snapshot.target(j);
 
                     setVisited(t);
-                    Log.debug("add target " + t.getId());
+                    Log.debug("add target " + snapshot.nodeId(t));
 
                     // calculate and update mss
                     MinimalSourceSet mssTarget = getMinimalSourceSet(t);
@@ -194,8 +183,7 @@ public class DecompositionBuilder implements MinimalSourceSetBuilder {
                     boolean modified = mssTarget.addAll(mssHyperedge);
                     if (modified) {
                         if (queue.contains(t)) {
-                            queue.remove(t);
-                            Log.debug("already contains node " + t.getId());
+                            Log.debug("already contains node " + snapshot.nodeId(t));
                         }
                         queue.add(t);
                         unsetComputed(t);
@@ -205,8 +193,9 @@ public class DecompositionBuilder implements MinimalSourceSetBuilder {
         }
     }
 
-    private MinimalSourceSet getMinimalSourceSet(Node node) {
-        MinimalSourceSet mss = mssMap.get(node.getId());
+    private MinimalSourceSet getMinimalSourceSet(int node) {
+        long id = snapshot.nodeId(node);
+        MinimalSourceSet mss = mssMap.get(id);
         if (mss != null)
             return mss;
 
@@ -215,20 +204,19 @@ public class DecompositionBuilder implements MinimalSourceSetBuilder {
 //        if (node.hasLabel(Const.LABEL_STARTABLE))
 //            mss.add(node.getId());
 
-        mssMap.put(node.getId(), mss);
+        mssMap.put(id, mss);
         return mss;
     }
 
-    private MinimalSourceSet computeMinimalSourceSet(Node hypernode) {
+    private MinimalSourceSet computeMinimalSourceSet(int hypernode) {
         // check already decomposed
-        if (hypernode.hasProperty("decomposed")) {
-            return new MinimalSourceSet(hypernode.getId());
+        if (isDecomposed(hypernode)) {
+            return new MinimalSourceSet(snapshot.hypernodeId(hypernode));
         }
 
         MinimalSourceSet mss = null;
-        Iterable<Relationship> rels = hypernode.getRelationships(Direction.INCOMING, Const.REL_FROM_SOURCE);
-        for (Relationship rel : rels) {
-            Node s = rel.getStartNode();
+        for (int i = snapshot.sourceBegin(hypernode); i < snapshot.sourceEnd(hypernode); i++) {
+            int s = snapshot.source(i);
             if (mss == null) {
                 mss = getMinimalSourceSet(s);
             } else {
@@ -239,62 +227,54 @@ public class DecompositionBuilder implements MinimalSourceSetBuilder {
 
             // decomposition
             if (mss.cardinality() > maxMSS) {
-                hypernode.setProperty("decomposed", true);
+                setDecomposed(hypernode);
                 statDecomposed++;
-                return new MinimalSourceSet(hypernode.getId());
+                return new MinimalSourceSet(snapshot.hypernodeId(hypernode));
             }
         }
         return mss;
     }
 
-    private void setVisited(Node node) {
-        visited.add(node.getId());
+    // recorded in the DecomposedIdSet of the index when saved
+    private void setDecomposed(int hypernode) {
+        decomposed.set(hypernode);
     }
 
-    private boolean isVisited(Node node) {
-        return visited.contains(node.getId());
+    private boolean isDecomposed(int hypernode) {
+        return decomposed.get(hypernode);
     }
 
-    private boolean isEnabled(Node hypernode) {
-        Iterable<Relationship> rels = hypernode.getRelationships(Direction.INCOMING, Const.REL_FROM_SOURCE);
-        for (Relationship rel : rels) {
-            if (!isVisited(rel.getStartNode())) {
+    private void setVisited(int node) {
+        visited.set(node);
+    }
+
+    private boolean isVisited(int node) {
+        return visited.get(node);
+    }
+
+    private boolean isEnabled(int hypernode) {
+        for (int i = snapshot.sourceBegin(hypernode); i < snapshot.sourceEnd(hypernode); i++) {
+            if (!isVisited(snapshot.source(i))) {
                 return false;
             }
         }
         return true;
     }
 
-    //TODO: how to handle changes
-    private int getComputationRate(Node node) {
-        int countComputed = 0;
-        int countTotal = 0;
-
-        // get incoming hyperedges
-        Iterable<Relationship> rels = node.getRelationships(Direction.INCOMING, Const.REL_TO_TARGET);
-        for (Relationship rel : rels) {
-            Node h = rel.getStartNode();
-            if (isComputed(h))
-                countComputed++;
-            countTotal++;
-        }
-
-        return countTotal - countComputed;
+    // number of incoming hyperedges not computed yet, kept up to date by queue
+    private int getComputationRate(int node) {
+        return queue.getComputationRate(node);
     }
 
-    private void setComputed(Node node) {
-        computed.add(node.getId());
+    private void setComputed(int hypernode) {
+        queue.setComputed(hypernode);
     }
 
-    private boolean isComputed(Node node) {
-        return computed.contains(node.getId());
+    private boolean isComputed(int hypernode) {
+        return queue.isComputed(hypernode);
     }
 
-    private void unsetComputed(Node node) {
-        Iterable<Relationship> rels = node.getRelationships(Direction.OUTGOING, Const.REL_FROM_SOURCE);
-        for (Relationship rel : rels) {
-            Node h = rel.getEndNode();
-            computed.remove(h.getId());
-        }
+    private void unsetComputed(int node) {
+        queue.unsetComputed(node);
     }
 }
@@ -1,15 +1,26 @@
 package hypergraph.mss;
 
 import hypergraph.common.Const;
+import hypergraph.common.DecomposedIdSet;
 import hypergraph.common.HypergraphDatabase;
 import hypergraph.util.Log;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * Find all MSS recovering from decomposed MSS
@@ -19,21 +30,39 @@ import java.util.Set;
 public class DecompositionFinder implements MinimalSourceSetFinder {
     private static GraphDatabaseService graphDb;
     private Set<Long> reconstructed;
+    private ReconstructionCache cache;
+    private DecomposedIdSet decomposed; // loaded by each query
+    private int parallelism;
+    private ForkJoinPool pool; // created by the first parallel fetch of a query, shut down after it
+
+    // statistic
+    private int statLevels;
+    private int statParallelFetch;
 
     public DecompositionFinder() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param parallelism number of threads fetching reconstructions, 1 for the calling thread
+     */
+    public DecompositionFinder(int parallelism) {
+        this.parallelism = parallelism;
         graphDb = HypergraphDatabase.getGraphDatabase();
         reconstructed = new HashSet<>();
+        cache = ReconstructionCache.getInstance();
     }
 
     public MinimalSourceSet findWithSampling(Node target) {
+        HypergraphDatabase.getQueryFrequency().record(target.getId());
+        decomposed = HypergraphDatabase.getDecomposedIdSet();
         MinimalSourceSet mss = getMinimalSourceSet(target);
         MinimalSourceSet result = new MinimalSourceSet();
 
         for (Set<Long> set : mss.getSourceSets()) {
             boolean decomposed = false;
             for (Long s : set) {
-                Node v = graphDb.getNodeById(s);
-                if (v.hasProperty(Const.PROP_DECOMPOSED)) {
+                if (this.decomposed.contains(s)) {
                     decomposed = true;
                     Log.debug("decomposed node!");
                     break;
@@ -49,104 +78,191 @@ public class DecompositionFinder implements MinimalSourceSetFinder {
 
     @Override
     public MinimalSourceSet find(Node target) {
-        MinimalSourceSet mss = getMinimalSourceSet(target);
+        HypergraphDatabase.getQueryFrequency().record(target.getId());
+        try {
+            return new MinimalSourceSet(cache.find(target, "DecompositionFinder", this::reconstructAll));
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+                pool = null;
+            }
+        }
+    }
+
+    /**
+     * Reconstruct level by level
+     * Decomposed ids of the mss are fetched together (concurrently if parallel), then the ones
+     * no fetched reconstruction contains are independent and substituted at once,
+     * each group of source sets with the same independent ids by one combined cartesian.
+     * Sets containing an id reconstructed before are dropped, as a cycle through it.
+     */
+    private MinimalSourceSet reconstructAll(Node target) {
+        reconstructed = new HashSet<>();
+        statLevels = 0;
+        statParallelFetch = 0;
+        decomposed = HypergraphDatabase.getDecomposedIdSet();
+        MinimalSourceSet mss = new MinimalSourceSet(getMinimalSourceSet(target));
+
+        while (true) {
+            Set<Long> cyclic = new HashSet<>();
+            for (long[] s : mss.sets()) {
+                for (long nodeId : s) {
+                    if (reconstructed.contains(nodeId))
+                        cyclic.add(nodeId);
+                }
+            }
+            for (long nodeId : cyclic) {
+                mss.removeContains(nodeId);
+            }
+
+            // decomposed ids to reconstruct in mss order
+            Set<Long> pending = new LinkedHashSet<>();
+            for (long[] s : mss.sets()) {
+                for (long nodeId : s) {
+                    if (decomposed.contains(nodeId))
+                        pending.add(nodeId);
+                }
+            }
+            if (pending.isEmpty())
+                break;
 
-        // Naive implementation
-        long decomposedId = needReconstruction(mss);
-        while (decomposedId > 0) {
-            mss = reconstruct(mss);
-            decomposedId = needReconstruction(mss);
+            Map<Long, MinimalSourceSet> fetched = fetch(pending);
+            Set<Long> independent = findIndependent(pending, fetched);
+            reconstructed.addAll(independent);
+            mss = substitute(mss, independent, fetched);
+            statLevels++;
         }
 
+        Log.debug("DecompositionFinder reconstructed " + reconstructed.size() + " ids in " + statLevels
+                + " levels, fetched in parallel " + statParallelFetch);
         return mss;
     }
 
-    private MinimalSourceSet getMinimalSourceSet(Node target) {
-        if (!target.hasProperty(Const.PROP_MSS))
-            return new MinimalSourceSet();
-        return MinimalSourceSet.valueOf((String) target.getProperty(Const.PROP_MSS));
-    }
-
-    private MinimalSourceSet reconstruct(MinimalSourceSet mss, long decomposedId) {
-        /*
-        A = {a, gf, h}
-        mss = {Abc, Abe, ADe}
-        mss = A cartesian {bc, be, De}
-         */
-        MinimalSourceSet mss1 = new MinimalSourceSet(); // mss containing decomposedId
-        MinimalSourceSet mss2 = new MinimalSourceSet(); // others (does not need to be join with A)
-
-        for (Set<Long> s : mss.getSourceSets()) {
-            if (s.contains(decomposedId)) {
-                Set<Long> t = new HashSet<>(s);
-                t.remove(decomposedId);
-                mss1.getSourceSets().add(t);
-            } else {
-                mss2.getSourceSets().add(s);
+    /**
+     * Reconstructions of ids, fetched by parallelism threads if there are several
+     */
+    private Map<Long, MinimalSourceSet> fetch(Set<Long> ids) {
+        Map<Long, MinimalSourceSet> fetched = new HashMap<>();
+        if (parallelism <= 1 || ids.size() == 1) {
+            for (long id : ids) {
+                fetched.put(id, getReconstruction(graphDb.getNodeById(id)));
             }
+            return fetched;
         }
 
-        if (mss1.cardinality() != 0) {
-            Node d = graphDb.getNodeById(decomposedId);
-            MinimalSourceSet mss3 = computeMinimalSourceSet(d); // A in example
-            mss3.removeContains(decomposedId);
-            mss2.addAll(mss3.cartesian(mss1));
+        // transactions are bound to threads, each fetch reads in its own
+        if (pool == null)
+            pool = new ForkJoinPool(parallelism);
+        Map<Long, ForkJoinTask<MinimalSourceSet>> tasks = new LinkedHashMap<>();
+        for (long id : ids) {
+            tasks.put(id, pool.submit(() -> {
+                try (Transaction tx = graphDb.beginTx()) {
+                    MinimalSourceSet mss = getReconstruction(graphDb.getNodeById(id));
+                    tx.success();
+                    return mss;
+                }
+            }));
         }
-
-        return mss2;
+        for (Map.Entry<Long, ForkJoinTask<MinimalSourceSet>> entry : tasks.entrySet()) {
+            fetched.put(entry.getKey(), entry.getValue().join());
+        }
+        statParallelFetch += ids.size();
+        return fetched;
     }
 
-    private MinimalSourceSet reconstruct(MinimalSourceSet mss) {
-        MinimalSourceSet recon = new MinimalSourceSet(mss);
+    /**
+     * Ids not contained in the reconstruction of any pending id, so substituting the others later
+     * never brings one back (it would be dropped as a cycle). If every id is, the first one alone.
+     */
+    private Set<Long> findIndependent(Set<Long> pending, Map<Long, MinimalSourceSet> fetched) {
+        Set<Long> referenced = new HashSet<>();
+        for (MinimalSourceSet mss : fetched.values()) {
+            for (long[] s : mss.sets()) {
+                for (long nodeId : s) {
+                    if (pending.contains(nodeId))
+                        referenced.add(nodeId);
+                }
+            }
+        }
 
-        for (Set<Long> s : mss.getSourceSets()) {
-            for (Long nodeId : s) {
-                Node v = graphDb.getNodeById(nodeId);
+        Set<Long> independent = new LinkedHashSet<>();
+        for (long id : pending) {
+            if (!referenced.contains(id))
+                independent.add(id);
+        }
+        if (independent.isEmpty())
+            independent.add(pending.iterator().next());
+        return independent;
+    }
 
-                // if decomposed
-                if (v.hasLabel(Const.LABEL_HYPERNODE)) {
+    /**
+        A = {a, gf, h}, B = {b, c}
+        mss = {ABd, ABe, Af, g}
+        mss = {d, e} cartesian A cartesian B + {f} cartesian A + {g}
+     */
+    private MinimalSourceSet substitute(MinimalSourceSet mss, Set<Long> ids, Map<Long, MinimalSourceSet> fetched) {
+        MinimalSourceSet result = new MinimalSourceSet();
 
-                    // check already reconstructed
-                    if (reconstructed.contains(nodeId)) {
-                        recon.removeContains(nodeId);
-                        return recon;
-                    }
+        // source sets without the ids, grouped by the ids they contain
+        Map<List<Long>, MinimalSourceSet> groups = new LinkedHashMap<>();
+        for (long[] s : mss.sets()) {
+            List<Long> key = new ArrayList<>();
+            for (long nodeId : s) {
+                if (ids.contains(nodeId))
+                    key.add(nodeId);
+            }
+            if (key.isEmpty()) {
+                result.add(s);
+                continue;
+            }
 
-                    reconstructed.add(nodeId);
+            long[] rest = new long[s.length - key.size()];
+            int n = 0;
+            for (long nodeId : s) {
+                if (!ids.contains(nodeId))
+                    rest[n++] = nodeId;
+            }
+            // same ids removed from a minimal family, still minimal
+            groups.computeIfAbsent(key, (k) -> new MinimalSourceSet()).append(rest);
+        }
 
-                    if (s.size() == 1) {
-                        MinimalSourceSet mssV = computeMinimalSourceSet(v);
-                        recon.addAll(mssV);
-                        recon.removeContains(v.getId());
-                        return recon;
-                    }
+        for (Map.Entry<List<Long>, MinimalSourceSet> group : groups.entrySet()) {
+            // join small ones first to keep intermediate products small
+            List<MinimalSourceSet> families = new ArrayList<>();
+            families.add(group.getValue());
+            for (long id : group.getKey()) {
+                families.add(fetched.get(id));
+            }
+            families.sort(Comparator.comparingInt(MinimalSourceSet::cardinality));
 
-                    else {
-                        return reconstruct(mss, v.getId());
-                    }
-                }
+            MinimalSourceSet product = null;
+            for (MinimalSourceSet family : families) {
+                product = product == null ? family : product.cartesian(family);
             }
+            result.addAll(product);
         }
 
-        return recon;
+        return result;
     }
 
-    private long needReconstruction(MinimalSourceSet mss) {
-//        Log.debug("call needReconstruction of mss(" + mss.cardinality() + "):");
-//        Log.debug(mss.toString());
+    private MinimalSourceSet getMinimalSourceSet(Node target) {
+        return cache.read(target, Const.PROP_MSS);
+    }
 
-        for (Set<Long> s : mss.getSourceSets()) {
-            for (Long nodeId : s) {
-                Node v = graphDb.getNodeById(nodeId);
-                if (v.hasLabel(Const.LABEL_HYPERNODE)) {
-//                    Log.debug("needs recon at " + nodeId);
-//                    Log.debug("of " + s);
-                    return nodeId;
-                }
-            }
-        }
-//        Log.debug("reconstructed!");
-        return -1;
+    /**
+     * MSS of a decomposed hypernode without source sets containing itself, shared through the cache
+     */
+    private MinimalSourceSet getReconstruction(Node hypernode) {
+        return cache.reconstruct(hypernode, (h) -> {
+            MinimalSourceSet mss = computeMinimalSourceSet(h);
+            if (mss == null)
+                return new MinimalSourceSet();
+
+            // cached MSS of a single source is shared
+            mss = new MinimalSourceSet(mss);
+            mss.removeContains(h.getId());
+            return mss;
+        });
     }
 
     private MinimalSourceSet computeMinimalSourceSet(Node hypernode) {
@@ -0,0 +1,26 @@
+package hypergraph.mss;
+
+import hypergraph.common.HypergraphSnapshot;
+
+/**
+ * Decides where decomposition builders decompose
+ * A hyperedge (or node, see NodeDecompositionBuilder) is decomposed when its MSS would have
+ * more source sets than its limit. The limit is the cardinality passed to cartesian,
+ * so the output size is estimated by the product itself, aborted as soon as it is exceeded.
+ */
+public interface DecompositionPolicy {
+    /**
+     * Called by the builder before computing, with the snapshot it computes on
+     */
+    void init(HypergraphSnapshot snapshot);
+
+    /**
+     * @return maximum MSS cardinality of dense hypernode id
+     */
+    int limit(int hypernode);
+
+    /**
+     * @return maximum MSS cardinality of dense node id
+     */
+    int nodeLimit(int node);
+}
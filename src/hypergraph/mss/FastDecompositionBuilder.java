@@ -1,11 +1,15 @@
 package hypergraph.mss;
 
 import hypergraph.common.Const;
+import hypergraph.common.DecomposedIdSet;
 import hypergraph.common.HypergraphDatabase;
+import hypergraph.common.HypergraphSnapshot;
 import hypergraph.util.Log;
-import hypergraph.util.Measure;
 import org.neo4j.graphdb.*;
 
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 
 /**
@@ -17,27 +21,66 @@ import java.util.*;
 public class FastDecompositionBuilder implements MinimalSourceSetBuilder {
     private static GraphDatabaseService graphDb;
     protected Map<Long, MinimalSourceSet> mssMap;
-    private Set<Long> visited;
-    private Set<Long> computed;
+    private SourceSetPool pool;
+    private HypergraphSnapshot snapshot;
+    private BitSet visited; // dense node ids
+    private ComputationQueue queue;
+    private BitSet decomposed; // dense hypernode ids
 
     // decomposition parameter
     private int maxMSS;
+    private DecompositionPolicy policy;
 
     // statistic - XXX: separate as a module
     private int statDecomposed;
     private int totalComputation;
     private int queueLen;
 
+    // checkpoint file, null if disabled
+    private String checkpointPath;
+    private long checkpointInterval;
+    private long lastCheckpoint;
+    private long policyFingerprint;
+
     public FastDecompositionBuilder() {
         this(512);
     }
 
     public FastDecompositionBuilder(int maxMSS) {
         this.maxMSS = maxMSS;
+        this.policy = new FixedDecompositionPolicy(maxMSS);
         graphDb = HypergraphDatabase.getGraphDatabase();
         mssMap = new HashMap<>();
-        visited = new HashSet<>();
-        computed = new HashSet<>();
+        pool = new SourceSetPool();
+        visited = new BitSet();
+        decomposed = new BitSet();
+    }
+
+    /**
+     * Write builder state to path every interval, and resume from it if it exists when run.
+     * The file is removed when the build completes.
+     * @param path checkpoint file, null to disable
+     * @param intervalMillis minimum time between two checkpoints
+     */
+    public void setCheckpoint(String path, long intervalMillis) {
+        this.checkpointPath = path;
+        this.checkpointInterval = intervalMillis;
+    }
+
+    /**
+     * Keep about heapBudget bytes of MSSs on heap, spill the rest to a temporary file
+     * @param heapBudget approximate bytes, set before run
+     */
+    public void setMemoryBudget(long heapBudget) {
+        mssMap = new SpillingMinimalSourceSetMap(heapBudget);
+    }
+
+    /**
+     * Decide decomposition per hyperedge instead of a fixed maxMSS
+     * @param policy set before run
+     */
+    public void setDecompositionPolicy(DecompositionPolicy policy) {
+        this.policy = policy;
     }
 
     public void run() {
@@ -46,8 +89,9 @@ public class FastDecompositionBuilder implements MinimalSourceSetBuilder {
         statDecomposed = 0;
         totalComputation = 0;
         queueLen = 0;
+        MinimalSourceSet.resetStatistic();
 
-        Log.info("MSS builder maxMSS = " + maxMSS);
+        Log.info("MSS builder " + policy);
 
         try (Transaction tx = graphDb.beginTx()) {
             // find all startable nodes
@@ -67,74 +111,68 @@ public class FastDecompositionBuilder implements MinimalSourceSetBuilder {
         }
 
         saveTx();
+        deleteCheckpoint();
 
         Log.info("Build MSSIndex complete (" + (System.currentTimeMillis() - t) + " ms)");
         Log.info("Decomposed MSS " + statDecomposed);
         Log.info("totalComputation " + totalComputation);
         Log.info("queueLen " + queueLen);
+        Log.info("pruned candidates " + MinimalSourceSet.getPrunedCount());
+        Log.info("indexed minimality checks " + MinimalSourceSet.getIndexedCheckCount());
+        Log.info("cartesian skipped by estimate " + MinimalSourceSet.getEstimateSkipCount()
+                + " - avoided unions >= " + MinimalSourceSet.getAvoidedUnionCount()
+                + ", pairs <= " + MinimalSourceSet.getSkippedPairCount());
+        if (mssMap instanceof SpillingMinimalSourceSetMap)
+            ((SpillingMinimalSourceSetMap) mssMap).printStatistic();
+        pool.printStatistic();
     }
 
     private void saveTx() {
-        Measure measure = new Measure("MSS size");
-        Iterator<Map.Entry<Long, MinimalSourceSet>> iter = mssMap.entrySet().iterator();
-        while (saveTxHelper(iter, measure));
-        measure.printStatistic();
-    }
-
-    private boolean saveTxHelper(Iterator<Map.Entry<Long, MinimalSourceSet>> iter, Measure measure) {
-        final int maxCount = 5000;
-        int count = 0;
-        try (Transaction tx = graphDb.beginTx()) {
-            while (iter.hasNext()) {
-                Map.Entry<Long, MinimalSourceSet> entry = iter.next();
-
-                Long id = entry.getKey();
-                MinimalSourceSet mss = entry.getValue();
-                Node node = graphDb.getNodeById(id);
-                node.setProperty(Const.PROP_MSS, mss.toString());
-
-                Log.debug("MSS(" + id + ") = " + mss.toString());
-                measure.addData(mss.size());
-
-                if (count == maxCount) {
-                    tx.success();
-                    return true;
-                }
-            }
-            tx.success();
+        try (MinimalSourceSetWriter writer = new MinimalSourceSetWriter(Const.PROP_MSS)) {
+            writer.writeAll(mssMap);
         }
-        return false;
+        HypergraphDatabase.setDecomposedIdSet(DecomposedIdSet.of(snapshot, decomposed));
     }
 
-    private void printQueue(Queue<Node> queue) {
+    private void printQueue() {
         String str = "";
-        for (Node n : queue) {
-            str += getComputationRate(n) + ":" + n.getId() + ", ";
+        for (int i = 0; i < queue.size(); i++) {
+            int n = queue.get(i);
+            str += getComputationRate(n) + ":" + snapshot.nodeId(n) + ", ";
         }
         Log.debug(str);
     }
 
     protected void compute(Set<Node> start) {
-        PriorityQueue<Node> queue = new PriorityQueue<Node>(new Comparator<Node>() {
-            @Override
-            public int compare(Node n1, Node n2) {
-                return getComputationRate(n1) - getComputationRate(n2);
+        snapshot = HypergraphDatabase.getHypergraphSnapshot();
+        policy.init(snapshot);
+        policyFingerprint = policyFingerprint();
+
+        if (!readCheckpoint()) {
+            queue = new ComputationQueue(snapshot);
+
+            // enqueue start nodes
+            for (Node node : start) {
+                int s = snapshot.toNode(node.getId());
+                setVisited(s);
+                queue.add(s);
+                MinimalSourceSet mss = getMinimalSourceSet(s);
+                mss.add(node.getId());
             }
-        });
-
-        // enqueue start nodes
-        for (Node s : start) {
-            setVisited(s);
-            queue.add(s);
-            MinimalSourceSet mss = getMinimalSourceSet(s);
-            mss.add(s.getId());
         }
+        lastCheckpoint = System.currentTimeMillis();
 
         while (!queue.isEmpty()) {
+            // state is consistent between two nodes
+            if (checkpointPath != null && System.currentTimeMillis() - lastCheckpoint >= checkpointInterval) {
+                writeCheckpoint();
+                lastCheckpoint = System.currentTimeMillis();
+            }
+
             // dequeue a normal node (one of source nodes)
-            printQueue(queue);
-            Node s = queue.poll();
-            Log.debug("node " + s.getId());
+            printQueue();
+            int s = queue.poll();
+            Log.debug("node " + snapshot.nodeId(s));
             queueLen++;
 
             if (getComputationRate(s) != 0) {
@@ -142,13 +180,12 @@ public class FastDecompositionBuilder implements MinimalSourceSetBuilder {
             }
 
             // get forward star
-            Iterable<Relationship> fromSources = s.getRelationships(Direction.OUTGOING, Const.REL_FROM_SOURCE);
-            for (Relationship fromSource : fromSources) {
+            for (int i = snapshot.forwardBegin(s); i < snapshot.forwardEnd(s); i++) {
                 // get pseudo hypernode and check enabled
-                Node h = fromSource.getEndNode();
+                int h = snapshot.forward(i);
 
-                // skip if already computed and not modified
-                if (isComputed(h))
+                // skip if already computed and not modified, or redundant
+                if (isComputed(h) || snapshot.isRedundant(h))
                     continue;
 
                 // check enabled (all source visited)
@@ -160,14 +197,14 @@ public class FastDecompositionBuilder implements MinimalSourceSetBuilder {
 
                 // calculate mss of hyperedge
                 MinimalSourceSet mssHyperedge = computeMinimalSourceSet(h);
+                pool.intern(mssHyperedge);
 
                 // get target node
-                Iterable<Relationship> toTargets = h.getRelationships(Direction.OUTGOING, Const.REL_TO_TARGET);
-                for (Relationship toTarget : toTargets) {
-                    Node t = toTarget.getEndNode();
+                for (int j = snapshot.targetBegin(h); j < snapshot.targetEnd(h); j++) {
+                    int t = snapshot.target(j);
 
                     setVisited(t);
-                    Log.debug("add target " + t.getId());
+                    Log.debug("add target " + snapshot.nodeId(t));
 
                     // calculate and update mss
                     MinimalSourceSet mssTarget = getMinimalSourceSet(t);
@@ -176,8 +213,7 @@ public class FastDecompositionBuilder implements MinimalSourceSetBuilder {
                     boolean modified = mssTarget.addAll(mssHyperedge);
                     if (modified) {
                         if (queue.contains(t)) {
-                            queue.remove(t);
-                            Log.debug("already contains node " + t.getId());
+                            Log.debug("already contains node " + snapshot.nodeId(t));
                         }
                         queue.add(t);
                         unsetComputed(t);
@@ -187,8 +223,144 @@ public class FastDecompositionBuilder implements MinimalSourceSetBuilder {
         }
     }
 
-    private MinimalSourceSet getMinimalSourceSet(Node node) {
-        MinimalSourceSet mss = mssMap.get(node.getId());
+    // ---------- checkpoint ----------
+
+    private static final int CHECKPOINT_MAGIC = 0x4d535343; // "MSSC"
+    private static final byte CHECKPOINT_VERSION = 2;
+
+    /**
+     * Write queue, computed / visited / decomposed hypernodes, partial MSSs and statistic,
+     * together with the graph size and policy fingerprint it is valid for.
+     * Written to a temporary file first, so the last checkpoint survives a crash while writing.
+     */
+    private void writeCheckpoint() {
+        long t = System.currentTimeMillis();
+        File file = new File(checkpointPath);
+        File tmp = new File(checkpointPath + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeByte(CHECKPOINT_VERSION);
+            out.writeInt(snapshot.numNodes());
+            out.writeInt(snapshot.numHypernodes());
+            out.writeLong(policyFingerprint);
+
+            out.writeInt(statDecomposed);
+            out.writeInt(totalComputation);
+            out.writeInt(queueLen);
+
+            writeBitSet(out, visited);
+            writeBitSet(out, decomposed);
+            queue.write(out);
+
+            out.writeInt(mssMap.size());
+            for (Map.Entry<Long, MinimalSourceSet> entry : mssMap.entrySet()) {
+                byte[] buf = MinimalSourceSetCodec.encode(entry.getValue());
+                out.writeLong(entry.getKey());
+                out.writeInt(buf.length);
+                out.write(buf);
+            }
+        } catch (IOException e) {
+            Log.error("checkpoint failed - " + e.getMessage());
+            return;
+        }
+
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Log.error("checkpoint failed - " + e.getMessage());
+            return;
+        }
+        Log.info("checkpoint written - mss " + mssMap.size() + ", queue " + queue.size()
+                + " (" + (System.currentTimeMillis() - t) + " ms)");
+    }
+
+    /**
+     * Restore state of an interrupted build
+     * @return false if there is no usable checkpoint
+     */
+    private boolean readCheckpoint() {
+        if (checkpointPath == null || !new File(checkpointPath).exists())
+            return false;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpointPath)))) {
+            if (in.readInt() != CHECKPOINT_MAGIC || in.readByte() != CHECKPOINT_VERSION) {
+                Log.warn("checkpoint ignored - unknown format");
+                return false;
+            }
+            if (in.readInt() != snapshot.numNodes() || in.readInt() != snapshot.numHypernodes()
+                    || in.readLong() != policyFingerprint) {
+                Log.warn("checkpoint ignored - written for another graph or decomposition policy");
+                return false;
+            }
+
+            int[] stat = { in.readInt(), in.readInt(), in.readInt() };
+            BitSet visitedRead = readBitSet(in);
+            BitSet decomposedRead = readBitSet(in);
+            ComputationQueue queueRead = ComputationQueue.read(snapshot, in);
+
+            // read into mssMap itself, it may spill to disk
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long id = in.readLong();
+                byte[] buf = new byte[in.readInt()];
+                in.readFully(buf);
+                mssMap.put(id, MinimalSourceSetCodec.decode(buf));
+            }
+
+            // replace state only when the whole file is read
+            statDecomposed = stat[0];
+            totalComputation = stat[1];
+            queueLen = stat[2];
+            visited = visitedRead;
+            decomposed = decomposedRead;
+            queue = queueRead;
+        } catch (IOException e) {
+            mssMap.clear();
+            Log.warn("checkpoint ignored - " + e.getMessage());
+            return false;
+        }
+
+        Log.info("resume from checkpoint - mss " + mssMap.size() + ", queue " + queue.size());
+        return true;
+    }
+
+    /**
+     * Hash of the limits of all hyperedges, a checkpoint is only resumed with the same decisions
+     * (a fixed and an adaptive policy differ unless all their limits are equal)
+     */
+    private long policyFingerprint() {
+        long hash = 1;
+        for (int h = 0; h < snapshot.numHypernodes(); h++) {
+            hash = 31 * hash + policy.limit(h);
+        }
+        return hash;
+    }
+
+    private void deleteCheckpoint() {
+        if (checkpointPath != null)
+            new File(checkpointPath).delete();
+    }
+
+    private static void writeBitSet(DataOutputStream out, BitSet bits) throws IOException {
+        long[] words = bits.toLongArray();
+        out.writeInt(words.length);
+        for (long w : words) {
+            out.writeLong(w);
+        }
+    }
+
+    private static BitSet readBitSet(DataInputStream in) throws IOException {
+        long[] words = new long[in.readInt()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = in.readLong();
+        }
+        return BitSet.valueOf(words);
+    }
+
+    private MinimalSourceSet getMinimalSourceSet(int node) {
+        long id = snapshot.nodeId(node);
+        MinimalSourceSet mss = mssMap.get(id);
         if (mss != null)
             return mss;
 
@@ -197,47 +369,47 @@ public class FastDecompositionBuilder implements MinimalSourceSetBuilder {
 //        if (node.hasLabel(Const.LABEL_STARTABLE))
 //            mss.add(node.getId());
 
-        mssMap.put(node.getId(), mss);
+        mssMap.put(id, mss);
         return mss;
     }
 
-    private MinimalSourceSet computeCartesianWithLimit(MinimalSourceSet a, MinimalSourceSet b, int limit) {
-        MinimalSourceSet result = new MinimalSourceSet();
-
-        if (a.cardinality() == 0 || b.cardinality() == 0)
-            return result;
-
-        for (Set<Long> s1 : a.getSourceSets()) {
-            for (Set<Long> s2 : b.getSourceSets()) {
-                Set<Long> s = new HashSet<>();
-                s.addAll(s1);
-                s.addAll(s2);
-                result.add(s);
-                if (result.cardinality() > limit)
-                    return null;
-            }
+    private List<MinimalSourceSet> getSourceMinimalSourceSets(int hypernode) {
+        List<MinimalSourceSet> families = new ArrayList<>();
+        for (int i = snapshot.sourceBegin(hypernode); i < snapshot.sourceEnd(hypernode); i++) {
+            families.add(getMinimalSourceSet(snapshot.source(i)));
         }
-        return result;
+        return families;
+    }
+
+    private MinimalSourceSet computeCartesianWithLimit(MinimalSourceSet a, MinimalSourceSet b, int limit) {
+        return a.cartesian(b, limit);
     }
 
-    private MinimalSourceSet computeMinimalSourceSet(Node hypernode) {
+    private MinimalSourceSet computeMinimalSourceSet(int hypernode) {
         // check already decomposed
-        if (hypernode.hasProperty("decomposed")) {
-            return new MinimalSourceSet(hypernode.getId());
+        if (isDecomposed(hypernode)) {
+            return new MinimalSourceSet(snapshot.hypernodeId(hypernode));
+        }
+
+        // decompose without enumerating if the product certainly exceeds the limit
+        if (snapshot.numSources(hypernode) > 1
+                && MinimalSourceSet.exceedsLimit(getSourceMinimalSourceSets(hypernode), policy.limit(hypernode))) {
+            setDecomposed(hypernode);
+            statDecomposed++;
+            return new MinimalSourceSet(snapshot.hypernodeId(hypernode));
         }
 
         MinimalSourceSet mss = null;
-        Iterable<Relationship> rels = hypernode.getRelationships(Direction.INCOMING, Const.REL_FROM_SOURCE);
-        for (Relationship rel : rels) {
-            Node s = rel.getStartNode();
+        for (int i = snapshot.sourceBegin(hypernode); i < snapshot.sourceEnd(hypernode); i++) {
+            int s = snapshot.source(i);
             if (mss == null) {
                 mss = getMinimalSourceSet(s);
             } else {
-                mss = computeCartesianWithLimit(mss, getMinimalSourceSet(s), maxMSS);
+                mss = computeCartesianWithLimit(mss, getMinimalSourceSet(s), policy.limit(hypernode));
                 if (mss == null) {
-                    hypernode.setProperty("decomposed", true);
+                    setDecomposed(hypernode);
                     statDecomposed++;
-                    return new MinimalSourceSet(hypernode.getId());
+                    return new MinimalSourceSet(snapshot.hypernodeId(hypernode));
                 }
             }
 
@@ -253,54 +425,46 @@ public class FastDecompositionBuilder implements MinimalSourceSetBuilder {
         return mss;
     }
 
-    private void setVisited(Node node) {
-        visited.add(node.getId());
+    // recorded in the DecomposedIdSet of the index when saved
+    private void setDecomposed(int hypernode) {
+        decomposed.set(hypernode);
     }
 
-    private boolean isVisited(Node node) {
-        return visited.contains(node.getId());
+    private boolean isDecomposed(int hypernode) {
+        return decomposed.get(hypernode);
     }
 
-    private boolean isEnabled(Node hypernode) {
-        Iterable<Relationship> rels = hypernode.getRelationships(Direction.INCOMING, Const.REL_FROM_SOURCE);
-        for (Relationship rel : rels) {
-            if (!isVisited(rel.getStartNode())) {
+    private void setVisited(int node) {
+        visited.set(node);
+    }
+
+    private boolean isVisited(int node) {
+        return visited.get(node);
+    }
+
+    private boolean isEnabled(int hypernode) {
+        for (int i = snapshot.sourceBegin(hypernode); i < snapshot.sourceEnd(hypernode); i++) {
+            if (!isVisited(snapshot.source(i))) {
                 return false;
             }
         }
         return true;
     }
 
-    //TODO: how to handle changes
-    private int getComputationRate(Node node) {
-        int countComputed = 0;
-        int countTotal = 0;
-
-        // get incoming hyperedges
-        Iterable<Relationship> rels = node.getRelationships(Direction.INCOMING, Const.REL_TO_TARGET);
-        for (Relationship rel : rels) {
-            Node h = rel.getStartNode();
-            if (isComputed(h))
-                countComputed++;
-            countTotal++;
-        }
-
-        return countTotal - countComputed;
+    // number of incoming hyperedges not computed yet, kept up to date by queue
+    private int getComputationRate(int node) {
+        return queue.getComputationRate(node);
     }
 
-    private void setComputed(Node node) {
-        computed.add(node.getId());
+    private void setComputed(int hypernode) {
+        queue.setComputed(hypernode);
     }
 
-    private boolean isComputed(Node node) {
-        return computed.contains(node.getId());
+    private boolean isComputed(int hypernode) {
+        return queue.isComputed(hypernode);
     }
 
-    private void unsetComputed(Node node) {
-        Iterable<Relationship> rels = node.getRelationships(Direction.OUTGOING, Const.REL_FROM_SOURCE);
-        for (Relationship rel : rels) {
-            Node h = rel.getEndNode();
-            computed.remove(h.getId());
-        }
+    private void unsetComputed(int node) {
+        queue.unsetComputed(node);
     }
 }
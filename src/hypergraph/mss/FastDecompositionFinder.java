@@ -1,6 +1,7 @@
 package hypergraph.mss;
 
 import hypergraph.common.Const;
+import hypergraph.common.DecomposedIdSet;
 import hypergraph.common.HypergraphDatabase;
 import hypergraph.util.Log;
 import org.neo4j.graphdb.Direction;
@@ -8,7 +9,16 @@ import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 
 /**
@@ -17,85 +27,426 @@ import java.util.Set;
  * Created by Hyunjun on 2015-04-30.
  */
 public class FastDecompositionFinder implements MinimalSourceSetFinder {
+    public static final long DEFAULT_MAX_EXPANSIONS = Long.MAX_VALUE;
+    public static final long DEFAULT_TIME_LIMIT = 60 * 1000; // ms
+    private static final long[] EMPTY = new long[0];
+
     private static GraphDatabaseService graphDb;
     private Set<Long> reconstructed;
+    private ReconstructionCache cache;
+    private DecomposedIdSet decomposed; // loaded by each query
+    private Map<Long, List<long[]>> alternatives; // reconstruction of decomposed ids in a minimum search
+    private long maxExpansions = DEFAULT_MAX_EXPANSIONS;
+    private long timeLimit = DEFAULT_TIME_LIMIT;
 
     public FastDecompositionFinder() {
         graphDb = HypergraphDatabase.getGraphDatabase();
         reconstructed = new HashSet<>();
+        cache = ReconstructionCache.getInstance();
     }
 
     @Override
     @Deprecated
     public MinimalSourceSet find(Node target) {
-        MinimalSourceSet mss = getMinimalSourceSet(target);
+        HypergraphDatabase.getQueryFrequency().record(target.getId());
+        return new MinimalSourceSet(cache.find(target, "FastDecompositionFinder", this::reconstructAll));
+    }
+
+    private MinimalSourceSet reconstructAll(Node target) {
+        reconstructed = new HashSet<>();
+        decomposed = HypergraphDatabase.getDecomposedIdSet();
+        MinimalSourceSet mss = new MinimalSourceSet(getMinimalSourceSet(target));
+
+        // source sets with a decomposed id in mss order, expanded front to back
+        // sets removed from mss meanwhile are skipped, new ones are appended as they enter mss
+        Deque<long[]> pending = new ArrayDeque<>();
+        pushDecomposed(mss, pending);
+
+        while (!pending.isEmpty()) {
+            long[] s = pending.poll();
+            if (!mss.contains(s))
+                continue;
 
-        // Naive implementation
-        long decomposedId = needReconstruction(mss);
-        while (decomposedId > 0) {
-            mss = reconstruct(mss);
-            decomposedId = needReconstruction(mss);
+            long decomposedId = firstDecomposed(s);
+
+            // check already reconstructed
+            if (reconstructed.contains(decomposedId)) {
+                mss.removeContains(decomposedId);
+                continue;
+            }
+
+            reconstructed.add(decomposedId);
+
+            if (s.length == 1) {
+                MinimalSourceSet mssV = getReconstruction(graphDb.getNodeById(decomposedId));
+                mss.addAll(mssV);
+                mss.removeContains(decomposedId);
+                pushDecomposed(mssV, pending);
+            } else {
+                mss = reconstruct(mss, decomposedId, pending);
+            }
         }
 
         return mss;
     }
 
-    // for fast reconstruction
+    private void pushDecomposed(MinimalSourceSet mss, Deque<long[]> pending) {
+        for (long[] s : mss.sets()) {
+            if (firstDecomposed(s) >= 0)
+                pending.add(s);
+        }
+    }
+
+    private long firstDecomposed(long[] s) {
+        return firstDecomposed(s, EMPTY);
+    }
+
+    /**
+     * Limit minimum searches, each query stops after maxExpansions search states or timeLimit ms
+     */
+    public void setBudget(long maxExpansions, long timeLimit) {
+        this.maxExpansions = maxExpansions;
+        this.timeLimit = timeLimit;
+    }
+
+    /**
+     * @return minimum source set of target, empty if target has no source set
+     * @throws IllegalStateException if the budget is exhausted before the minimum is proven, see searchMinimum
+     */
     public Set<Long> findMinimum(Node target) {
-        MinimalSourceSet mss = getMinimalSourceSet(target);
-        Set<Long> min = findMinimalUndecomposed(mss);
+        MinimumSearchResult result = searchMinimum(target);
+        if (!result.isOptimal())
+            throw new IllegalStateException("minimum search of node " + target.getId() + " exhausted budget - " + result);
+
+        return result.getSourceSet() == null ? new HashSet<>() : result.getSourceSet();
+    }
+
+    /**
+     * Best-first branch and bound over partially reconstructed source sets
+     * A state is a source set with decomposed ids, expanded by replacing one decomposed id
+     * with each source set of its reconstruction. Fully undecomposed sets are candidates, the smallest
+     * one bounds the search from above. States are taken by their lower bound (see lowerBound),
+     * the first one not below the best candidate proves it minimum.
+     * A state keeps the ids replaced on its path (derived) and, for each pending decomposed id,
+     * the derived ids whose chosen alternatives depend on it. An alternative containing an id which
+     * depends on the replaced one is dropped, a circular derivation only adds nodes to the one without
+     * the cycle. Other derived ids (shared by several branches, a diamond) are left out of the child.
+     * Of states with the same set and derived ids, one whose dependents include another's is not expanded.
+     * A startable node decomposed by NodeDecompositionBuilder has itself in its MSS, replaced by
+     * that set it is a terminal, an actual source of the set.
+     *
+     * @return smallest source set found, optimal unless the budget was exhausted
+     */
+    public MinimumSearchResult searchMinimum(Node target) {
+        return searchMinimum(Collections.singleton(target));
+    }
+
+    /**
+     * Minimum source set activating all targets, searched from the product of their stored MSSs
+     * @see #searchMinimum(Node)
+     */
+    public MinimumSearchResult searchMinimum(Set<Node> targets) {
         long t = System.currentTimeMillis();
+        decomposed = HypergraphDatabase.getDecomposedIdSet();
+        alternatives = new HashMap<>();
 
-        //TODO: limit loop
-        while (min != null) {
-            long decomposedId = needReconstruction(mss);
-            mss = reconstruct(mss);
-            min = findMinimalUndecomposed(mss);
+        MinimalSourceSet roots = null;
+        for (Node target : targets) {
+            HypergraphDatabase.getQueryFrequency().record(target.getId());
+            roots = roots == null ? getMinimalSourceSet(target) : roots.cartesian(getMinimalSourceSet(target));
+        }
+        String name = targets.size() == 1 ? "node " + targets.iterator().next().getId() : targets.size() + " nodes";
+
+        long[] best = null;
+        PriorityQueue<State> queue = new PriorityQueue<>();
+        Map<State, List<Map<Long, Set<Long>>>> visited = new HashMap<>();
+        for (long[] s : roots == null ? Collections.<long[]>emptyList() : roots.sets()) {
+            if (firstDecomposed(s, EMPTY) < 0) {
+                if (best == null || s.length < best.length)
+                    best = s;
+            } else {
+                offer(new State(s, EMPTY, EMPTY, Collections.emptyMap(), lowerBound(s, EMPTY)), queue, visited);
+            }
+        }
+
+        long expanded = 0;
+        while (!queue.isEmpty()) {
+            State state = queue.peek();
+            if (best != null && state.bound >= best.length)
+                break;
+
+            long dt = System.currentTimeMillis() - t;
+            if (expanded >= maxExpansions || dt > timeLimit) {
+                int lower = best == null ? state.bound : Math.min(state.bound, best.length);
+                MinimumSearchResult result = new MinimumSearchResult(toSet(best), lower, false, expanded, dt);
+                Log.warn("minimum search of " + name + " " + result + ", queue " + queue.size());
+                return result;
+            }
 
-            // abort
-            if (System.currentTimeMillis() - t > 60 * 1000)
-                return null;
+            queue.poll();
+            expanded++;
+
+            long decomposedId = branchId(state);
+            Set<Long> dependents = state.dependents.getOrDefault(decomposedId, Collections.emptySet());
+            long[] rest = remove(state.set, decomposedId);
+            for (long[] a : alternatives(decomposedId)) {
+                if (containsAny(a, dependents))
+                    continue;
+
+                long[] child = MinimalSourceSet.union(rest, difference(a, state.derived));
+                long[] terminals = state.terminals;
+                long[] derived = state.derived;
+                Map<Long, Set<Long>> childDependents;
+                if (Arrays.binarySearch(a, decomposedId) >= 0) {
+                    terminals = MinimalSourceSet.union(terminals, new long[] {decomposedId});
+                    childDependents = new HashMap<>(state.dependents);
+                    childDependents.remove(decomposedId);
+                } else {
+                    derived = MinimalSourceSet.union(derived, new long[] {decomposedId});
+                    childDependents = addDependency(state, decomposedId, a, child, terminals);
+                }
+
+                if (firstDecomposed(child, terminals) < 0) {
+                    if (best == null || child.length < best.length)
+                        best = child;
+                    continue;
+                }
+
+                int bound = lowerBound(child, terminals);
+                if (best == null || bound < best.length)
+                    offer(new State(child, terminals, derived, childDependents, bound), queue, visited);
+            }
         }
 
-        return min;
+        int lower = best == null ? Integer.MAX_VALUE : best.length;
+        return new MinimumSearchResult(toSet(best), lower, true, expanded, System.currentTimeMillis() - t);
     }
 
-    private Set<Long> findMinimalUndecomposed(MinimalSourceSet mss) {
-        Set<Long> min = null;
-        for (Set<Long> s : mss.getSourceSets()) {
-            if (!isDecomposed(s)) {
-                if (min == null) min = s;
-                else if (min.size() > s.size()) min = s;
+    private static final class State implements Comparable<State> {
+        final long[] set;
+        final long[] terminals; // decomposed ids of set which are sources themselves
+        final long[] derived; // decomposed ids replaced on the path
+        final Map<Long, Set<Long>> dependents; // pending id -> derived ids depending on it, if any
+        final int bound;
+
+        State(long[] set, long[] terminals, long[] derived, Map<Long, Set<Long>> dependents, int bound) {
+            this.set = set;
+            this.terminals = terminals;
+            this.derived = derived;
+            this.dependents = dependents;
+            this.bound = bound;
+        }
+
+        @Override
+        public int compareTo(State o) {
+            return bound != o.bound ? Integer.compare(bound, o.bound) : Integer.compare(set.length, o.set.length);
+        }
+
+        // same set reached on another path, dependents are compared by offer
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof State))
+                return false;
+            State s = (State) o;
+            return Arrays.equals(set, s.set) && Arrays.equals(terminals, s.terminals) && Arrays.equals(derived, s.derived);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(set);
+        }
+    }
+
+    /**
+     * Dependents after decomposedId is derived by alternative a: decomposedId and its dependents
+     * depend on each id of a, and on the pending ids a derived id of a depends on
+     */
+    private Map<Long, Set<Long>> addDependency(State state, long decomposedId, long[] a, long[] child, long[] terminals) {
+        Set<Long> added = new HashSet<>(state.dependents.getOrDefault(decomposedId, Collections.emptySet()));
+        added.add(decomposedId);
+
+        Map<Long, Set<Long>> dependents = new HashMap<>();
+        for (long nodeId : child) {
+            if (!isPending(nodeId, terminals))
+                continue;
+
+            Set<Long> s = state.dependents.getOrDefault(nodeId, Collections.emptySet());
+            boolean depends = Arrays.binarySearch(a, nodeId) >= 0;
+            for (long id : a) {
+                if (depends)
+                    break;
+                depends = s.contains(id);
             }
+            if (depends) {
+                s = new HashSet<>(s);
+                s.addAll(added);
+            }
+            if (!s.isEmpty())
+                dependents.put(nodeId, s);
+        }
+        return dependents;
+    }
+
+    // ids of sorted a not in sorted b
+    private static long[] difference(long[] a, long[] b) {
+        if (b.length == 0)
+            return a;
+
+        long[] result = new long[a.length];
+        int n = 0;
+        for (long id : a) {
+            if (Arrays.binarySearch(b, id) < 0)
+                result[n++] = id;
+        }
+        return n == a.length ? a : Arrays.copyOf(result, n);
+    }
+
+    // true if every dependents of a are also dependents in b, b allows no more alternatives than a
+    private static boolean dominates(Map<Long, Set<Long>> a, Map<Long, Set<Long>> b) {
+        for (Map.Entry<Long, Set<Long>> entry : a.entrySet()) {
+            if (!b.getOrDefault(entry.getKey(), Collections.emptySet()).containsAll(entry.getValue()))
+                return false;
         }
-        return min;
+        return true;
     }
 
-    private boolean isDecomposed(Set<Long> s) {
-        for (Long nodeId : s) {
-            Node v = graphDb.getNodeById(nodeId);
-            if (v.hasLabel(Const.LABEL_HYPERNODE)) {
+    private static boolean containsAny(long[] s, Set<Long> ids) {
+        if (ids.isEmpty())
+            return false;
+        for (long nodeId : s) {
+            if (ids.contains(nodeId))
                 return true;
-            }
         }
         return false;
     }
 
-    private void removeUnnecessary(MinimalSourceSet mss, Set<Long> min) {
+    // decomposed id still to be replaced
+    private boolean isPending(long nodeId, long[] terminals) {
+        return decomposed.contains(nodeId) && Arrays.binarySearch(terminals, nodeId) < 0;
+    }
+
+    private long firstDecomposed(long[] s, long[] terminals) {
+        for (long nodeId : s) {
+            if (isPending(nodeId, terminals))
+                return nodeId;
+        }
+        return -1;
+    }
+
+    private static void offer(State state, PriorityQueue<State> queue, Map<State, List<Map<Long, Set<Long>>>> visited) {
+        if (state.bound == Integer.MAX_VALUE)
+            return;
+
+        List<Map<Long, Set<Long>>> reached = visited.computeIfAbsent(state, (s) -> new ArrayList<>());
+        for (Map<Long, Set<Long>> dependents : reached) {
+            if (dominates(dependents, state.dependents))
+                return;
+        }
+        reached.add(state.dependents);
+        queue.add(state);
+    }
+
+    /**
+     * Any source set reconstructed from s contains its undecomposed part U (terminals included) and,
+     * for each decomposed id d, the undecomposed part of some source set a of d. The bound is max over d
+     * of min over a of |U + a| (at least 1), Integer.MAX_VALUE if some d has no reconstruction.
+     */
+    private int lowerBound(long[] s, long[] terminals) {
+        long[] undecomposed = undecomposed(s, terminals);
+        int bound = Math.max(undecomposed.length, 1);
+        for (long nodeId : s) {
+            if (!isPending(nodeId, terminals))
+                continue;
+
+            int min = Integer.MAX_VALUE;
+            for (long[] a : alternatives(nodeId)) {
+                min = Math.min(min, unionSize(undecomposed, undecomposed(a, EMPTY)));
+            }
+            if (min == Integer.MAX_VALUE)
+                return Integer.MAX_VALUE;
+            bound = Math.max(bound, min);
+        }
+        return bound;
+    }
+
+    // decomposed id with the fewest alternatives, the narrowest branch
+    private long branchId(State state) {
+        long branch = -1;
+        int min = Integer.MAX_VALUE;
+        for (long nodeId : state.set) {
+            if (isPending(nodeId, state.terminals) && alternatives(nodeId).size() < min) {
+                branch = nodeId;
+                min = alternatives(nodeId).size();
+            }
+        }
+        return branch;
+    }
+
+    // source sets of a decomposed id, read once per query
+    // a node decomposed by NodeDecompositionBuilder keeps its MSS (with itself if startable),
+    // a hypernode is reconstructed from its sources
+    private List<long[]> alternatives(long decomposedId) {
+        return alternatives.computeIfAbsent(decomposedId, (id) -> {
+            Node v = graphDb.getNodeById(id);
+            if (v.hasProperty(Const.PROP_DECOMPOSED))
+                return cache.read(v, Const.PROP_DECOMPOSED).sets();
+            return getReconstruction(v).sets();
+        });
+    }
 
+    private long[] undecomposed(long[] s, long[] terminals) {
+        long[] result = new long[s.length];
+        int n = 0;
+        for (long nodeId : s) {
+            if (!isPending(nodeId, terminals))
+                result[n++] = nodeId;
+        }
+        return n == s.length ? s : Arrays.copyOf(result, n);
     }
 
+    private static long[] remove(long[] s, long nodeId) {
+        long[] result = new long[s.length - 1];
+        int n = 0;
+        for (long id : s) {
+            if (id != nodeId)
+                result[n++] = id;
+        }
+        return result;
+    }
 
+    private static int unionSize(long[] a, long[] b) {
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) i++;
+            else if (a[i] > b[j]) j++;
+            else {
+                i++;
+                j++;
+            }
+            n++;
+        }
+        return n + (a.length - i) + (b.length - j);
+    }
 
+    private static Set<Long> toSet(long[] s) {
+        if (s == null)
+            return null;
 
+        Set<Long> set = new HashSet<>();
+        for (long nodeId : s) {
+            set.add(nodeId);
+        }
+        return set;
+    }
 
     private MinimalSourceSet getMinimalSourceSet(Node target) {
-        if (!target.hasProperty(Const.PROP_MSS))
-            return new MinimalSourceSet();
-        return MinimalSourceSet.valueOf((String) target.getProperty(Const.PROP_MSS));
+        return cache.read(target, Const.PROP_MSS);
     }
 
-    private MinimalSourceSet reconstruct(MinimalSourceSet mss, long decomposedId) {
+    /**
+     * @param pending decomposed source sets of the product are appended
+     */
+    private MinimalSourceSet reconstruct(MinimalSourceSet mss, long decomposedId, Deque<long[]> pending) {
         /*
         A = {a, gf, h}
         mss = {Abc, Abe, ADe}
@@ -116,65 +467,29 @@ public class FastDecompositionFinder implements MinimalSourceSetFinder {
 
         if (mss1.cardinality() != 0) {
             Node d = graphDb.getNodeById(decomposedId);
-            MinimalSourceSet mss3 = computeMinimalSourceSet(d); // A in example
-            mss3.removeContains(decomposedId);
-            mss2.addAll(mss3.cartesian(mss1));
+            MinimalSourceSet mss3 = getReconstruction(d); // A in example
+            MinimalSourceSet product = mss3.cartesian(mss1);
+            mss2.addAll(product);
+            pushDecomposed(product, pending);
         }
 
         return mss2;
     }
 
-    private MinimalSourceSet reconstruct(MinimalSourceSet mss) {
-        MinimalSourceSet recon = new MinimalSourceSet(mss);
-
-        for (Set<Long> s : mss.getSourceSets()) {
-            for (Long nodeId : s) {
-                Node v = graphDb.getNodeById(nodeId);
-
-                // if decomposed
-                if (v.hasLabel(Const.LABEL_HYPERNODE)) {
-
-                    // check already reconstructed
-                    if (reconstructed.contains(nodeId)) {
-                        recon.removeContains(nodeId);
-                        return recon;
-                    }
-
-                    reconstructed.add(nodeId);
-
-                    if (s.size() == 1) {
-                        MinimalSourceSet mssV = computeMinimalSourceSet(v);
-                        recon.addAll(mssV);
-                        recon.removeContains(v.getId());
-                        return recon;
-                    }
-
-                    else {
-                        return reconstruct(mss, v.getId());
-                    }
-                }
-            }
-        }
-
-        return recon;
-    }
-
-    private long needReconstruction(MinimalSourceSet mss) {
-//        Log.debug("call needReconstruction of mss(" + mss.cardinality() + "):");
-//        Log.debug(mss.toString());
-
-        for (Set<Long> s : mss.getSourceSets()) {
-            for (Long nodeId : s) {
-                Node v = graphDb.getNodeById(nodeId);
-                if (v.hasLabel(Const.LABEL_HYPERNODE)) {
-//                    Log.debug("needs recon at " + nodeId);
-//                    Log.debug("of " + s);
-                    return nodeId;
-                }
-            }
-        }
-//        Log.debug("reconstructed!");
-        return -1;
+    /**
+     * MSS of a decomposed hypernode without source sets containing itself, shared through the cache
+     */
+    private MinimalSourceSet getReconstruction(Node hypernode) {
+        return cache.reconstruct(hypernode, (h) -> {
+            MinimalSourceSet mss = computeMinimalSourceSet(h);
+            if (mss == null)
+                return new MinimalSourceSet();
+
+            // cached MSS of a single source is shared
+            mss = new MinimalSourceSet(mss);
+            mss.removeContains(h.getId());
+            return mss;
+        });
     }
 
     private MinimalSourceSet computeMinimalSourceSet(Node hypernode) {
@@ -0,0 +1,33 @@
+package hypergraph.mss;
+
+import hypergraph.common.HypergraphSnapshot;
+
+/**
+ * Same maxMSS for every hyperedge and node
+ */
+public class FixedDecompositionPolicy implements DecompositionPolicy {
+    private final int maxMSS;
+
+    public FixedDecompositionPolicy(int maxMSS) {
+        this.maxMSS = maxMSS;
+    }
+
+    @Override
+    public void init(HypergraphSnapshot snapshot) {
+    }
+
+    @Override
+    public int limit(int hypernode) {
+        return maxMSS;
+    }
+
+    @Override
+    public int nodeLimit(int node) {
+        return maxMSS;
+    }
+
+    @Override
+    public String toString() {
+        return "fixed maxMSS = " + maxMSS;
+    }
+}
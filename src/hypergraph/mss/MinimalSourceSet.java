@@ -1,32 +1,78 @@
 package hypergraph.mss;
 
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * Naive implementation of minimal source set
- * No optimization applied
+ * Minimal source set
+ * Each source set is kept as a sorted primitive long[] (no boxing),
+ * subset test and union are done by merging sorted arrays.
+ * Source set arrays are never modified after insertion,
+ * so they are shared between MSSs (copy, addAll) without copying.
+ *
+ * Large MSSs keep a set-trie index (SourceSetTrie) over the source sets
+ * so that the minimality check of add() does not scan every set.
+ *
+ * smallest / unionSmallest / cartesianSmallest keep only the k smallest
+ * source sets, used for minimum queries where full enumeration is not needed.
+ *
+ * Reads (sets, getSourceSets, contains, cartesian as operand) never modify an MSS,
+ * an MSS which is no longer modified can be shared between threads.
+ * Statistic counters are global to the process, concurrent builds add to (and reset) the same counters.
  *
  * Created by Hyunjun on 2015-04-17.
  */
 public class MinimalSourceSet {
-    private Set<Set<Long>> mss;
+    private static final long[] EMPTY = new long[0];
+
+    // build subset index when cardinality reaches this
+    private static final int INDEX_THRESHOLD = 32;
+
+    // use fork-join cartesian when number of pairs reaches this, 0 to disable
+    private static volatile int parallelThreshold = 1 << 16;
+
+    // statistic
+    private static final LongAdder statPruned = new LongAdder();
+    private static final LongAdder statIndexedCheck = new LongAdder();
+    private static final LongAdder statEstimateSkip = new LongAdder();
+    private static final LongAdder statSkippedPairs = new LongAdder();
+    private static final LongAdder statAvoidedUnions = new LongAdder();
+
+    // source sets, compacted on removal so reads never modify the MSS
+    private List<long[]> mss;
+    private int cardinality;
+    private SourceSetTrie index;
+    private int[] slotPosition; // index slot -> position in mss, index slots stay while sets move
+    private int[] positionSlot; // position in mss -> index slot
+    private int numSlots;
 
     public MinimalSourceSet() {
-        mss = new HashSet<>();
+        mss = new ArrayList<>();
+        cardinality = 0;
+        index = null;
     }
 
     public MinimalSourceSet(MinimalSourceSet other) {
-        this();
-        for (Set<Long> sourceSet : other.mss) {
-            mss.add(sourceSet);
-        }
+        mss = new ArrayList<>(other.sets());
+        cardinality = mss.size();
+        index = null;
     }
 
     public MinimalSourceSet(Set<Long> sourceSet) {
         this();
-        mss.add(sourceSet);
+        append(toArray(sourceSet));
     }
 
     public MinimalSourceSet(Long nodeId) {
@@ -37,15 +83,76 @@ public class MinimalSourceSet {
     // testing purpose
     public MinimalSourceSet(Number... nodeIds) {
         this();
-        Set<Long> sourceSet = new HashSet<>();
-        for (Number id : nodeIds) {
-            sourceSet.add(id.longValue());
-        }
-        mss.add(sourceSet);
+        append(toArray(createSourceSet(nodeIds)));
     }
 
+    /**
+     * Number of candidate source sets pruned by minimality check
+     * (rejected candidates and removed supersets) since last reset
+     */
+    public static long getPrunedCount() {
+        return statPruned.sum();
+    }
+
+    /**
+     * Number of minimality checks answered by subset index since last reset
+     */
+    public static long getIndexedCheckCount() {
+        return statIndexedCheck.sum();
+    }
+
+    /**
+     * Number of cartesian products skipped by exceedsLimit since last reset
+     */
+    public static long getEstimateSkipCount() {
+        return statEstimateSkip.sum();
+    }
+
+    /**
+     * Source set pairs of skipped products (upper bound of avoided work)
+     */
+    public static long getSkippedPairCount() {
+        return statSkippedPairs.sum();
+    }
+
+    /**
+     * Unions skipped products would have computed before exceeding the limit at least (lower bound of avoided work)
+     */
+    public static long getAvoidedUnionCount() {
+        return statAvoidedUnions.sum();
+    }
+
+    public static int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * Switch fork-join cartesian product by size
+     * @param threshold minimum number of source set pairs (|A| * |B|) to run in parallel, 0 to disable
+     */
+    public static void setParallelThreshold(int threshold) {
+        parallelThreshold = threshold;
+    }
+
+    /**
+     * Reset the global counters, also for other builds running at the same time
+     */
+    public static void resetStatistic() {
+        statPruned.reset();
+        statIndexedCheck.reset();
+        statEstimateSkip.reset();
+        statSkippedPairs.reset();
+        statAvoidedUnions.reset();
+    }
+
+    /**
+     * Set view of source sets
+     * Elements are read-only sets backed by the internal arrays.
+     * Adding through the view does not check minimality (same as adding to a raw set).
+     * @return view of source sets
+     */
     public Set<Set<Long>> getSourceSets() {
-        return mss;
+        return new SourceSetView();
     }
 
     /**
@@ -55,121 +162,419 @@ public class MinimalSourceSet {
      * @return true if modified
      */
     public boolean add(Set<Long> sourceSet) {
+        return add(toArray(sourceSet));
+    }
+
+    public boolean add(Long nodeId) {
+        return add(new long[] {nodeId});
+    }
+
+    boolean add(long[] sourceSet) {
+        if (index == null && cardinality >= INDEX_THRESHOLD) {
+            buildIndex();
+        }
+        if (index != null) {
+            return addIndexed(sourceSet);
+        }
+
         // check minimality of sourceSet
-        for (Set<Long> s : mss) {
-            if (sourceSet.containsAll(s)) {
+        for (long[] s : mss) {
+            if (isSubset(s, sourceSet)) {
+                statPruned.increment();
                 return false;
             }
         }
 
         // remove all superset of sourceSet
-        Iterator<Set<Long>> iter = mss.iterator();
+        Iterator<long[]> iter = mss.iterator();
         while (iter.hasNext()) {
-            Set<Long> s = iter.next();
-            if (s.containsAll(sourceSet)) {
+            long[] s = iter.next();
+            if (isSubset(sourceSet, s)) {
                 iter.remove();
+                cardinality--;
+                statPruned.increment();
             }
         }
 
-        mss.add(sourceSet);
+        append(sourceSet);
         return true;
     }
 
-    public boolean add(Long nodeId) {
-        Set<Long> sourceSet = new HashSet<>();
-        sourceSet.add(nodeId);
-        return add(sourceSet);
+    private boolean addIndexed(long[] sourceSet) {
+        statIndexedCheck.increment();
+
+        // check minimality of sourceSet
+        if (index.containsSubsetOf(sourceSet)) {
+            statPruned.increment();
+            return false;
+        }
+
+        // remove all superset of sourceSet
+        int[] first = {Integer.MAX_VALUE};
+        index.removeSupersetsOf(sourceSet, (slot) -> {
+            int position = slotPosition[slot];
+            mss.set(position, null);
+            cardinality--;
+            statPruned.increment();
+            first[0] = Math.min(first[0], position);
+        });
+        if (first[0] != Integer.MAX_VALUE)
+            compact(first[0]);
+
+        append(sourceSet);
+        return true;
+    }
+
+    // add without minimality check
+    void append(long[] sourceSet) {
+        if (index != null) {
+            // slots of removed sets are not reused, renumber once they outgrow the sets
+            if (numSlots >= 2 * mss.size() + INDEX_THRESHOLD) {
+                buildIndex();
+            }
+            int slot = numSlots++;
+            if (slot == slotPosition.length)
+                slotPosition = Arrays.copyOf(slotPosition, slot * 2);
+            if (mss.size() == positionSlot.length)
+                positionSlot = Arrays.copyOf(positionSlot, mss.size() * 2);
+            slotPosition[slot] = mss.size();
+            positionSlot[mss.size()] = slot;
+            index.insert(sourceSet, slot);
+        }
+        mss.add(sourceSet);
+        cardinality++;
+    }
+
+    private void buildIndex() {
+        index = new SourceSetTrie();
+        numSlots = mss.size();
+        slotPosition = new int[numSlots * 2 + INDEX_THRESHOLD];
+        positionSlot = new int[numSlots * 2 + INDEX_THRESHOLD];
+        for (int i = 0; i < numSlots; i++) {
+            index.insert(mss.get(i), i);
+            slotPosition[i] = i;
+            positionSlot[i] = i;
+        }
+    }
+
+    // shift source sets after from over the positions removed by indexed add
+    private void compact(int from) {
+        int n = from;
+        for (int i = from; i < mss.size(); i++) {
+            long[] s = mss.get(i);
+            if (s == null)
+                continue;
+            int slot = positionSlot[i];
+            mss.set(n, s);
+            positionSlot[n] = slot;
+            slotPosition[slot] = n;
+            n++;
+        }
+        mss.subList(n, mss.size()).clear();
+    }
+
+    /**
+     * Source sets, read-only. Reading does not modify the MSS,
+     * so an MSS which is no longer modified can be read by several threads.
+     */
+    List<long[]> sets() {
+        return mss;
     }
 
     public boolean addAll(MinimalSourceSet other) {
+        if (other == this)
+            return false;
+
         boolean modified = false;
-        for (Set<Long> s : other.mss) {
+        for (long[] s : other.sets()) {
             modified = modified | add(s);
         }
         return modified;
     }
 
+    /**
+     * Replace source sets by their canonical instances in pool
+     */
+    void intern(SourceSetPool pool) {
+        for (int i = 0; i < mss.size(); i++) {
+            mss.set(i, pool.intern(mss.get(i)));
+        }
+    }
+
     public void removeContains(Long nodeId) {
-        Iterator<Set<Long>> iter = mss.iterator();
+        Iterator<long[]> iter = sets().iterator();
         while (iter.hasNext()) {
-            Set<Long> s = iter.next();
-            if (s.contains(nodeId)) {
+            long[] s = iter.next();
+            if (Arrays.binarySearch(s, nodeId) >= 0) {
                 iter.remove();
+                cardinality--;
+                index = null;
             }
         }
     }
 
     public MinimalSourceSet union(MinimalSourceSet other) {
         MinimalSourceSet result = new MinimalSourceSet();
-        result.addAll(this); //XXX: do deep copy
+        result.addAll(this);
         result.addAll(other);
         return result;
     }
 
     public MinimalSourceSet cartesian(MinimalSourceSet other) {
+        return cartesian(other, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Cartesian product with cardinality limit
+     * @param other other MSS
+     * @param limit maximum cardinality of result
+     * @return cartesian product, or null if cardinality exceeds limit while computing
+     *         (in parallel mode, while computing any part or merging parts)
+     */
+    public MinimalSourceSet cartesian(MinimalSourceSet other, int limit) {
         MinimalSourceSet result = new MinimalSourceSet();
 
         if (this.cardinality() == 0 || other.cardinality() == 0)
             return result;
 
-        for (Set<Long> s1 : mss) {
-            for (Set<Long> s2 : other.mss) {
-                Set<Long> s = new HashSet<>();
-                s.addAll(s1);
-                s.addAll(s2);
-                result.add(s);
+        if (parallelThreshold > 0 && (long) this.cardinality() * other.cardinality() >= parallelThreshold) {
+            // split the larger family
+            List<long[]> outer = this.cardinality() >= other.cardinality() ? this.sets() : other.sets();
+            List<long[]> inner = outer == this.sets() ? other.sets() : this.sets();
+            return ForkJoinPool.commonPool().invoke(new CartesianTask(outer, inner, limit));
+        }
+
+        for (long[] s1 : sets()) {
+            for (long[] s2 : other.sets()) {
+                result.add(union(s1, s2));
+                if (result.cardinality() > limit)
+                    return null;
             }
         }
         return result;
     }
 
+    /**
+     * Cardinality bounds of the cartesian product of families, without enumerating it
+     * - upper : product of cardinalities
+     * - lower : product of the numbers of private source sets, sharing no id with another family.
+     *   Unions of private sets are all distinct and none contains another, so all of them stay minimal.
+     * @return {lower, upper}, saturated at Long.MAX_VALUE
+     */
+    public static long[] cartesianBounds(List<MinimalSourceSet> families) {
+        long upper = 1;
+        for (MinimalSourceSet family : families) {
+            upper = multiply(upper, family.cardinality());
+        }
+        return new long[] { privateProduct(families), upper };
+    }
+
+    /**
+     * True if the cartesian product of families certainly has more than limit source sets,
+     * then the caller decomposes without computing it. Checks the upper bound first, so
+     * products which may fit cost no more than the cardinalities.
+     */
+    public static boolean exceedsLimit(List<MinimalSourceSet> families, int limit) {
+        if (families.size() < 2)
+            return false;
+
+        long upper = 1;
+        for (MinimalSourceSet family : families) {
+            upper = multiply(upper, family.cardinality());
+        }
+        if (upper <= limit || privateProduct(families) <= limit)
+            return false;
+
+        statEstimateSkip.increment();
+        statSkippedPairs.add(upper);
+        statAvoidedUnions.add((long) limit + 1);
+        return true;
+    }
+
+    private static long privateProduct(List<MinimalSourceSet> families) {
+        // id -> index of the only family containing it, -1 if shared
+        Map<Long, Integer> owner = new HashMap<>();
+        for (int i = 0; i < families.size(); i++) {
+            for (long[] s : families.get(i).sets()) {
+                for (long id : s) {
+                    Integer o = owner.putIfAbsent(id, i);
+                    if (o != null && o != i)
+                        owner.put(id, -1);
+                }
+            }
+        }
+
+        long lower = 1;
+        for (int i = 0; i < families.size(); i++) {
+            int count = 0;
+            for (long[] s : families.get(i).sets()) {
+                boolean isPrivate = true;
+                for (long id : s) {
+                    if (owner.get(id) != i) {
+                        isPrivate = false;
+                        break;
+                    }
+                }
+                if (isPrivate)
+                    count++;
+            }
+            lower = multiply(lower, count);
+        }
+        return lower;
+    }
+
+    private static long multiply(long a, long b) {
+        if (a != 0 && b > Long.MAX_VALUE / a)
+            return Long.MAX_VALUE;
+        return a * b;
+    }
+
+    /**
+     * @return MSS of the k smallest source sets
+     */
+    public MinimalSourceSet smallest(int k) {
+        return unionSmallest(new MinimalSourceSet(), k);
+    }
+
+    /**
+     * Union keeping only the k smallest source sets
+     * Both MSSs are merged in size order, a set is final once added
+     * (any subset of it is smaller, so it is already checked) and merging stops after k sets.
+     */
+    public MinimalSourceSet unionSmallest(MinimalSourceSet other, int k) {
+        MinimalSourceSet result = new MinimalSourceSet();
+        long[][] a = sortedBySize(this.sets());
+        long[][] b = sortedBySize(other.sets());
+
+        int i = 0, j = 0;
+        while (result.cardinality() < k && (i < a.length || j < b.length)) {
+            if (j == b.length || (i < a.length && a[i].length <= b[j].length)) {
+                result.add(a[i++]);
+            } else {
+                result.add(b[j++]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Cartesian product keeping only the k smallest source sets
+     */
+    public MinimalSourceSet cartesianSmallest(MinimalSourceSet other, int k) {
+        return cartesianSmallest(Arrays.asList(this, other), k);
+    }
+
+    /**
+     * Cartesian product of several MSSs keeping only the k smallest source sets
+     * Joins lazily (see MinimalSourceSetExpression) and stops after k minimal unions,
+     * combinations whose size bound is not smaller than the k-th result are never joined.
+     * @param families MSSs to join
+     * @param k maximum cardinality of result
+     * @return the k smallest source sets of the cartesian product
+     */
+    public static MinimalSourceSet cartesianSmallest(Collection<MinimalSourceSet> families, int k) {
+        List<MinimalSourceSetExpression> leaves = new ArrayList<>();
+        for (MinimalSourceSet family : families) {
+            leaves.add(MinimalSourceSetExpression.leaf(family));
+        }
+        return MinimalSourceSetExpression.cartesian(leaves).first(k);
+    }
+
+    static long[][] sortedBySize(List<long[]> sets) {
+        long[][] sorted = sets.toArray(new long[0][]);
+        Arrays.sort(sorted, Comparator.comparingInt((long[] s) -> s.length));
+        return sorted;
+    }
+
     public int size() {
         int sum = 0;
-        for (Set<Long> s : mss) {
-            sum += s.size();
+        for (long[] s : sets()) {
+            sum += s.length;
         }
         return sum;
     }
 
     public int cardinality() {
-        return mss.size();
+        return cardinality;
+    }
+
+    /**
+     * Rough heap size in bytes (list slots and source set arrays, subset index not counted)
+     */
+    long estimateHeapBytes() {
+        long bytes = 48 + 8L * mss.size();
+        for (long[] s : mss) {
+            bytes += 16 + 8L * s.length;
+        }
+        return bytes;
     }
 
     @Override
     public String toString() {
-        String str = "";
-        for (Set<Long> s : mss) {
-            for (Long id : s) {
-                str += id + ",";
+        StringBuilder str = new StringBuilder();
+        for (long[] s : sets()) {
+            for (long id : s) {
+                str.append(id).append(',');
             }
-            str += "/";
+            str.append('/');
         }
-        return str;
+        return str.toString();
     }
 
     public static MinimalSourceSet valueOf(String str) {
         MinimalSourceSet mss = new MinimalSourceSet();
 
-        String[] setSeq = str.split("/");
-        for (String setStr : setSeq) {
-            Set<Long> s = new HashSet<>();
+        // parse without split and boxing: "1,2,/3,/"
+        long[] buf = new long[16];
+        int len = 0;
+        long id = 0;
+        boolean digit = false;
+        boolean negative = false;
 
-            String[] nodeSeq = setStr.split(",");
-            for (String nodeStr : nodeSeq) {
-                s.add(Long.valueOf(nodeStr));
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c >= '0' && c <= '9') {
+                id = id * 10 + (c - '0');
+                digit = true;
+            } else if (c == '-') {
+                negative = true;
+            } else if (c == ',' || c == '/') {
+                if (digit) {
+                    if (len == buf.length) buf = Arrays.copyOf(buf, len * 2);
+                    buf[len++] = negative ? -id : id;
+                }
+                id = 0;
+                digit = false;
+                negative = false;
+
+                if (c == '/' && len > 0) {
+                    mss.append(sorted(Arrays.copyOf(buf, len)));
+                    len = 0;
+                }
             }
-            mss.mss.add(s);
+        }
+
+        // last set without trailing separator
+        if (digit) {
+            if (len == buf.length) buf = Arrays.copyOf(buf, len + 1);
+            buf[len++] = negative ? -id : id;
+        }
+        if (len > 0) {
+            mss.append(sorted(Arrays.copyOf(buf, len)));
         }
         return mss;
     }
 
     @Override
     public boolean equals(Object other) {
+        if (!(other instanceof MinimalSourceSet))
+            return false;
+
         MinimalSourceSet otherMss = (MinimalSourceSet) other;
         if (this.cardinality() != otherMss.cardinality())
             return false;
 
-        for (Set<Long> s : mss) {
+        for (long[] s : sets()) {
             if (!otherMss.contains(s)) {
                 return false;
             }
@@ -178,9 +583,25 @@ public class MinimalSourceSet {
         return true;
     }
 
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        for (long[] s : sets()) {
+            hash += Arrays.hashCode(s);
+        }
+        return hash;
+    }
+
     public boolean contains(Set<Long> sourceSet) {
-        for (Set<Long> s : mss) {
-            if (s.containsAll(sourceSet) && sourceSet.containsAll(s)) {
+        return contains(toArray(sourceSet));
+    }
+
+    boolean contains(long[] sourceSet) {
+        if (index != null)
+            return index.find(sourceSet) >= 0;
+
+        for (long[] s : mss) {
+            if (Arrays.equals(s, sourceSet)) {
                 return true;
             }
         }
@@ -196,4 +617,159 @@ public class MinimalSourceSet {
         return sourceSet;
     }
 
+    // ---------- sorted array operations ----------
+
+    static long[] toArray(Set<Long> sourceSet) {
+        if (sourceSet instanceof SourceSet) {
+            return ((SourceSet) sourceSet).ids;
+        }
+
+        long[] ids = new long[sourceSet.size()];
+        int i = 0;
+        for (Long id : sourceSet) {
+            ids[i++] = id;
+        }
+        return sorted(ids);
+    }
+
+    // sort and remove duplicates
+    private static long[] sorted(long[] ids) {
+        if (ids.length == 0)
+            return EMPTY;
+
+        Arrays.sort(ids);
+        int len = 1;
+        for (int i = 1; i < ids.length; i++) {
+            if (ids[i] != ids[len - 1]) {
+                ids[len++] = ids[i];
+            }
+        }
+        return len == ids.length ? ids : Arrays.copyOf(ids, len);
+    }
+
+    // true if a is subset of b
+    static boolean isSubset(long[] a, long[] b) {
+        if (a.length > b.length)
+            return false;
+
+        int j = 0;
+        for (int i = 0; i < a.length; i++) {
+            long x = a[i];
+            // not enough elements left in b
+            if (b.length - j < a.length - i)
+                return false;
+            while (j < b.length && b[j] < x) j++;
+            if (j == b.length || b[j] != x)
+                return false;
+            j++;
+        }
+        return true;
+    }
+
+    static long[] union(long[] a, long[] b) {
+        long[] result = new long[a.length + b.length];
+        int i = 0, j = 0, k = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) result[k++] = a[i++];
+            else if (a[i] > b[j]) result[k++] = b[j++];
+            else {
+                result[k++] = a[i++];
+                j++;
+            }
+        }
+        while (i < a.length) result[k++] = a[i++];
+        while (j < b.length) result[k++] = b[j++];
+
+        // share the original array if one contains the other
+        if (k == a.length) return a;
+        if (k == b.length) return b;
+        return k == result.length ? result : Arrays.copyOf(result, k);
+    }
+
+    // ---------- boxed views for the public API ----------
+
+    /**
+     * Read-only set of node ids backed by a sorted array
+     */
+    static final class SourceSet extends AbstractSet<Long> {
+        private final long[] ids;
+
+        SourceSet(long[] ids) {
+            this.ids = ids;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof Long && Arrays.binarySearch(ids, (Long) o) >= 0;
+        }
+
+        @Override
+        public Iterator<Long> iterator() {
+            return new Iterator<Long>() {
+                private int i = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return i < ids.length;
+                }
+
+                @Override
+                public Long next() {
+                    if (i >= ids.length)
+                        throw new NoSuchElementException();
+                    return ids[i++];
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return ids.length;
+        }
+    }
+
+    private class SourceSetView extends AbstractSet<Set<Long>> {
+        @Override
+        public Iterator<Set<Long>> iterator() {
+            Iterator<long[]> iter = sets().iterator();
+            return new Iterator<Set<Long>>() {
+                @Override
+                public boolean hasNext() {
+                    return iter.hasNext();
+                }
+
+                @Override
+                public Set<Long> next() {
+                    return new SourceSet(iter.next());
+                }
+
+                @Override
+                public void remove() {
+                    iter.remove();
+                    cardinality--;
+                    index = null;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return cardinality;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean contains(Object o) {
+            return o instanceof Set && MinimalSourceSet.this.contains((Set<Long>) o);
+        }
+
+        @Override
+        public boolean add(Set<Long> sourceSet) {
+            long[] s = MinimalSourceSet.toArray(sourceSet);
+            if (MinimalSourceSet.this.contains(s))
+                return false;
+            append(s);
+            return true;
+        }
+    }
 }
@@ -0,0 +1,125 @@
+package hypergraph.mss;
+
+import org.neo4j.graphdb.PropertyContainer;
+
+/**
+ * Binary encoding of MSS for the mss / decomposed properties
+ *
+ * Format (version 1), stored as byte[] property
+ *   version byte
+ *   cardinality (varint)
+ *   for each source set: size (varint), first id (varint), deltas to previous id (varint)
+ *
+ * Source sets are sorted, so deltas are positive and mostly fit in one or two bytes.
+ * Decoding reads the property array directly into the long[] source sets.
+ * Properties written in the old string format ("1,2,/3,/") are still readable.
+ */
+public class MinimalSourceSetCodec {
+    public static final byte VERSION = 1;
+
+    public static byte[] encode(MinimalSourceSet mss) {
+        // compute exact length first to avoid resizing
+        int length = 1 + varintLength(mss.cardinality());
+        for (long[] s : mss.sets()) {
+            length += varintLength(s.length);
+            long prev = 0;
+            for (long id : s) {
+                length += varintLength(id - prev);
+                prev = id;
+            }
+        }
+
+        byte[] buf = new byte[length];
+        int pos = 0;
+        buf[pos++] = VERSION;
+        pos = writeVarint(buf, pos, mss.cardinality());
+        for (long[] s : mss.sets()) {
+            pos = writeVarint(buf, pos, s.length);
+            long prev = 0;
+            for (long id : s) {
+                pos = writeVarint(buf, pos, id - prev);
+                prev = id;
+            }
+        }
+        return buf;
+    }
+
+    public static MinimalSourceSet decode(byte[] buf) {
+        MinimalSourceSet mss = new MinimalSourceSet();
+        if (buf.length == 0)
+            return mss;
+
+        if (buf[0] != VERSION)
+            throw new IllegalArgumentException("unknown MSS encoding version " + buf[0]);
+
+        int[] pos = {1};
+        long cardinality = readVarint(buf, pos);
+        for (long i = 0; i < cardinality; i++) {
+            long[] s = new long[(int) readVarint(buf, pos)];
+            long prev = 0;
+            for (int j = 0; j < s.length; j++) {
+                prev += readVarint(buf, pos);
+                s[j] = prev;
+            }
+            // stored MSS is already minimal
+            mss.append(s);
+        }
+        return mss;
+    }
+
+    /**
+     * Decode a stored property value, binary or old string format
+     * @param value property value, may be null
+     * @return decoded MSS, empty if value is null
+     */
+    public static MinimalSourceSet decode(Object value) {
+        if (value == null)
+            return new MinimalSourceSet();
+        if (value instanceof byte[])
+            return decode((byte[]) value);
+        if (value instanceof String)
+            return MinimalSourceSet.valueOf((String) value);
+        throw new IllegalArgumentException("not an MSS property " + value.getClass().getName());
+    }
+
+    /**
+     * Read MSS from a node (or relationship) property
+     * @return stored MSS, empty if the property does not exist
+     */
+    public static MinimalSourceSet read(PropertyContainer container, String key) {
+        return decode(container.getProperty(key, null));
+    }
+
+    public static void write(PropertyContainer container, String key, MinimalSourceSet mss) {
+        container.setProperty(key, encode(mss));
+    }
+
+    // ---------- unsigned LEB128 varint ----------
+
+    private static int varintLength(long value) {
+        int length = 1;
+        while ((value >>>= 7) != 0) length++;
+        return length;
+    }
+
+    private static int writeVarint(byte[] buf, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static long readVarint(byte[] buf, int[] pos) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf[pos[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
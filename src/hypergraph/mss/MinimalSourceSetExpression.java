@@ -0,0 +1,430 @@
+package hypergraph.mss;
+
+import org.neo4j.graphdb.Node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lazy MSS expression
+ * Tree of union / cartesian nodes over leaf MSSs (usually loaded from the stored mss property).
+ * Nothing is joined until the expression is iterated or materialized.
+ *
+ * Iteration streams source sets in non-decreasing size order and every streamed set is
+ * final (minimal in the whole result), so a query can use the first results
+ * before the full product exists.
+ *
+ * isEmpty() and estimateCardinality() only look at the leaves.
+ */
+public abstract class MinimalSourceSetExpression implements Iterable<Set<Long>> {
+
+    // ---------- construction ----------
+
+    public static MinimalSourceSetExpression leaf(MinimalSourceSet mss) {
+        return new Leaf(() -> mss);
+    }
+
+    /**
+     * Leaf loaded on first use
+     */
+    public static MinimalSourceSetExpression leaf(Supplier<MinimalSourceSet> loader) {
+        return new Leaf(loader);
+    }
+
+    /**
+     * Leaf loaded from the stored MSS of target on first use
+     */
+    public static MinimalSourceSetExpression leaf(MinimalSourceSetFinder finder, Node target) {
+        return new Leaf(() -> finder.find(target));
+    }
+
+    public static MinimalSourceSetExpression union(MinimalSourceSetExpression... children) {
+        return union(Arrays.asList(children));
+    }
+
+    public static MinimalSourceSetExpression union(Collection<MinimalSourceSetExpression> children) {
+        return new Union(new ArrayList<>(children));
+    }
+
+    public static MinimalSourceSetExpression cartesian(MinimalSourceSetExpression... children) {
+        return cartesian(Arrays.asList(children));
+    }
+
+    public static MinimalSourceSetExpression cartesian(Collection<MinimalSourceSetExpression> children) {
+        return new Cartesian(new ArrayList<>(children));
+    }
+
+    // ---------- evaluation ----------
+
+    /**
+     * @return true if the result has no source set
+     */
+    public abstract boolean isEmpty();
+
+    /**
+     * @return upper bound of the result cardinality (saturates at Long.MAX_VALUE)
+     */
+    public abstract long estimateCardinality();
+
+    /**
+     * Compute the whole result
+     */
+    public abstract MinimalSourceSet materialize();
+
+    /**
+     * @return the k smallest source sets of the result
+     */
+    public MinimalSourceSet first(int k) {
+        MinimalSourceSet result = new MinimalSourceSet();
+        Cursor cursor = cursor();
+        long[] s;
+        while (result.cardinality() < k && (s = cursor.next()) != null) {
+            // streamed sets are already minimal
+            result.append(s);
+        }
+        return result;
+    }
+
+    @Override
+    public Iterator<Set<Long>> iterator() {
+        Cursor cursor = cursor();
+        return new Iterator<Set<Long>>() {
+            private long[] next = cursor.next();
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Set<Long> next() {
+                if (next == null)
+                    throw new NoSuchElementException();
+                long[] s = next;
+                next = cursor.next();
+                return new MinimalSourceSet.SourceSet(s);
+            }
+        };
+    }
+
+    public Stream<Set<Long>> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(),
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * @return source sets in non-decreasing size order
+     */
+    abstract Cursor cursor();
+
+    // ---------- nodes ----------
+
+    private static class Leaf extends MinimalSourceSetExpression {
+        private Supplier<MinimalSourceSet> loader;
+        private MinimalSourceSet mss;
+
+        Leaf(Supplier<MinimalSourceSet> loader) {
+            this.loader = loader;
+        }
+
+        private MinimalSourceSet get() {
+            if (mss == null) {
+                mss = loader.get();
+                if (mss == null)
+                    mss = new MinimalSourceSet();
+                loader = null;
+            }
+            return mss;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return get().cardinality() == 0;
+        }
+
+        @Override
+        public long estimateCardinality() {
+            return get().cardinality();
+        }
+
+        @Override
+        public MinimalSourceSet materialize() {
+            return new MinimalSourceSet(get());
+        }
+
+        @Override
+        Cursor cursor() {
+            long[][] sorted = MinimalSourceSet.sortedBySize(get().sets());
+            return new Cursor() {
+                private int i = 0;
+
+                @Override
+                long[] next() {
+                    return i < sorted.length ? sorted[i++] : null;
+                }
+            };
+        }
+    }
+
+    private static class Union extends MinimalSourceSetExpression {
+        private final List<MinimalSourceSetExpression> children;
+
+        Union(List<MinimalSourceSetExpression> children) {
+            this.children = children;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            for (MinimalSourceSetExpression child : children) {
+                if (!child.isEmpty())
+                    return false;
+            }
+            return true;
+        }
+
+        @Override
+        public long estimateCardinality() {
+            long sum = 0;
+            for (MinimalSourceSetExpression child : children) {
+                sum += child.estimateCardinality();
+                if (sum < 0)
+                    return Long.MAX_VALUE;
+            }
+            return sum;
+        }
+
+        @Override
+        public MinimalSourceSet materialize() {
+            MinimalSourceSet result = new MinimalSourceSet();
+            for (MinimalSourceSetExpression child : children) {
+                result.addAll(child.materialize());
+            }
+            return result;
+        }
+
+        @Override
+        Cursor cursor() {
+            // merge children by size of their next set
+            PriorityQueue<Head> heads = new PriorityQueue<>(Comparator.comparingInt((Head h) -> h.set.length));
+            for (MinimalSourceSetExpression child : children) {
+                Cursor cursor = child.cursor();
+                long[] s = cursor.next();
+                if (s != null)
+                    heads.add(new Head(s, cursor));
+            }
+
+            MinimalSourceSet emitted = new MinimalSourceSet();
+            return new Cursor() {
+                @Override
+                long[] next() {
+                    while (!heads.isEmpty()) {
+                        Head h = heads.poll();
+                        long[] s = h.set;
+                        h.set = h.cursor.next();
+                        if (h.set != null)
+                            heads.add(h);
+
+                        // smaller sets are already emitted, so a set added here is never removed
+                        if (emitted.add(s))
+                            return s;
+                    }
+                    return null;
+                }
+            };
+        }
+
+        private static class Head {
+            long[] set;
+            final Cursor cursor;
+
+            Head(long[] set, Cursor cursor) {
+                this.set = set;
+                this.cursor = cursor;
+            }
+        }
+    }
+
+    private static class Cartesian extends MinimalSourceSetExpression {
+        private final List<MinimalSourceSetExpression> children;
+
+        Cartesian(List<MinimalSourceSetExpression> children) {
+            this.children = children;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            if (children.isEmpty())
+                return true;
+            // any empty child makes the whole product empty
+            for (MinimalSourceSetExpression child : children) {
+                if (child.isEmpty())
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public long estimateCardinality() {
+            if (isEmpty())
+                return 0;
+
+            long product = 1;
+            for (MinimalSourceSetExpression child : children) {
+                long c = child.estimateCardinality();
+                if (product > Long.MAX_VALUE / c)
+                    return Long.MAX_VALUE;
+                product *= c;
+            }
+            return product;
+        }
+
+        @Override
+        public MinimalSourceSet materialize() {
+            if (isEmpty())
+                return new MinimalSourceSet();
+
+            // join small ones first to keep intermediate products small
+            List<MinimalSourceSetExpression> order = new ArrayList<>(children);
+            order.sort(Comparator.comparingLong(MinimalSourceSetExpression::estimateCardinality));
+
+            MinimalSourceSet result = null;
+            for (MinimalSourceSetExpression child : order) {
+                MinimalSourceSet mss = child.materialize();
+                result = result == null ? mss : result.cartesian(mss);
+                if (result.cardinality() == 0)
+                    break;
+            }
+            return result;
+        }
+
+        /**
+         * Combinations of one set from each child are enumerated best-first by a lower bound
+         * of their union size (size of the largest member). A combination is put back with its
+         * exact size once joined, so unions come out in size order.
+         */
+        @Override
+        Cursor cursor() {
+            if (isEmpty())
+                return Cursor.EMPTY;
+
+            int n = children.size();
+            Buffer[] buffers = new Buffer[n];
+            for (int f = 0; f < n; f++) {
+                buffers[f] = new Buffer(children.get(f).cursor());
+            }
+
+            PriorityQueue<Combination> queue = new PriorityQueue<>();
+            queue.add(new Combination(new int[n], 0, lowerBound(buffers, new int[n])));
+
+            MinimalSourceSet emitted = new MinimalSourceSet();
+            return new Cursor() {
+                @Override
+                long[] next() {
+                    while (!queue.isEmpty()) {
+                        Combination c = queue.poll();
+
+                        if (c.union != null) {
+                            // every smaller union is already checked
+                            if (emitted.add(c.union))
+                                return c.union;
+                            continue;
+                        }
+
+                        // join and put back with exact size
+                        long[] u = buffers[0].get(c.index[0]);
+                        for (int f = 1; f < n; f++) {
+                            u = MinimalSourceSet.union(u, buffers[f].get(c.index[f]));
+                        }
+                        c.union = u;
+                        c.key = u.length;
+                        queue.add(c);
+
+                        // next combinations, each generated once by increasing positions >= last
+                        for (int f = c.last; f < n; f++) {
+                            if (buffers[f].get(c.index[f] + 1) != null) {
+                                int[] index = c.index.clone();
+                                index[f]++;
+                                queue.add(new Combination(index, f, lowerBound(buffers, index)));
+                            }
+                        }
+                    }
+                    return null;
+                }
+            };
+        }
+
+        private static int lowerBound(Buffer[] buffers, int[] index) {
+            int bound = 0;
+            for (int f = 0; f < index.length; f++) {
+                bound = Math.max(bound, buffers[f].get(index[f]).length);
+            }
+            return bound;
+        }
+
+        // sets of a child cursor pulled so far
+        private static class Buffer {
+            private final Cursor cursor;
+            private final List<long[]> sets = new ArrayList<>();
+            private boolean exhausted = false;
+
+            Buffer(Cursor cursor) {
+                this.cursor = cursor;
+            }
+
+            long[] get(int i) {
+                while (sets.size() <= i && !exhausted) {
+                    long[] s = cursor.next();
+                    if (s == null) exhausted = true;
+                    else sets.add(s);
+                }
+                return i < sets.size() ? sets.get(i) : null;
+            }
+        }
+
+        // combination of one source set from each child
+        private static class Combination implements Comparable<Combination> {
+            final int[] index;
+            final int last;
+            int key; // lower bound, exact size once joined
+            long[] union;
+
+            Combination(int[] index, int last, int key) {
+                this.index = index;
+                this.last = last;
+                this.key = key;
+            }
+
+            @Override
+            public int compareTo(Combination o) {
+                if (key != o.key)
+                    return Integer.compare(key, o.key);
+                // joined first, so that equal sized lower bounds do not delay results
+                return Boolean.compare(o.union != null, union != null);
+            }
+        }
+    }
+
+    // source sets in non-decreasing size order, null at the end
+    abstract static class Cursor {
+        static final Cursor EMPTY = new Cursor() {
+            @Override
+            long[] next() {
+                return null;
+            }
+        };
+
+        abstract long[] next();
+    }
+}
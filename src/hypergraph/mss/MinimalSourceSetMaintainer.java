@@ -0,0 +1,508 @@
+package hypergraph.mss;
+
+import hypergraph.common.Const;
+import hypergraph.common.DecomposedIdSet;
+import hypergraph.common.Hyperedge;
+import hypergraph.common.HypergraphCondensation;
+import hypergraph.common.HypergraphDatabase;
+import hypergraph.common.HypergraphSnapshot;
+import hypergraph.util.Log;
+import org.neo4j.graphdb.*;
+
+import java.util.*;
+
+/**
+ * Incremental maintenance of a built MSS index
+ * Applies hyperedge insertions / deletions or startable label changes to the graph and updates
+ * only the affected MSSs, instead of running a builder again over all startable nodes.
+ *
+ * - insertion (hyperedge, startable label) only adds source sets, so it is pushed forward from
+ *   the stored MSSs and propagation stops at nodes whose MSS does not change
+ * - deletion can remove source sets anywhere downstream, so the forward cone is reset and
+ *   recomputed (components of the cone in topological order, as CondensationBuilder)
+ *
+ * MSSs outside the cone are read from the stored mss property, only changed properties are written.
+ * Decomposed hyperedges of the index (its DecomposedIdSet) stay decomposed (placeholder source set, see FastDecompositionBuilder),
+ * with maxMSS (or a decomposition policy) a hyperedge exceeding the limit is newly decomposed.
+ * Proxy nodes of NodeDecompositionBuilder are not maintained, an index having them is rejected.
+ */
+public class MinimalSourceSetMaintainer {
+    private static GraphDatabaseService graphDb;
+    private HypergraphSnapshot snapshot;
+
+    // decomposition parameter
+    private DecompositionPolicy policy;
+    private HypergraphSnapshot policySnapshot; // snapshot policy is initialized with
+
+    // dense node id -> current mss, loaded from the index on first use
+    private Map<Integer, MinimalSourceSet> mssMap;
+    private BitSet modified; // dense node ids
+    private DecomposedIdSet decomposedIds; // of the index before this maintenance
+    private Set<Long> newlyDecomposed; // neo4j ids of hypernodes decomposed by this maintenance
+
+    // statistic
+    private int statCone;
+    private int statComputation;
+    private int statDecomposed;
+
+    public MinimalSourceSetMaintainer() {
+        this(Integer.MAX_VALUE);
+    }
+
+    public MinimalSourceSetMaintainer(int maxMSS) {
+        this.policy = new FixedDecompositionPolicy(maxMSS);
+        graphDb = HypergraphDatabase.getGraphDatabase();
+    }
+
+    /**
+     * Same policy as the builder of the index, e.g. AdaptiveDecompositionPolicy.load
+     */
+    public void setDecompositionPolicy(DecompositionPolicy policy) {
+        this.policy = policy;
+        this.policySnapshot = null;
+    }
+
+    public void insert(Hyperedge hyperedge) {
+        apply(Collections.singleton(hyperedge), Collections.emptySet());
+    }
+
+    public void remove(Hyperedge hyperedge) {
+        apply(Collections.emptySet(), Collections.singleton(hyperedge));
+    }
+
+    /**
+     * Save inserted hyperedges, delete removed ones (having hypernode, see Hyperedge.getHyperedgesFrom)
+     * and update the index
+     */
+    public void apply(Collection<Hyperedge> inserted, Collection<Hyperedge> removed) {
+        long t = System.currentTimeMillis();
+        statCone = 0;
+        statComputation = 0;
+        statDecomposed = 0;
+
+        // snapshot before modification, updated after it
+        HypergraphSnapshot before = HypergraphDatabase.getHypergraphSnapshot();
+        checkDecomposition(before);
+
+        // modify graph
+        Set<Long> removedTargets = new HashSet<>();
+        Set<Long> insertedHypernodes = new HashSet<>();
+        Set<Long> deletedHypernodes = new HashSet<>();
+        try (Transaction tx = graphDb.beginTx()) {
+            for (Hyperedge e : removed) {
+                Node hypernode = e.getHypernode();
+                if (hypernode == null) {
+                    Log.warn("removed hyperedge is not saved");
+                    continue;
+                }
+                List<Node> targets = new ArrayList<>();
+                for (Relationship rel : hypernode.getRelationships(Direction.OUTGOING, Const.REL_TO_TARGET)) {
+                    targets.add(rel.getEndNode());
+                    removedTargets.add(rel.getEndNode().getId());
+                }
+                for (Relationship rel : hypernode.getRelationships()) {
+                    rel.delete();
+                }
+                deletedHypernodes.add(hypernode.getId());
+                hypernode.delete();
+
+                // hyperedges dominated by the removed one may be necessary now
+                RedundantHyperedgePruner.unmark(targets);
+            }
+
+            for (Hyperedge e : inserted) {
+                e.save(graphDb);
+                if (e.getHypernode() != null)
+                    insertedHypernodes.add(e.getHypernode().getId());
+            }
+            tx.success();
+        }
+
+        // dense ids and adjacency of the modified graph, new ids appended
+        snapshot = before.update(graphDb, insertedHypernodes, deletedHypernodes);
+        HypergraphDatabase.setHypergraphSnapshot(snapshot);
+
+        maintain(removedTargets, insertedHypernodes, Collections.emptySet());
+        updateDecomposedIdSet(deletedHypernodes);
+
+        Log.info("MSS maintenance complete (" + (System.currentTimeMillis() - t) + " ms) - inserted " + inserted.size()
+                + ", removed " + removed.size());
+    }
+
+    public void addStartable(Node node) {
+        updateStartable(Collections.singleton(node), Collections.emptySet());
+    }
+
+    public void removeStartable(Node node) {
+        updateStartable(Collections.emptySet(), Collections.singleton(node));
+    }
+
+    /**
+     * Add / remove startable label of nodes and update the index
+     * An added node gets its singleton source set, which is pushed forward.
+     * A removed node is not only dropped from source sets (removeContains), the sets using it
+     * are replaced by sets reaching it, so the forward cone of the node is recomputed.
+     */
+    public void updateStartable(Collection<Node> added, Collection<Node> removed) {
+        long t = System.currentTimeMillis();
+        statCone = 0;
+        statComputation = 0;
+        statDecomposed = 0;
+
+        checkDecomposition(HypergraphDatabase.getHypergraphSnapshot());
+
+        Set<Long> addedIds = new HashSet<>();
+        Set<Long> removedIds = new HashSet<>();
+        try (Transaction tx = graphDb.beginTx()) {
+            for (Node node : removed) {
+                if (node.hasLabel(Const.LABEL_STARTABLE)) {
+                    node.removeLabel(Const.LABEL_STARTABLE);
+                    removedIds.add(node.getId());
+                }
+            }
+            for (Node node : added) {
+                if (!node.hasLabel(Const.LABEL_STARTABLE)) {
+                    node.addLabel(Const.LABEL_STARTABLE);
+                    addedIds.add(node.getId());
+                }
+            }
+            tx.success();
+        }
+
+        // structure is not changed
+        snapshot = HypergraphDatabase.getHypergraphSnapshot().updateStartable(addedIds, removedIds);
+        HypergraphDatabase.setHypergraphSnapshot(snapshot);
+
+        maintain(removedIds, Collections.emptySet(), addedIds);
+        updateDecomposedIdSet(Collections.emptySet());
+
+        Log.info("MSS maintenance complete (" + (System.currentTimeMillis() - t) + " ms) - startable added " + addedIds.size()
+                + ", removed " + removedIds.size());
+    }
+
+    /**
+     * @param coneSeeds nodes whose forward cone is recomputed
+     * @param hypernodes hyperedges pushed forward
+     * @param startNodes start nodes pushed forward
+     */
+    private void maintain(Set<Long> coneSeeds, Set<Long> hypernodes, Set<Long> startNodes) {
+        if (policySnapshot != snapshot) {
+            policy.init(snapshot);
+            policySnapshot = snapshot;
+        }
+
+        decomposedIds = HypergraphDatabase.getDecomposedIdSet();
+        try (Transaction tx = graphDb.beginTx()) {
+            mssMap = new HashMap<>();
+            modified = new BitSet();
+            newlyDecomposed = new HashSet<>();
+
+            // deletion : recompute the cone
+            BitSet cone = new BitSet();
+            if (!coneSeeds.isEmpty()) {
+                int[] seeds = coneSeeds.stream().mapToInt(snapshot::toNode).filter((v) -> v >= 0).toArray();
+                cone = getForwardCone(seeds);
+                recompute(cone);
+            }
+
+            // insertion : push new hyperedges and start nodes, already included if inside the cone
+            Queue<Integer> queue = new ArrayDeque<>();
+            BitSet queued = new BitSet();
+            for (Long id : hypernodes) {
+                int h = snapshot.toHypernode(id);
+                if (h < 0 || allTargetsIn(h, cone))
+                    continue;
+                pushHyperedge(h, queue, queued);
+            }
+            for (Long id : startNodes) {
+                int s = snapshot.toNode(id);
+                if (s < 0 || cone.get(s))
+                    continue;
+                if (getMinimalSourceSet(s).add(id)) {
+                    modified.set(s);
+                    queued.set(s);
+                    queue.add(s);
+                }
+            }
+            propagate(queue, queued);
+
+            int written = save();
+            tx.success();
+
+            Log.info("cone " + statCone + ", computation " + statComputation + ", decomposed " + statDecomposed
+                    + ", written " + written);
+        }
+
+        // reconstruction of a decomposed hypernode depends on MSSs anywhere upstream
+        ReconstructionCache.invalidateAll();
+    }
+
+    /**
+     * A decomposed node is a proxy of NodeDecompositionBuilder, its {v} placeholder and PROP_DECOMPOSED MSS
+     * would go stale. Checked before the graph is modified.
+     * @throws IllegalStateException if the index has proxy nodes
+     */
+    private void checkDecomposition(HypergraphSnapshot snapshot) {
+        for (long id : HypergraphDatabase.getDecomposedIdSet().toArray()) {
+            if (snapshot.toNode(id) >= 0)
+                throw new IllegalStateException("node " + id + " is decomposed, an index of NodeDecompositionBuilder cannot be maintained - rebuild it");
+        }
+    }
+
+    // deleted ids may be reused by Neo4j
+    private void updateDecomposedIdSet(Set<Long> deletedHypernodes) {
+        if (newlyDecomposed.isEmpty() && deletedHypernodes.isEmpty())
+            return;
+        HypergraphDatabase.setDecomposedIdSet(
+                HypergraphDatabase.getDecomposedIdSet().update(newlyDecomposed, deletedHypernodes));
+    }
+
+    // ---------- propagation (mss only grows) ----------
+
+    private void propagate(Queue<Integer> queue, BitSet queued) {
+        while (!queue.isEmpty()) {
+            int s = queue.poll();
+            queued.clear(s);
+            for (int i = snapshot.forwardBegin(s); i < snapshot.forwardEnd(s); i++) {
+                pushHyperedge(snapshot.forward(i), queue, queued);
+            }
+        }
+    }
+
+    // add mss of hypernode to its targets, enqueue modified targets
+    private void pushHyperedge(int hypernode, Queue<Integer> queue, BitSet queued) {
+        if (snapshot.isRedundant(hypernode) || !isEnabled(hypernode))
+            return;
+
+        MinimalSourceSet mssHyperedge = computeMinimalSourceSet(hypernode);
+        for (int j = snapshot.targetBegin(hypernode); j < snapshot.targetEnd(hypernode); j++) {
+            int t = snapshot.target(j);
+            if (getMinimalSourceSet(t).addAll(mssHyperedge)) {
+                modified.set(t);
+                if (!queued.get(t)) {
+                    queued.set(t);
+                    queue.add(t);
+                }
+            }
+        }
+    }
+
+    // ---------- recomputation (mss may shrink) ----------
+
+    /**
+     * Nodes reachable from seeds through hyperedges, seeds included
+     */
+    private BitSet getForwardCone(int[] seeds) {
+        BitSet cone = new BitSet(snapshot.numNodes());
+        Queue<Integer> queue = new ArrayDeque<>();
+        for (int s : seeds) {
+            if (!cone.get(s)) {
+                cone.set(s);
+                queue.add(s);
+            }
+        }
+
+        while (!queue.isEmpty()) {
+            int v = queue.poll();
+            for (int i = snapshot.forwardBegin(v); i < snapshot.forwardEnd(v); i++) {
+                int h = snapshot.forward(i);
+                for (int j = snapshot.targetBegin(h); j < snapshot.targetEnd(h); j++) {
+                    int t = snapshot.target(j);
+                    if (!cone.get(t)) {
+                        cone.set(t);
+                        queue.add(t);
+                    }
+                }
+            }
+        }
+        return cone;
+    }
+
+    /**
+     * Reset and recompute MSSs of a forward closed cone
+     * Dependencies from outside of the cone are final, so components of the cone are computed
+     * in topological order and only cyclic ones iterate.
+     */
+    private void recompute(BitSet cone) {
+        statCone += cone.cardinality();
+        // cone is forward closed, so its components are those of the graph (outside ones are -1)
+        HypergraphCondensation condensation = HypergraphCondensation.compute(snapshot, cone);
+
+        // reset, keep start nodes
+        for (int v = cone.nextSetBit(0); v >= 0; v = cone.nextSetBit(v + 1)) {
+            MinimalSourceSet mss = new MinimalSourceSet();
+            if (getNode(v).hasLabel(Const.LABEL_STARTABLE))
+                mss.add(snapshot.nodeId(v));
+            mssMap.put(v, mss);
+            modified.set(v);
+        }
+
+        for (int c = 0; c < condensation.numComponents(); c++) {
+            // hyperedges from earlier components, once per component
+            for (int i = condensation.memberBegin(c); i < condensation.memberEnd(c); i++) {
+                int v = condensation.member(i);
+                for (int k = snapshot.backwardBegin(v); k < snapshot.backwardEnd(v); k++) {
+                    int h = snapshot.backward(k);
+                    if (snapshot.isRedundant(h) || !isExternal(h, c, condensation) || firstTargetIn(h, c, condensation) != v
+                            || !isEnabled(h))
+                        continue;
+
+                    MinimalSourceSet mssHyperedge = computeMinimalSourceSet(h);
+                    for (int j = snapshot.targetBegin(h); j < snapshot.targetEnd(h); j++) {
+                        int t = snapshot.target(j);
+                        if (condensation.component(t) == c)
+                            getMinimalSourceSet(t).addAll(mssHyperedge);
+                    }
+                }
+            }
+
+            if (condensation.isCyclic(c))
+                iterate(c, condensation);
+        }
+    }
+
+    // fixpoint inside cyclic component c
+    private void iterate(int c, HypergraphCondensation condensation) {
+        Queue<Integer> work = new ArrayDeque<>();
+        BitSet queued = new BitSet();
+        for (int i = condensation.memberBegin(c); i < condensation.memberEnd(c); i++) {
+            enqueueInternal(condensation.member(i), c, condensation, work, queued);
+        }
+
+        while (!work.isEmpty()) {
+            int h = work.poll();
+            queued.clear(h);
+            if (!isEnabled(h))
+                continue;
+
+            MinimalSourceSet mssHyperedge = computeMinimalSourceSet(h);
+            for (int j = snapshot.targetBegin(h); j < snapshot.targetEnd(h); j++) {
+                int t = snapshot.target(j);
+                if (condensation.component(t) == c && getMinimalSourceSet(t).addAll(mssHyperedge))
+                    enqueueInternal(t, c, condensation, work, queued);
+            }
+        }
+    }
+
+    // enqueue hyperedges from node having a target inside component c
+    private void enqueueInternal(int node, int c, HypergraphCondensation condensation, Queue<Integer> work, BitSet queued) {
+        for (int i = snapshot.forwardBegin(node); i < snapshot.forwardEnd(node); i++) {
+            int h = snapshot.forward(i);
+            if (!queued.get(h) && !snapshot.isRedundant(h) && firstTargetIn(h, c, condensation) >= 0) {
+                queued.set(h);
+                work.add(h);
+            }
+        }
+    }
+
+    // true if all sources of hypernode are in components before c (or outside of the cone)
+    private boolean isExternal(int hypernode, int c, HypergraphCondensation condensation) {
+        for (int i = snapshot.sourceBegin(hypernode); i < snapshot.sourceEnd(hypernode); i++) {
+            if (condensation.component(snapshot.source(i)) >= c)
+                return false;
+        }
+        return true;
+    }
+
+    // first target of hypernode inside component c, -1 if none
+    private int firstTargetIn(int hypernode, int c, HypergraphCondensation condensation) {
+        for (int j = snapshot.targetBegin(hypernode); j < snapshot.targetEnd(hypernode); j++) {
+            int t = snapshot.target(j);
+            if (condensation.component(t) == c)
+                return t;
+        }
+        return -1;
+    }
+
+    private boolean allTargetsIn(int hypernode, BitSet nodes) {
+        for (int j = snapshot.targetBegin(hypernode); j < snapshot.targetEnd(hypernode); j++) {
+            if (!nodes.get(snapshot.target(j)))
+                return false;
+        }
+        return true;
+    }
+
+    // ---------- index access ----------
+
+    /**
+     * Write modified MSSs which differ from the stored ones
+     * @return number of written nodes
+     */
+    private int save() {
+        int written = 0;
+        for (int v = modified.nextSetBit(0); v >= 0; v = modified.nextSetBit(v + 1)) {
+            Node node = getNode(v);
+            MinimalSourceSet mss = mssMap.get(v);
+            if (mss.equals(MinimalSourceSetCodec.read(node, Const.PROP_MSS)))
+                continue;
+
+            if (mss.cardinality() == 0)
+                node.removeProperty(Const.PROP_MSS);
+            else
+                MinimalSourceSetCodec.write(node, Const.PROP_MSS, mss);
+            Log.debug("MSS(" + node.getId() + ") = " + mss.toString());
+            written++;
+        }
+        return written;
+    }
+
+    private Node getNode(int node) {
+        return graphDb.getNodeById(snapshot.nodeId(node));
+    }
+
+    private MinimalSourceSet getMinimalSourceSet(int node) {
+        MinimalSourceSet mss = mssMap.get(node);
+        if (mss == null) {
+            mss = MinimalSourceSetCodec.read(getNode(node), Const.PROP_MSS);
+            mssMap.put(node, mss);
+        }
+        return mss;
+    }
+
+    private MinimalSourceSet computeMinimalSourceSet(int hypernode) {
+        statComputation++;
+
+        // check already decomposed, a decomposed hyperedge stays decomposed
+        long id = snapshot.hypernodeId(hypernode);
+        if (decomposedIds.contains(id) || newlyDecomposed.contains(id))
+            return new MinimalSourceSet(id);
+
+        // decompose without enumerating if the product certainly exceeds the limit
+        if (snapshot.numSources(hypernode) > 1) {
+            List<MinimalSourceSet> families = new ArrayList<>();
+            for (int i = snapshot.sourceBegin(hypernode); i < snapshot.sourceEnd(hypernode); i++) {
+                families.add(getMinimalSourceSet(snapshot.source(i)));
+            }
+            if (MinimalSourceSet.exceedsLimit(families, policy.limit(hypernode))) {
+                newlyDecomposed.add(id);
+                statDecomposed++;
+                return new MinimalSourceSet(id);
+            }
+        }
+
+        MinimalSourceSet mss = null;
+        for (int i = snapshot.sourceBegin(hypernode); i < snapshot.sourceEnd(hypernode); i++) {
+            MinimalSourceSet mssSource = getMinimalSourceSet(snapshot.source(i));
+            if (mss == null) {
+                mss = mssSource;
+            } else {
+                mss = mss.cartesian(mssSource, policy.limit(hypernode));
+                if (mss == null) {
+                    newlyDecomposed.add(id);
+                    statDecomposed++;
+                    return new MinimalSourceSet(id);
+                }
+            }
+        }
+        return mss;
+    }
+
+    // visited sources have a non-empty mss
+    private boolean isEnabled(int hypernode) {
+        for (int i = snapshot.sourceBegin(hypernode); i < snapshot.sourceEnd(hypernode); i++) {
+            if (getMinimalSourceSet(snapshot.source(i)).cardinality() == 0)
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,235 @@
+package hypergraph.mss;
+
+import hypergraph.common.Const;
+import hypergraph.common.HypergraphDatabase;
+import hypergraph.util.Log;
+import hypergraph.util.Measure;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Asynchronous MSS index writer
+ * Producers encode MSSs into batches, a writer thread commits each batch in its own transaction.
+ * At most MAX_PENDING_BATCHES batches wait for the writer, a producer blocks while they are full,
+ * so memory stays bounded and commits overlap with the computation of the builder.
+ *
+ * An MSS is encoded when written (by the producer, so producers encode in parallel),
+ * it may be modified or spilled afterwards.
+ * Batches are committed independently, a failed build may leave part of the index written
+ * (abort drops the batches not committed yet, the builder clears the committed ones, see ParallelBuilder).
+ * Opening and closing a writer invalidates the shared ReconstructionCache.
+ * write() is thread-safe.
+ */
+public class MinimalSourceSetWriter implements AutoCloseable {
+    public static final int DEFAULT_BATCH_SIZE = 5000;
+    private static final int MAX_PENDING_BATCHES = 4;
+
+    private static class Batch {
+        final long[] ids;
+        final byte[][] values;
+        int size;
+
+        Batch(int capacity) {
+            ids = new long[capacity];
+            values = new byte[capacity][];
+            size = 0;
+        }
+    }
+
+    // end of stream
+    private static final Batch END = new Batch(0);
+
+    private final GraphDatabaseService graphDb;
+    private final String prop;
+    private final int batchSize;
+    private final BlockingQueue<Batch> pending;
+    private final Thread thread;
+    private Batch current;
+    private boolean closed;
+    private volatile Throwable failure;
+
+    // statistic
+    private final Measure measureSize;
+    private final Measure measureCardinality;
+    private long start;
+    private long producerWait;
+    private volatile long written;
+    private volatile long writtenBytes;
+    private volatile int committed;
+
+    public MinimalSourceSetWriter(String prop) {
+        this(prop, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param prop property of node to write
+     * @param batchSize number of MSSs in one transaction
+     */
+    public MinimalSourceSetWriter(String prop, int batchSize) {
+        this.graphDb = HypergraphDatabase.getGraphDatabase();
+        this.prop = prop;
+        this.batchSize = batchSize;
+        this.pending = new ArrayBlockingQueue<>(MAX_PENDING_BATCHES);
+        this.current = new Batch(batchSize);
+
+        String suffix = prop.equals(Const.PROP_MSS) ? "" : " " + prop;
+        measureSize = new Measure("MSS size" + suffix);
+        measureCardinality = new Measure("MSS cardinality" + suffix);
+
+        // cached reconstructions are stale once the index is rewritten
+        ReconstructionCache.invalidateAll();
+
+        start = System.currentTimeMillis();
+        thread = new Thread(this::consume, "mss-writer-" + prop);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Write mss as prop of node id
+     * Encoded in the calling thread, only the encoded value is handed to the batch under the lock.
+     */
+    public void write(long id, MinimalSourceSet mss) {
+        append(id, MinimalSourceSetCodec.encode(mss), mss.size(), mss.cardinality());
+    }
+
+    private synchronized void append(long id, byte[] value, int size, int cardinality) {
+        if (closed)
+            throw new IllegalStateException("writer is closed");
+        checkFailure();
+
+        current.ids[current.size] = id;
+        current.values[current.size] = value;
+        current.size++;
+        measureSize.addData(size);
+        measureCardinality.addData(cardinality);
+
+        if (current.size == batchSize) {
+            handOff(current);
+            current = new Batch(batchSize);
+        }
+    }
+
+    public void writeAll(Map<Long, MinimalSourceSet> mssMap) {
+        for (Map.Entry<Long, MinimalSourceSet> entry : mssMap.entrySet()) {
+            write(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Commit remaining MSSs and wait for the writer thread
+     * @throws RuntimeException if a batch failed
+     */
+    @Override
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+
+        if (current.size > 0)
+            handOff(current);
+        current = null;
+        handOff(END);
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while writing MSS index", e);
+        }
+        ReconstructionCache.invalidateAll();
+        checkFailure();
+
+        long dt = Math.max(1, System.currentTimeMillis() - start);
+        Log.info("MSS writer " + prop + " - " + written + " MSS (" + writtenBytes + " bytes) in "
+                + committed + " transactions, " + dt + " ms, " + (written * 1000 / dt) + " MSS/s"
+                + ", producer wait " + producerWait + " ms");
+        measureSize.printStatistic();
+        measureCardinality.printStatistic();
+    }
+
+    /**
+     * Drop MSSs not committed yet and stop the writer thread, after a failed build
+     * A batch being committed is finished. Failures of the writer are not rethrown.
+     */
+    public synchronized void abort() {
+        if (closed)
+            return;
+        closed = true;
+
+        // producers are done, the cleared queue has room for the end
+        current = null;
+        pending.clear();
+        pending.offer(END);
+
+        // wait even if interrupted, the batch in progress must not be committed after the caller clears the index
+        boolean interrupted = Thread.interrupted();
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        ReconstructionCache.invalidateAll();
+        Log.warn("MSS writer " + prop + " aborted - " + written + " MSS in " + committed + " transactions committed");
+    }
+
+    private void handOff(Batch batch) {
+        long t = System.currentTimeMillis();
+        try {
+            pending.put(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while writing MSS index", e);
+        }
+        producerWait += System.currentTimeMillis() - t;
+    }
+
+    private void checkFailure() {
+        if (failure != null)
+            throw new RuntimeException("MSS index write failed", failure);
+    }
+
+    private void consume() {
+        while (true) {
+            Batch batch;
+            try {
+                batch = pending.take();
+            } catch (InterruptedException e) {
+                failure = e;
+                return;
+            }
+            if (batch == END)
+                return;
+
+            // after a failure keep taking batches, so producers are not blocked
+            if (failure != null)
+                continue;
+
+            try {
+                long bytes = 0;
+                try (Transaction tx = graphDb.beginTx()) {
+                    for (int i = 0; i < batch.size; i++) {
+                        graphDb.getNodeById(batch.ids[i]).setProperty(prop, batch.values[i]);
+                        bytes += batch.values[i].length;
+                    }
+                    tx.success();
+                }
+
+                written += batch.size;
+                writtenBytes += bytes;
+                committed++;
+            } catch (Throwable e) {
+                Log.error("MSS index write failed - " + e.getMessage());
+                failure = e;
+            }
+        }
+    }
+}
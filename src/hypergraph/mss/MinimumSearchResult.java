@@ -0,0 +1,69 @@
+package hypergraph.mss;
+
+import java.util.Set;
+
+/**
+ * Result of a budgeted minimum source set search
+ * The smallest source set found so far is an upper bound of the minimum cardinality,
+ * together with a lower bound proven by the search. The result is optimal when the search finished
+ * within its budget, then the source set is a minimum (or null if target has no source set).
+ */
+public class MinimumSearchResult {
+    private final Set<Long> sourceSet;
+    private final int lowerBound;
+    private final boolean optimal;
+    private final long expanded;
+    private final long time;
+
+    /**
+     * @param sourceSet smallest source set found, null if none
+     * @param lowerBound no source set has fewer nodes, Integer.MAX_VALUE if no source set exists
+     * @param optimal search completed within budget
+     * @param expanded number of expanded search states (operations of a budgeted discovery)
+     * @param time search time in ms
+     */
+    public MinimumSearchResult(Set<Long> sourceSet, int lowerBound, boolean optimal, long expanded, long time) {
+        this.sourceSet = sourceSet;
+        this.lowerBound = lowerBound;
+        this.optimal = optimal;
+        this.expanded = expanded;
+        this.time = time;
+    }
+
+    /**
+     * @return smallest source set found, null if none
+     */
+    public Set<Long> getSourceSet() {
+        return sourceSet;
+    }
+
+    public int getLowerBound() {
+        return lowerBound;
+    }
+
+    /**
+     * @return cardinality of the smallest source set found, Integer.MAX_VALUE if none
+     */
+    public int getUpperBound() {
+        return sourceSet == null ? Integer.MAX_VALUE : sourceSet.size();
+    }
+
+    public boolean isOptimal() {
+        return optimal;
+    }
+
+    public long getExpanded() {
+        return expanded;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    @Override
+    public String toString() {
+        return (optimal ? "optimal" : "budget exhausted") + " - size " + (sourceSet == null ? "-" : sourceSet.size())
+                + ", lower bound " + (lowerBound == Integer.MAX_VALUE ? "-" : lowerBound)
+                + ", expanded " + expanded + ", " + time + " ms";
+    }
+}
@@ -1,7 +1,9 @@
 package hypergraph.mss;
 
 import hypergraph.common.Const;
+import hypergraph.common.DecomposedIdSet;
 import hypergraph.common.HypergraphDatabase;
+import hypergraph.common.HypergraphSnapshot;
 import hypergraph.util.Log;
 import hypergraph.util.Measure;
 import org.neo4j.graphdb.*;
@@ -19,8 +21,10 @@ import java.util.*;
 public class NaiveBuilder implements MinimalSourceSetBuilder {
     private static GraphDatabaseService graphDb;
     protected Map<Long, MinimalSourceSet> mssMap;
-    private Set<Long> visited;
-    private Set<Long> computed;
+    private SourceSetPool pool;
+    private HypergraphSnapshot snapshot;
+    private BitSet visited; // dense node ids
+    private ComputationQueue queue;
 
     // statistic
     private int queueLen;
@@ -28,13 +32,22 @@ public class NaiveBuilder implements MinimalSourceSetBuilder {
     public NaiveBuilder() {
         graphDb = HypergraphDatabase.getGraphDatabase();
         mssMap = new HashMap<>();
-        visited = new HashSet<>();
-        computed = new HashSet<>();
+        pool = new SourceSetPool();
+        visited = new BitSet();
+    }
+
+    /**
+     * Keep about heapBudget bytes of MSSs on heap, spill the rest to a temporary file
+     * @param heapBudget approximate bytes, set before run
+     */
+    public void setMemoryBudget(long heapBudget) {
+        mssMap = new SpillingMinimalSourceSetMap(heapBudget);
     }
 
     public void run() {
         long t = System.currentTimeMillis(); // measure building time
         queueLen = 0;
+        MinimalSourceSet.resetStatistic();
 
         Log.info("NaiveBuilder run");
 
@@ -54,9 +67,17 @@ public class NaiveBuilder implements MinimalSourceSetBuilder {
             save();
             tx.success();
         }
+        // nothing is decomposed, replaces the ids of an earlier build
+        HypergraphDatabase.setDecomposedIdSet(DecomposedIdSet.of(Collections.emptySet()));
+        ReconstructionCache.invalidateAll();
 
         Log.info("Build MSSIndex complete (" + (System.currentTimeMillis() - t) + " ms)");
         Log.info("queueLen " + queueLen);
+        Log.info("pruned candidates " + MinimalSourceSet.getPrunedCount());
+        Log.info("indexed minimality checks " + MinimalSourceSet.getIndexedCheckCount());
+        if (mssMap instanceof SpillingMinimalSourceSetMap)
+            ((SpillingMinimalSourceSetMap) mssMap).printStatistic();
+        pool.printStatistic();
     }
 
     private void save() {
@@ -66,7 +87,7 @@ public class NaiveBuilder implements MinimalSourceSetBuilder {
             Long id = entry.getKey();
             MinimalSourceSet mss = entry.getValue();
             Node node = graphDb.getNodeById(id);
-            node.setProperty(Const.PROP_MSS, mss.toString());
+            MinimalSourceSetCodec.write(node, Const.PROP_MSS, mss);
 
             Log.debug("MSS(" + id + ") = " + mss.toString());
             measureSize.addData(mss.size());
@@ -76,51 +97,52 @@ public class NaiveBuilder implements MinimalSourceSetBuilder {
         measureCardinality.printStatistic();
     }
 
-    private void printQueue(Queue<Node> queue) {
+    private void printQueue() {
         String str = "";
-        for (Node n : queue) {
-            str += getComputationRate(n) + ":" + n.getId() + ", ";
+        for (int i = 0; i < queue.size(); i++) {
+            int n = queue.get(i);
+            str += getComputationRate(n) + ":" + snapshot.nodeId(n) + ", ";
         }
         Log.debug(str);
     }
 
     // extend for mixed backward discovery
     public interface VisitHandler {
-        boolean visit(Node node);
+        boolean visit(long nodeId);
     }
 
     private void compute(Set<Node> start) {
-        compute(start, (node)->{ return true; });
+        compute(start, (nodeId)->{ return true; });
     }
 
     protected void compute(Set<Node> start, VisitHandler visitHandler) {
-        PriorityQueue<Node> queue = new PriorityQueue<>((Node n1, Node n2) -> {
-            return getComputationRate(n1) - getComputationRate(n2);
-        });
+        snapshot = HypergraphDatabase.getHypergraphSnapshot();
+
+        queue = new ComputationQueue(snapshot);
 
         // enqueue start nodes
-        for (Node s : start) {
+        for (Node node : start) {
+            int s = snapshot.toNode(node.getId());
             setVisited(s);
             queue.add(s);
             MinimalSourceSet mss = getOrCreateMinimalSourceSet(s);
-            mss.add(s.getId());
+            mss.add(node.getId());
         }
 
         while (!queue.isEmpty()) {
             // dequeue a normal node (one of source nodes)
-            printQueue(queue);
-            Node s = queue.poll();
-            Log.debug("node " + s.getId());
+            printQueue();
+            int s = queue.poll();
+            Log.debug("node " + snapshot.nodeId(s));
             queueLen++;
 
             // get forward star
-            Iterable<Relationship> fromSources = s.getRelationships(Direction.OUTGOING, Const.REL_FROM_SOURCE);
-            for (Relationship fromSource : fromSources) {
+            for (int i = snapshot.forwardBegin(s); i < snapshot.forwardEnd(s); i++) {
                 // get pseudo hypernode and check enabled
-                Node h = fromSource.getEndNode();
+                int h = snapshot.forward(i);
 
-                // skip if already computed and not modified
-                if (isComputed(h))
+                // skip if already computed and not modified, or redundant
+                if (isComputed(h) || snapshot.isRedundant(h))
                     continue;
 
                 // check enabled (all source visited)
@@ -132,17 +154,17 @@ public class NaiveBuilder implements MinimalSourceSetBuilder {
 
                 // calculate mss of hyperedge
                 MinimalSourceSet mssHyperedge = computeMinimalSourceSet(h);
+                pool.intern(mssHyperedge);
 
                 // get target node
-                Iterable<Relationship> toTargets = h.getRelationships(Direction.OUTGOING, Const.REL_TO_TARGET);
-                for (Relationship toTarget : toTargets) {
-                    Node t = toTarget.getEndNode();
+                for (int j = snapshot.targetBegin(h); j < snapshot.targetEnd(h); j++) {
+                    int t = snapshot.target(j);
 
-                    if (!visitHandler.visit(t))
+                    if (!visitHandler.visit(snapshot.nodeId(t)))
                         continue;
 
                     setVisited(t);
-                    Log.debug("add target " + t.getId());
+                    Log.debug("add target " + snapshot.nodeId(t));
 
                     // calculate and update mss
                     MinimalSourceSet mssTarget = getOrCreateMinimalSourceSet(t);
@@ -150,8 +172,7 @@ public class NaiveBuilder implements MinimalSourceSetBuilder {
                     boolean modified = mssTarget.addAll(mssHyperedge);
                     if (modified) {
                         if (queue.contains(t)) {
-                            queue.remove(t);
-                            Log.debug("already contains node " + t.getId());
+                            Log.debug("already contains node " + snapshot.nodeId(t));
                         }
                         queue.add(t);
                         unsetComputed(t);
@@ -161,22 +182,22 @@ public class NaiveBuilder implements MinimalSourceSetBuilder {
         }
     }
 
-    private MinimalSourceSet getOrCreateMinimalSourceSet(Node node) {
-        MinimalSourceSet mss = mssMap.get(node.getId());
+    private MinimalSourceSet getOrCreateMinimalSourceSet(int node) {
+        long id = snapshot.nodeId(node);
+        MinimalSourceSet mss = mssMap.get(id);
         if (mss != null)
             return mss;
 
         // allocate new mss
         mss = new MinimalSourceSet();
-        mssMap.put(node.getId(), mss);
+        mssMap.put(id, mss);
         return mss;
     }
 
-    private MinimalSourceSet computeMinimalSourceSet(Node hypernode) {
+    private MinimalSourceSet computeMinimalSourceSet(int hypernode) {
         MinimalSourceSet mss = null;
-        Iterable<Relationship> rels = hypernode.getRelationships(Direction.INCOMING, Const.REL_FROM_SOURCE);
-        for (Relationship rel : rels) {
-            Node s = rel.getStartNode();
+        for (int i = snapshot.sourceBegin(hypernode); i < snapshot.sourceEnd(hypernode); i++) {
+            int s = snapshot.source(i);
             if (mss == null) {
                 mss = getOrCreateMinimalSourceSet(s);
             } else {
@@ -187,54 +208,37 @@ public class NaiveBuilder implements MinimalSourceSetBuilder {
         return mss;
     }
 
-    private void setVisited(Node node) {
-        visited.add(node.getId());
+    private void setVisited(int node) {
+        visited.set(node);
     }
 
-    private boolean isVisited(Node node) {
-        return visited.contains(node.getId());
+    private boolean isVisited(int node) {
+        return visited.get(node);
     }
 
-    private boolean isEnabled(Node hypernode) {
-        Iterable<Relationship> rels = hypernode.getRelationships(Direction.INCOMING, Const.REL_FROM_SOURCE);
-        for (Relationship rel : rels) {
-            if (!isVisited(rel.getStartNode())) {
+    private boolean isEnabled(int hypernode) {
+        for (int i = snapshot.sourceBegin(hypernode); i < snapshot.sourceEnd(hypernode); i++) {
+            if (!isVisited(snapshot.source(i))) {
                 return false;
             }
         }
         return true;
     }
 
-    //TODO: how to handle changes
-    private int getComputationRate(Node node) {
-        int countComputed = 0;
-        int countTotal = 0;
-
-        // get incoming hyperedges
-        Iterable<Relationship> rels = node.getRelationships(Direction.INCOMING, Const.REL_TO_TARGET);
-        for (Relationship rel : rels) {
-            Node h = rel.getStartNode();
-            if (isComputed(h))
-                countComputed++;
-            countTotal++;
-        }
-
-        return countTotal - countComputed;
+    // number of incoming hyperedges not computed yet, kept up to date by queue
+    private int getComputationRate(int node) {
+        return queue.getComputationRate(node);
     }
 
-    private void setComputed(Node node) {
-        computed.add(node.getId());
+    private void setComputed(int hypernode) {
+        queue.setComputed(hypernode);
     }
 
-    private boolean isComputed(Node node) {
-        return computed.contains(node.getId());
+    private boolean isComputed(int hypernode) {
+        return queue.isComputed(hypernode);
     }
 
-    private void unsetComputed(Node node) {
-        Iterable<Relationship> rels = node.getRelationships(Direction.OUTGOING, Const.REL_FROM_SOURCE);
-        for (Relationship rel : rels) {
-            Node h = rel.getEndNode();
-            computed.remove(h.getId());
-        }
+    private void unsetComputed(int node) {
+        queue.unsetComputed(node);
     }
 }
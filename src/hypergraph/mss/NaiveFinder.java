@@ -10,7 +10,6 @@ import org.neo4j.graphdb.Node;
 public class NaiveFinder implements MinimalSourceSetFinder {
     @Override
     public MinimalSourceSet find(Node target) {
-        String mssStr = (String) target.getProperty(Const.PROP_MSS);
-        return MinimalSourceSet.valueOf(mssStr);
+        return MinimalSourceSetCodec.decode(target.getProperty(Const.PROP_MSS));
     }
 }
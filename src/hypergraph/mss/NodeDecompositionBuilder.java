@@ -1,9 +1,10 @@
 package hypergraph.mss;
 
 import hypergraph.common.Const;
+import hypergraph.common.DecomposedIdSet;
 import hypergraph.common.HypergraphDatabase;
+import hypergraph.common.HypergraphSnapshot;
 import hypergraph.util.Log;
-import hypergraph.util.Measure;
 import org.neo4j.graphdb.*;
 
 import java.util.*;
@@ -17,12 +18,14 @@ import java.util.*;
 public class NodeDecompositionBuilder implements MinimalSourceSetBuilder {
     private static GraphDatabaseService graphDb;
     protected Map<Long, MinimalSourceSet> mssMap;
+    private SourceSetPool pool;
     private Map<Long, MinimalSourceSet> decomposedMap;
-    private Set<Long> visited;
-    private Set<Long> computed;
+    private HypergraphSnapshot snapshot;
+    private BitSet visited; // dense node ids
+    private ComputationQueue queue;
 
     // decomposition parameter
-    private int maxMSS;
+    private DecompositionPolicy policy;
 
     // statistic - XXX: separate as a module
     private int statDecomposed;
@@ -34,22 +37,39 @@ public class NodeDecompositionBuilder implements MinimalSourceSetBuilder {
     }
 
     public NodeDecompositionBuilder(int maxMSS) {
-        this.maxMSS = maxMSS;
+        this.policy = new FixedDecompositionPolicy(maxMSS);
         graphDb = HypergraphDatabase.getGraphDatabase();
         mssMap = new HashMap<>();
-        visited = new HashSet<>();
-        computed = new HashSet<>();
+        pool = new SourceSetPool();
+        visited = new BitSet();
         decomposedMap = new HashMap<>();
     }
 
+    /**
+     * Keep about heapBudget bytes of MSSs on heap, spill the rest to a temporary file
+     * @param heapBudget approximate bytes, set before run
+     */
+    public void setMemoryBudget(long heapBudget) {
+        mssMap = new SpillingMinimalSourceSetMap(heapBudget);
+    }
+
+    /**
+     * Decide decomposition per node instead of a fixed maxMSS
+     * @param policy set before run
+     */
+    public void setDecompositionPolicy(DecompositionPolicy policy) {
+        this.policy = policy;
+    }
+
     public void run() {
         // measure building time
         long t = System.currentTimeMillis();
         statDecomposed = 0;
         totalComputation = 0;
         queueLen = 0;
+        MinimalSourceSet.resetStatistic();
 
-        Log.info("MSS builder maxMSS = " + maxMSS);
+        Log.info("MSS builder " + policy);
 
         try (Transaction tx = graphDb.beginTx()) {
             // find all startable nodes
@@ -69,74 +89,54 @@ public class NodeDecompositionBuilder implements MinimalSourceSetBuilder {
 
         saveTx(mssMap, Const.PROP_MSS);
         saveTx(decomposedMap, Const.PROP_DECOMPOSED);
+        HypergraphDatabase.setDecomposedIdSet(DecomposedIdSet.of(decomposedMap.keySet()));
 
         Log.info("Build MSSIndex complete (" + (System.currentTimeMillis() - t) + " ms)");
         Log.info("Decomposed MSS " + statDecomposed);
         Log.info("totalComputation " + totalComputation);
         Log.info("queueLen " + queueLen);
+        Log.info("pruned candidates " + MinimalSourceSet.getPrunedCount());
+        Log.info("indexed minimality checks " + MinimalSourceSet.getIndexedCheckCount());
+        if (mssMap instanceof SpillingMinimalSourceSetMap)
+            ((SpillingMinimalSourceSetMap) mssMap).printStatistic();
+        pool.printStatistic();
     }
 
     private void saveTx(Map<Long, MinimalSourceSet> map, String prop) {
-        Measure measure = new Measure("MSS size " + prop);
-        Iterator<Map.Entry<Long, MinimalSourceSet>> iter = map.entrySet().iterator();
-        while (saveTxHelper(iter, prop, measure));
-        measure.printStatistic();
-    }
-
-    private boolean saveTxHelper(Iterator<Map.Entry<Long, MinimalSourceSet>> iter, String prop, Measure measure) {
-        final int maxCount = 5000;
-        int count = 0;
-        try (Transaction tx = graphDb.beginTx()) {
-            while (iter.hasNext()) {
-                Map.Entry<Long, MinimalSourceSet> entry = iter.next();
-
-                Long id = entry.getKey();
-                MinimalSourceSet mss = entry.getValue();
-                Node node = graphDb.getNodeById(id);
-                node.setProperty(prop, mss.toString());
-
-                Log.debug("MSS(" + id + ") = " + mss.toString());
-                measure.addData(mss.size());
-
-                if (count == maxCount) {
-                    tx.success();
-                    return true;
-                }
-            }
-            tx.success();
+        try (MinimalSourceSetWriter writer = new MinimalSourceSetWriter(prop)) {
+            writer.writeAll(map);
         }
-        return false;
     }
 
-    private void printQueue(Queue<Node> queue) {
+    private void printQueue() {
         String str = "";
-        for (Node n : queue) {
-            str += getComputationRate(n) + ":" + n.getId() + ", ";
+        for (int i = 0; i < queue.size(); i++) {
+            int n = queue.get(i);
+            str += getComputationRate(n) + ":" + snapshot.nodeId(n) + ", ";
         }
         Log.debug(str);
     }
 
     protected void compute(Set<Node> start) {
-        PriorityQueue<Node> queue = new PriorityQueue<Node>(new Comparator<Node>() {
-            @Override
-            public int compare(Node n1, Node n2) {
-                return getComputationRate(n1) - getComputationRate(n2);
-            }
-        });
+        snapshot = HypergraphDatabase.getHypergraphSnapshot();
+        policy.init(snapshot);
+
+        queue = new ComputationQueue(snapshot);
 
         // enqueue start nodes
-        for (Node s : start) {
+        for (Node node : start) {
+            int s = snapshot.toNode(node.getId());
             setVisited(s);
             queue.add(s);
             MinimalSourceSet mss = getMinimalSourceSet(s);
-            mss.add(s.getId());
+            mss.add(node.getId());
         }
 
         while (!queue.isEmpty()) {
             // dequeue a normal node (one of source nodes)
-            printQueue(queue);
-            Node s = queue.poll();
-            Log.debug("node " + s.getId());
+            printQueue();
+            int s = queue.poll();
+            Log.debug("node " + snapshot.nodeId(s));
             queueLen++;
 
             if (getComputationRate(s) != 0) {
@@ -144,13 +144,12 @@ public class NodeDecompositionBuilder implements MinimalSourceSetBuilder {
             }
 
             // get forward star
-            Iterable<Relationship> fromSources = s.getRelationships(Direction.OUTGOING, Const.REL_FROM_SOURCE);
-            for (Relationship fromSource : fromSources) {
+            for (int i = snapshot.forwardBegin(s); i < snapshot.forwardEnd(s); i++) {
                 // get pseudo hypernode and check enabled
-                Node h = fromSource.getEndNode();
+                int h = snapshot.forward(i);
 
-                // skip if already computed and not modified
-                if (isComputed(h))
+                // skip if already computed and not modified, or redundant
+                if (isComputed(h) || snapshot.isRedundant(h))
                     continue;
 
                 // check enabled (all source visited)
@@ -162,16 +161,17 @@ public class NodeDecompositionBuilder implements MinimalSourceSetBuilder {
 
                 // calculate mss of hyperedge
                 MinimalSourceSet mssHyperedge = computeMinimalSourceSet(h);
+                pool.intern(mssHyperedge);
 
                 // get target node
-                Iterable<Relationship> toTargets = h.getRelationships(Direction.OUTGOING, Const.REL_TO_TARGET);
-                for (Relationship toTarget : toTargets) {
-                    Node t = toTarget.getEndNode();
+                for (int j = snapshot.targetBegin(h); j < snapshot.targetEnd(h); j++) {
+                    int t = snapshot.target(j);
+                    long tid = snapshot.nodeId(t);
 
                     setVisited(t);
-                    Log.debug("add target " + t.getId());
+                    Log.debug("add target " + tid);
 
-                    if (decomposedMap.containsKey(t.getId())) {
+                    if (decomposedMap.containsKey(tid)) {
                         //TODO:
                         continue;
                     }
@@ -183,18 +183,17 @@ public class NodeDecompositionBuilder implements MinimalSourceSetBuilder {
                     boolean modified = mssTarget.addAll(mssHyperedge);
                     if (modified) {
                         // check decomposition
-                        if (mssTarget.cardinality() > maxMSS) {
-                            decomposedMap.put(t.getId(), mssTarget);
+                        if (mssTarget.cardinality() > policy.nodeLimit(t)) {
+                            decomposedMap.put(tid, mssTarget);
                             //t.setProperty(Const.PROP_DECOMPOSED, mssTarget.toString());
                             mssTarget = new MinimalSourceSet();
-                            mssTarget.add(t.getId());
-                            mssMap.put(t.getId(), mssTarget);
+                            mssTarget.add(tid);
+                            mssMap.put(tid, mssTarget);
                             statDecomposed++;
                         }
 
                         if (queue.contains(t)) {
-                            queue.remove(t);
-                            Log.debug("already contains node " + t.getId());
+                            Log.debug("already contains node " + tid);
                         }
                         queue.add(t);
                         unsetComputed(t);
@@ -204,120 +203,87 @@ public class NodeDecompositionBuilder implements MinimalSourceSetBuilder {
         }
     }
 
-    private MinimalSourceSet getMinimalSourceSet(Node node) {
-        MinimalSourceSet mss = mssMap.get(node.getId());
+    private MinimalSourceSet getMinimalSourceSet(int node) {
+        long id = snapshot.nodeId(node);
+        MinimalSourceSet mss = mssMap.get(id);
         if (mss != null)
             return mss;
 
         // allocate new mss
         mss = new MinimalSourceSet();
-        mssMap.put(node.getId(), mss);
+        mssMap.put(id, mss);
         return mss;
     }
 
     // TODO: remove unused param limit
     private MinimalSourceSet computeCartesianWithLimit(MinimalSourceSet a, MinimalSourceSet b, int limit) {
-        MinimalSourceSet result = new MinimalSourceSet();
-
-        if (a.cardinality() == 0 || b.cardinality() == 0)
-            return result;
-
-        for (Set<Long> s1 : a.getSourceSets()) {
-            for (Set<Long> s2 : b.getSourceSets()) {
-                Set<Long> s = new HashSet<>();
-                s.addAll(s1);
-                s.addAll(s2);
-                result.add(s);
-//                if (result.cardinality() > limit)
-//                    return null;
-            }
-        }
-        return result;
+        return a.cartesian(b);
     }
 
-    private MinimalSourceSet computeMinimalSourceSet(Node hypernode) {
+    private MinimalSourceSet computeMinimalSourceSet(int hypernode) {
         MinimalSourceSet mss = null;
-        Iterable<Relationship> rels = hypernode.getRelationships(Direction.INCOMING, Const.REL_FROM_SOURCE);
-        for (Relationship rel : rels) {
-            Node s = rel.getStartNode();
+        for (int i = snapshot.sourceBegin(hypernode); i < snapshot.sourceEnd(hypernode); i++) {
+            int s = snapshot.source(i);
             if (mss == null) {
                 mss = getMinimalSourceSet(s);
             } else {
-                mss = computeCartesianWithLimit(mss, getMinimalSourceSet(s), maxMSS);
+                mss = computeCartesianWithLimit(mss, getMinimalSourceSet(s), policy.limit(hypernode));
             }
             Log.debug("mss grow " + mss.cardinality());
         }
         return mss;
     }
 
-    private void setVisited(Node node) {
-        visited.add(node.getId());
+    private void setVisited(int node) {
+        visited.set(node);
     }
 
-    private boolean isVisited(Node node) {
-        return visited.contains(node.getId());
+    private boolean isVisited(int node) {
+        return visited.get(node);
     }
 
-    private boolean isEnabled(Node hypernode) {
-        Iterable<Relationship> rels = hypernode.getRelationships(Direction.INCOMING, Const.REL_FROM_SOURCE);
-        for (Relationship rel : rels) {
-            if (!isVisited(rel.getStartNode())) {
+    private boolean isEnabled(int hypernode) {
+        for (int i = snapshot.sourceBegin(hypernode); i < snapshot.sourceEnd(hypernode); i++) {
+            if (!isVisited(snapshot.source(i))) {
                 return false;
             }
         }
         return true;
     }
 
-    //TODO: how to handle changes
-    private int getComputationRate(Node node) {
-        int countComputed = 0;
-        int countTotal = 0;
-
-        // get incoming hyperedges
-        Iterable<Relationship> rels = node.getRelationships(Direction.INCOMING, Const.REL_TO_TARGET);
-        for (Relationship rel : rels) {
-            Node h = rel.getStartNode();
-            if (isComputed(h))
-                countComputed++;
-            countTotal++;
-        }
-
-        return countTotal - countComputed;
+    // number of incoming hyperedges not computed yet, kept up to date by queue
+    private int getComputationRate(int node) {
+        return queue.getComputationRate(node);
     }
 
-    private void setComputed(Node node) {
-        computed.add(node.getId());
+    private void setComputed(int hypernode) {
+        queue.setComputed(hypernode);
     }
 
-    private boolean isComputed(Node node) {
-        return computed.contains(node.getId());
+    private boolean isComputed(int hypernode) {
+        return queue.isComputed(hypernode);
     }
 
-    private void unsetComputed(Node node) {
-        Iterable<Relationship> rels = node.getRelationships(Direction.OUTGOING, Const.REL_FROM_SOURCE);
-        for (Relationship rel : rels) {
-            Node h = rel.getEndNode();
-            computed.remove(h.getId());
-        }
+    private void unsetComputed(int node) {
+        queue.unsetComputed(node);
     }
 
     private void recomputeDecomposed() {
         for (Map.Entry<Long, MinimalSourceSet> entry : decomposedMap.entrySet()) {
             long id = entry.getKey();
-            Node node = graphDb.getNodeById(id);
+            int v = snapshot.toNode(id);
 
             MinimalSourceSet mss = new MinimalSourceSet();
-            if (node.hasLabel(Const.LABEL_STARTABLE)) {
+            if (snapshot.isStartable(v)) {
                 mss.add(id);
             }
 
-            Iterable<Relationship> rels = node.getRelationships(Direction.INCOMING, Const.REL_TO_TARGET);
-            for (Relationship rel : rels) {
-                Node h = rel.getStartNode();
-                mss.addAll(computeMinimalSourceSet(h));
+            for (int i = snapshot.backwardBegin(v); i < snapshot.backwardEnd(v); i++) {
+                if (!snapshot.isRedundant(snapshot.backward(i)))
+                    mss.addAll(computeMinimalSourceSet(snapshot.backward(i)));
             }
 
-            if (!node.hasLabel(Const.LABEL_STARTABLE)) {
+            if (!snapshot.isStartable(v)) {
                 mss.removeContains(id);
             }
 
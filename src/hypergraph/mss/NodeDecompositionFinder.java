@@ -1,6 +1,7 @@
 package hypergraph.mss;
 
 import hypergraph.common.Const;
+import hypergraph.common.DecomposedIdSet;
 import hypergraph.common.HypergraphDatabase;
 import hypergraph.util.Log;
 import org.neo4j.graphdb.Direction;
@@ -8,6 +9,8 @@ import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -19,23 +22,51 @@ import java.util.Set;
 public class NodeDecompositionFinder implements MinimalSourceSetFinder {
     private static GraphDatabaseService graphDb;
     private Set<Long> reconstructed;
+    private Set<Long> terminals; // reconstructed startable proxy nodes, real sources from then on
+    private ReconstructionCache cache;
+    private DecomposedIdSet decomposed; // loaded by each query
 
     public NodeDecompositionFinder() {
         graphDb = HypergraphDatabase.getGraphDatabase();
         reconstructed = new HashSet<>();
+        terminals = new HashSet<>();
+        cache = ReconstructionCache.getInstance();
     }
 
     @Override
     @Deprecated
     public MinimalSourceSet find(Node target) {
-        MinimalSourceSet mss = getMinimalSourceSet(target);
+        HypergraphDatabase.getQueryFrequency().record(target.getId());
+        return new MinimalSourceSet(cache.find(target, "NodeDecompositionFinder", this::reconstructAll));
+    }
+
+    private MinimalSourceSet reconstructAll(Node target) {
+        reconstructed = new HashSet<>();
+        terminals = new HashSet<>();
+        decomposed = HypergraphDatabase.getDecomposedIdSet();
+        MinimalSourceSet mss = new MinimalSourceSet(getMinimalSourceSet(target));
+
+        // source sets with a proxy node in mss order, expanded front to back (see FastDecompositionFinder)
+        Deque<long[]> pending = new ArrayDeque<>();
+        pushDecomposed(mss, pending);
+
+        while (!pending.isEmpty()) {
+            long[] s = pending.poll();
+            if (!mss.contains(s))
+                continue;
+
+            long decomposedId = firstDecomposed(s);
+            if (decomposedId < 0)
+                continue;
+
+            // proxy node back in a set derived from itself
+            if (reconstructed.contains(decomposedId)) {
+                mss.removeContains(decomposedId);
+                continue;
+            }
 
-        // Naive implementation
-        long decomposedId = needReconstruction(mss);
-        while (decomposedId > 0) {
-            mss = reconstruct(mss, decomposedId);
             reconstructed.add(decomposedId);
-            decomposedId = needReconstruction(mss);
+            mss = reconstruct(mss, decomposedId, pending);
             Log.info("decomposedId " + decomposedId);
         }
 
@@ -83,7 +114,10 @@ public class NodeDecompositionFinder implements MinimalSourceSetFinder {
 //        return false;
 //    }
 
-    private MinimalSourceSet reconstruct(MinimalSourceSet mss, long decomposedId) {
+    /**
+     * @param pending decomposed source sets of the product are appended
+     */
+    private MinimalSourceSet reconstruct(MinimalSourceSet mss, long decomposedId, Deque<long[]> pending) {
         /*
         A = {a, gf, h}
         mss = {Abc, Abe, ADe}
@@ -105,32 +139,40 @@ public class NodeDecompositionFinder implements MinimalSourceSetFinder {
         Node d = graphDb.getNodeById(decomposedId);
         MinimalSourceSet mss3 = getProxy(d); // A in example
 //        mss3.removeContains(decomposedId);
-        mss2.addAll(mss3.cartesian(mss1));
+
+        // the full MSS of a startable proxy keeps {d}, d stays in the product as a source
+        if (mss3.contains(new long[] {decomposedId}))
+            terminals.add(decomposedId);
+
+        MinimalSourceSet product = mss3.cartesian(mss1);
+        mss2.addAll(product);
+        pushDecomposed(product, pending);
 
         return mss2;
     }
 
-    private long needReconstruction(MinimalSourceSet mss) {
-        for (Set<Long> s : mss.getSourceSets()) {
-            for (Long nodeId : s) {
-                Node v = graphDb.getNodeById(nodeId);
-                if (v.hasProperty(Const.PROP_DECOMPOSED) && reconstructed.contains(v.getId())) {
-                    return nodeId;
-                }
-            }
+    private void pushDecomposed(MinimalSourceSet mss, Deque<long[]> pending) {
+        for (long[] s : mss.sets()) {
+            if (firstDecomposed(s) >= 0)
+                pending.add(s);
+        }
+    }
+
+    private long firstDecomposed(long[] s) {
+        for (long nodeId : s) {
+            if (decomposed.contains(nodeId) && !terminals.contains(nodeId))
+                return nodeId;
         }
         return -1;
     }
 
     private MinimalSourceSet getMinimalSourceSet(Node target) {
-        if (!target.hasProperty(Const.PROP_MSS))
-            return new MinimalSourceSet();
-        return MinimalSourceSet.valueOf((String) target.getProperty(Const.PROP_MSS));
+        return cache.read(target, Const.PROP_MSS);
     }
 
     private MinimalSourceSet getProxy(Node proxy) {
         if (!proxy.hasProperty(Const.PROP_DECOMPOSED))
             return null;
-        return MinimalSourceSet.valueOf((String) proxy.getProperty(Const.PROP_DECOMPOSED));
+        return cache.read(proxy, Const.PROP_DECOMPOSED);
     }
 }
@@ -0,0 +1,380 @@
+package hypergraph.mss;
+
+import hypergraph.common.Const;
+import hypergraph.common.DecomposedIdSet;
+import hypergraph.common.HypergraphCondensation;
+import hypergraph.common.HypergraphDatabase;
+import hypergraph.common.HypergraphSnapshot;
+import hypergraph.util.Log;
+import hypergraph.util.Measure;
+import org.neo4j.graphdb.*;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Parallel builder over the SCC condensation DAG
+ * Each component is a fork-join task, started as soon as all components it depends on are done,
+ * so independent components (and independent frontier nodes) are computed at the same time
+ * by a work-stealing pool.
+ *
+ * A task pulls its incoming hyperedges from finished components and only writes the MSSs of
+ * its own members, so MSSs are not shared while being modified. Cyclic components run the
+ * fixpoint of CondensationBuilder inside their task.
+ * A hyperedge with targets in several components is computed once per component.
+ * MSSs of a finished component are handed to the index writer by its task,
+ * so commits overlap with the remaining components.
+ * If the build fails, the writer is aborted once all tasks have ended and the committed part is cleared,
+ * leaving no index (no mss property, empty DecomposedIdSet) instead of a mix with the previous one.
+ *
+ * No decomposition, same result as NaiveBuilder.
+ */
+public class ParallelBuilder implements MinimalSourceSetBuilder {
+    private static GraphDatabaseService graphDb;
+    private SourceSetPool pool;
+    private HypergraphSnapshot snapshot;
+    private HypergraphCondensation condensation;
+    private int parallelism;
+
+    private MinimalSourceSet[] mss; // dense node id -> mss, null if not visited
+    private BitSet startable; // dense node ids
+    private AtomicIntegerArray pending; // component -> edges from unfinished components
+    private CountDownLatch remaining; // unfinished components
+    private AtomicReference<Throwable> failure;
+    private MinimalSourceSetWriter writer;
+
+    // statistic
+    private int[] iterations; // component -> hyperedge computations of fixpoint
+    private LongAdder totalComputation;
+
+    public ParallelBuilder() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelBuilder(int parallelism) {
+        this.parallelism = parallelism;
+        graphDb = HypergraphDatabase.getGraphDatabase();
+        pool = new SourceSetPool();
+    }
+
+    public void run() {
+        long t = System.currentTimeMillis(); // measure building time
+        totalComputation = new LongAdder();
+        MinimalSourceSet.resetStatistic();
+
+        Log.info("ParallelBuilder run - parallelism " + parallelism);
+
+        try (Transaction tx = graphDb.beginTx()) {
+            // find all startable nodes
+            Set<Node> start = new HashSet<>();
+            ResourceIterator<Node> nodeIter = graphDb.findNodes(Const.LABEL_STARTABLE);
+            while (nodeIter.hasNext()) {
+                Node v = nodeIter.next();
+                start.add(v);
+            }
+
+            // compute with startable nodes, mms are written while computing
+            writer = new MinimalSourceSetWriter(Const.PROP_MSS);
+            try {
+                compute(start);
+            } catch (RuntimeException | Error e) {
+                // tasks have ended, MSSs not committed yet are dropped
+                writer.abort();
+                throw e;
+            } finally {
+                writer.close();
+                writer = null;
+            }
+            tx.success();
+        } catch (RuntimeException | Error e) {
+            clearIndex();
+            throw e;
+        }
+        // nothing is decomposed, replaces the ids of an earlier build
+        HypergraphDatabase.setDecomposedIdSet(DecomposedIdSet.of(Collections.emptySet()));
+
+        Measure measureIterations = new Measure("SCC iterations");
+        for (int c = 0; c < iterations.length; c++) {
+            if (condensation.isCyclic(c))
+                measureIterations.addData(iterations[c]);
+        }
+
+        Log.info("Build MSSIndex complete (" + (System.currentTimeMillis() - t) + " ms)");
+        Log.info("components " + condensation.numComponents() + ", cyclic " + condensation.numCyclicComponents());
+        Log.info("totalComputation " + totalComputation.sum());
+        measureIterations.printStatistic();
+        Log.info("pruned candidates " + MinimalSourceSet.getPrunedCount());
+        Log.info("indexed minimality checks " + MinimalSourceSet.getIndexedCheckCount());
+        pool.printStatistic();
+    }
+
+    protected void compute(Set<Node> start) {
+        snapshot = HypergraphDatabase.getHypergraphSnapshot();
+        condensation = HypergraphCondensation.compute(snapshot);
+        int numComponents = condensation.numComponents();
+
+        mss = new MinimalSourceSet[snapshot.numNodes()];
+        startable = new BitSet();
+        for (Node node : start) {
+            startable.set(snapshot.toNode(node.getId()));
+        }
+
+        // count edges between components
+        int[] count = new int[numComponents];
+        for (int s = 0; s < snapshot.numNodes(); s++) {
+            forEachOutgoing(s, (c) -> count[c]++);
+        }
+        pending = new AtomicIntegerArray(count);
+        remaining = new CountDownLatch(numComponents);
+        failure = new AtomicReference<>();
+        iterations = new int[numComponents];
+
+        ForkJoinPool forkJoinPool = new ForkJoinPool(parallelism);
+        try {
+            for (int c = 0; c < numComponents; c++) {
+                if (count[c] == 0)
+                    forkJoinPool.execute(new ComponentTask(c));
+            }
+            remaining.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while building MSS", e);
+        } finally {
+            forkJoinPool.shutdown();
+            awaitTermination(forkJoinPool);
+        }
+
+        if (failure.get() != null)
+            throw new RuntimeException("parallel MSS build failed", failure.get());
+    }
+
+    // running tasks still hand MSSs to the writer, it is only closed after them
+    private static void awaitTermination(ForkJoinPool forkJoinPool) {
+        boolean interrupted = Thread.interrupted();
+        while (!forkJoinPool.isTerminated()) {
+            try {
+                forkJoinPool.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Remove the mss property of all nodes (part of it may be committed by a failed build)
+     * and the decomposed ids of the previous index, one transaction per writer batch
+     */
+    private void clearIndex() {
+        HypergraphSnapshot current = HypergraphDatabase.getHypergraphSnapshot();
+        int cleared = 0;
+        for (int begin = 0; begin < current.numNodes(); begin += MinimalSourceSetWriter.DEFAULT_BATCH_SIZE) {
+            int end = Math.min(current.numNodes(), begin + MinimalSourceSetWriter.DEFAULT_BATCH_SIZE);
+            try (Transaction tx = graphDb.beginTx()) {
+                for (int v = begin; v < end; v++) {
+                    Node node = graphDb.getNodeById(current.nodeId(v));
+                    if (node.removeProperty(Const.PROP_MSS) != null)
+                        cleared++;
+                }
+                tx.success();
+            }
+        }
+        HypergraphDatabase.setDecomposedIdSet(DecomposedIdSet.of(Collections.emptySet()));
+        ReconstructionCache.invalidateAll();
+        Log.error("parallel MSS build failed, index cleared - " + cleared + " MSS removed");
+    }
+
+    private interface ComponentVisitor {
+        void visit(int component);
+    }
+
+    // visit the component of every target of hyperedges from node, outside its component
+    private void forEachOutgoing(int node, ComponentVisitor visitor) {
+        int c = condensation.component(node);
+        for (int i = snapshot.forwardBegin(node); i < snapshot.forwardEnd(node); i++) {
+            int h = snapshot.forward(i);
+            for (int j = snapshot.targetBegin(h); j < snapshot.targetEnd(h); j++) {
+                int tc = condensation.component(snapshot.target(j));
+                if (tc != c)
+                    visitor.visit(tc);
+            }
+        }
+    }
+
+    private class ComponentTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int c;
+
+        ComponentTask(int c) {
+            this.c = c;
+        }
+
+        @Override
+        protected void compute() {
+            if (failure.get() == null) {
+                try {
+                    computeComponent(c);
+                } catch (Throwable e) {
+                    // release the waiting builder
+                    failure.compareAndSet(null, e);
+                    while (remaining.getCount() > 0)
+                        remaining.countDown();
+                    return;
+                }
+
+                // start components which have no more unfinished dependency
+                for (int i = condensation.memberBegin(c); i < condensation.memberEnd(c); i++) {
+                    forEachOutgoing(condensation.member(i), (tc) -> {
+                        if (pending.decrementAndGet(tc) == 0)
+                            new ComponentTask(tc).fork();
+                    });
+                }
+            }
+            remaining.countDown();
+        }
+    }
+
+    private void computeComponent(int c) {
+        // start nodes
+        for (int i = condensation.memberBegin(c); i < condensation.memberEnd(c); i++) {
+            int v = condensation.member(i);
+            if (startable.get(v))
+                getOrCreateMinimalSourceSet(v).add(snapshot.nodeId(v));
+        }
+
+        // hyperedges from finished components, once per component
+        for (int i = condensation.memberBegin(c); i < condensation.memberEnd(c); i++) {
+            int v = condensation.member(i);
+            for (int k = snapshot.backwardBegin(v); k < snapshot.backwardEnd(v); k++) {
+                int h = snapshot.backward(k);
+                if (snapshot.isRedundant(h) || !isExternal(h, c) || firstTargetIn(h, c) != v || !isEnabled(h))
+                    continue;
+
+                MinimalSourceSet mssHyperedge = computeMinimalSourceSet(h);
+                addToTargets(h, c, mssHyperedge);
+            }
+        }
+
+        if (condensation.isCyclic(c)) {
+            iterations[c] = iterate(c);
+            Log.debug("component " + c + " size " + condensation.size(c) + " iterations " + iterations[c]);
+        }
+
+        // members are final, other tasks only read them
+        MinimalSourceSetWriter w = writer; // null if compute is called without run
+        for (int i = condensation.memberBegin(c); i < condensation.memberEnd(c); i++) {
+            int v = condensation.member(i);
+            MinimalSourceSet m = mss[v];
+            if (m != null) {
+                pool.intern(m);
+                if (w != null)
+                    w.write(snapshot.nodeId(v), m);
+            }
+        }
+    }
+
+    /**
+     * Fixpoint inside cyclic component c
+     * @return number of hyperedge computations
+     */
+    private int iterate(int c) {
+        Queue<Integer> work = new ArrayDeque<>();
+        BitSet queued = new BitSet();
+        for (int i = condensation.memberBegin(c); i < condensation.memberEnd(c); i++) {
+            enqueueInternal(condensation.member(i), c, work, queued);
+        }
+
+        int count = 0;
+        while (!work.isEmpty()) {
+            int h = work.poll();
+            queued.clear(h);
+
+            // check enabled (all source visited)
+            if (!isEnabled(h))
+                continue;
+
+            count++;
+            MinimalSourceSet mssHyperedge = computeMinimalSourceSet(h);
+            for (int j = snapshot.targetBegin(h); j < snapshot.targetEnd(h); j++) {
+                int t = snapshot.target(j);
+                if (condensation.component(t) != c)
+                    continue;
+
+                if (getOrCreateMinimalSourceSet(t).addAll(mssHyperedge))
+                    enqueueInternal(t, c, work, queued);
+            }
+        }
+        return count;
+    }
+
+    // enqueue hyperedges from node having a target inside component c
+    private void enqueueInternal(int node, int c, Queue<Integer> work, BitSet queued) {
+        for (int i = snapshot.forwardBegin(node); i < snapshot.forwardEnd(node); i++) {
+            int h = snapshot.forward(i);
+            if (!queued.get(h) && !snapshot.isRedundant(h) && firstTargetIn(h, c) >= 0) {
+                queued.set(h);
+                work.add(h);
+            }
+        }
+    }
+
+    private void addToTargets(int hypernode, int c, MinimalSourceSet mssHyperedge) {
+        for (int j = snapshot.targetBegin(hypernode); j < snapshot.targetEnd(hypernode); j++) {
+            int t = snapshot.target(j);
+            if (condensation.component(t) == c)
+                getOrCreateMinimalSourceSet(t).addAll(mssHyperedge);
+        }
+    }
+
+    // true if all sources of hypernode are in components before c
+    private boolean isExternal(int hypernode, int c) {
+        for (int i = snapshot.sourceBegin(hypernode); i < snapshot.sourceEnd(hypernode); i++) {
+            if (condensation.component(snapshot.source(i)) >= c)
+                return false;
+        }
+        return true;
+    }
+
+    // first target of hypernode inside component c, -1 if none
+    private int firstTargetIn(int hypernode, int c) {
+        for (int j = snapshot.targetBegin(hypernode); j < snapshot.targetEnd(hypernode); j++) {
+            int t = snapshot.target(j);
+            if (condensation.component(t) == c)
+                return t;
+        }
+        return -1;
+    }
+
+    private MinimalSourceSet getOrCreateMinimalSourceSet(int node) {
+        if (mss[node] == null)
+            mss[node] = new MinimalSourceSet();
+        return mss[node];
+    }
+
+    private MinimalSourceSet computeMinimalSourceSet(int hypernode) {
+        totalComputation.increment();
+        MinimalSourceSet result = null;
+        for (int i = snapshot.sourceBegin(hypernode); i < snapshot.sourceEnd(hypernode); i++) {
+            MinimalSourceSet m = mss[snapshot.source(i)];
+            result = result == null ? m : result.cartesian(m);
+        }
+        return result;
+    }
+
+    // visited sources have a non-empty mss
+    private boolean isEnabled(int hypernode) {
+        for (int i = snapshot.sourceBegin(hypernode); i < snapshot.sourceEnd(hypernode); i++) {
+            if (mss[snapshot.source(i)] == null)
+                return false;
+        }
+        return true;
+    }
+}
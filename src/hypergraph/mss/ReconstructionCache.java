@@ -0,0 +1,189 @@
+package hypergraph.mss;
+
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import hypergraph.common.HypergraphDatabase;
+import hypergraph.util.Log;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Shared cache of decoded and reconstructed MSSs across queries
+ * Finders are created per query, the cache keeps
+ *   decoded index properties (PROP_MSS, PROP_DECOMPOSED) by node id
+ *   MSS of decomposed hypernodes computed from their sources by hypernode id
+ *   fully reconstructed MSS of query targets by finder and node id
+ * in an LRU map bounded by approximate heap bytes (see MinimalSourceSet.estimateHeapBytes).
+ *
+ * Cached MSSs are shared between threads and must not be modified, copy before modifying.
+ * The cache is cleared when the MSS index is rebuilt or maintained (invalidateAll),
+ * and when the graph database is reopened.
+ * Thread-safe.
+ */
+public class ReconstructionCache {
+    public static final long DEFAULT_CAPACITY = 256L << 20;
+
+    // key of reconstructed hypernodes
+    private static final String RECONSTRUCTED = "reconstructed";
+
+    private static final class Key {
+        final long id;
+        final String prop;
+
+        Key(long id, String prop) {
+            this.id = id;
+            this.prop = prop;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return id == other.id && prop.equals(other.prop);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(id) * 31 + prop.hashCode();
+        }
+    }
+
+    private static ReconstructionCache shared = null;
+
+    private final ConcurrentLinkedHashMap<Key, MinimalSourceSet> map;
+    private volatile GraphDatabaseService graphDb;
+
+    // statistic
+    private final LongAdder statHit = new LongAdder();
+    private final LongAdder statMiss = new LongAdder();
+    private final LongAdder statEviction = new LongAdder();
+
+    /**
+     * @param capacity approximate heap bytes of cached MSSs
+     */
+    public ReconstructionCache(long capacity) {
+        map = new ConcurrentLinkedHashMap.Builder<Key, MinimalSourceSet>()
+                .maximumWeightedCapacity(capacity)
+                .weigher((MinimalSourceSet mss) -> (int) Math.max(1, Math.min(Integer.MAX_VALUE, mss.estimateHeapBytes())))
+                .listener((key, mss) -> statEviction.increment())
+                .build();
+        graphDb = HypergraphDatabase.getGraphDatabase();
+    }
+
+    /**
+     * @return cache shared by all finders
+     */
+    public static synchronized ReconstructionCache getInstance() {
+        if (shared == null)
+            shared = new ReconstructionCache(DEFAULT_CAPACITY);
+        shared.checkDatabase();
+        return shared;
+    }
+
+    /**
+     * Drop all cached MSSs after the MSS index is modified
+     */
+    public static synchronized void invalidateAll() {
+        if (shared != null)
+            shared.clear();
+    }
+
+    /**
+     * @return decoded MSS property of node, empty if the property does not exist
+     */
+    public MinimalSourceSet read(Node node, String prop) {
+        return get(new Key(node.getId(), prop), (key) -> MinimalSourceSetCodec.read(node, prop));
+    }
+
+    /**
+     * @param compute computes MSS of a decomposed hypernode, called on a miss
+     * @return MSS of hypernode
+     */
+    public MinimalSourceSet reconstruct(Node hypernode, Function<Node, MinimalSourceSet> compute) {
+        return get(new Key(hypernode.getId(), RECONSTRUCTED), (key) -> compute.apply(hypernode));
+    }
+
+    /**
+     * @param finder name of the finder, results of different finders are kept apart
+     * @param compute reconstructs MSS of target, called on a miss
+     * @return reconstructed MSS of target
+     */
+    public MinimalSourceSet find(Node target, String finder, Function<Node, MinimalSourceSet> compute) {
+        return get(new Key(target.getId(), finder), (key) -> compute.apply(target));
+    }
+
+    private MinimalSourceSet get(Key key, Function<Key, MinimalSourceSet> load) {
+        MinimalSourceSet mss = map.get(key);
+        if (mss != null) {
+            statHit.increment();
+            return mss;
+        }
+
+        statMiss.increment();
+        mss = load.apply(key);
+
+        MinimalSourceSet old = map.putIfAbsent(key, mss);
+        return old != null ? old : mss;
+    }
+
+    public void clear() {
+        map.clear();
+    }
+
+    /**
+     * @param capacity approximate heap bytes of cached MSSs, evicts immediately if exceeded
+     */
+    public void setCapacity(long capacity) {
+        map.setCapacity(capacity);
+    }
+
+    public long getCapacity() {
+        return map.capacity();
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public long getWeightedSize() {
+        return map.weightedSize();
+    }
+
+    public long getHitCount() {
+        return statHit.sum();
+    }
+
+    public long getMissCount() {
+        return statMiss.sum();
+    }
+
+    public long getEvictionCount() {
+        return statEviction.sum();
+    }
+
+    public void resetStatistic() {
+        statHit.reset();
+        statMiss.reset();
+        statEviction.reset();
+    }
+
+    public void printStatistic() {
+        long hit = statHit.sum(), miss = statMiss.sum();
+        Log.info("reconstruction cache - " + map.size() + " MSS (" + map.weightedSize() + " / " + map.capacity() + " bytes)");
+        Log.info(" hit : " + hit + (hit + miss > 0 ? " (" + (hit * 100 / (hit + miss)) + "%)" : ""));
+        Log.info(" miss : " + miss);
+        Log.info(" eviction : " + statEviction.sum());
+    }
+
+    // node ids are only valid in the database they were cached from
+    private void checkDatabase() {
+        GraphDatabaseService current = HypergraphDatabase.getGraphDatabase();
+        if (graphDb != current) {
+            map.clear();
+            graphDb = current;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package hypergraph.mss;
+
+import hypergraph.common.Const;
+import hypergraph.common.HypergraphDatabase;
+import hypergraph.common.HypergraphSnapshot;
+import hypergraph.util.Log;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Preprocessing pass marking redundant hyperedges before an MSS build
+ * Hyperedge h is dominated at target t if another hyperedge of t has a subset of the sources of h
+ * (for equal sources, the one with the smaller id is kept). Every source set of h is then a superset
+ * of a source set of the other one, so h never adds a minimal source set to t.
+ * A hyperedge dominated at all its targets is marked with the redundant property,
+ * the snapshot loads the mark and MSS builders skip it.
+ *
+ * Every target keeps a non dominated hyperedge, so marks do not change any MSS.
+ * Removing a hyperedge may make others necessary again, see unmark.
+ */
+public class RedundantHyperedgePruner {
+    private static GraphDatabaseService graphDb;
+
+    // statistic
+    private int statDominated; // (hyperedge, target) pairs
+    private int statRedundant;
+
+    public RedundantHyperedgePruner() {
+        graphDb = HypergraphDatabase.getGraphDatabase();
+    }
+
+    /**
+     * Mark redundant hyperedges of the current graph, earlier marks are replaced
+     * @return number of redundant hyperedges
+     */
+    public int run() {
+        long t = System.currentTimeMillis();
+        HypergraphSnapshot snapshot = HypergraphDatabase.getHypergraphSnapshot();
+        BitSet redundant = findRedundant(snapshot);
+
+        int changed = 0;
+        try (Transaction tx = graphDb.beginTx()) {
+            for (int h = 0; h < snapshot.numHypernodes(); h++) {
+                if (redundant.get(h) == snapshot.isRedundant(h))
+                    continue;
+
+                Node hypernode = graphDb.getNodeById(snapshot.hypernodeId(h));
+                if (redundant.get(h))
+                    hypernode.setProperty(Const.PROP_REDUNDANT, true);
+                else
+                    hypernode.removeProperty(Const.PROP_REDUNDANT);
+                changed++;
+            }
+            tx.success();
+        }
+        HypergraphDatabase.invalidateHypergraphSnapshot();
+
+        Log.info("RedundantHyperedgePruner complete (" + (System.currentTimeMillis() - t) + " ms) - hyperedges "
+                + snapshot.numHypernodes() + ", redundant " + statRedundant + ", dominated at target " + statDominated
+                + ", marks changed " + changed);
+        return statRedundant;
+    }
+
+    /**
+     * Remove the redundant mark of hyperedges targeting nodes, they may be necessary
+     * once a hyperedge of those nodes is removed. Call inside a transaction.
+     */
+    public static void unmark(Iterable<Node> nodes) {
+        for (Node node : nodes) {
+            for (Relationship rel : node.getRelationships(Direction.INCOMING, Const.REL_TO_TARGET)) {
+                Node hypernode = rel.getStartNode();
+                if (hypernode.hasProperty(Const.PROP_REDUNDANT))
+                    hypernode.removeProperty(Const.PROP_REDUNDANT);
+            }
+        }
+    }
+
+    private BitSet findRedundant(HypergraphSnapshot snapshot) {
+        int numHypernodes = snapshot.numHypernodes();
+        statDominated = 0;
+        statRedundant = 0;
+
+        // sorted distinct sources
+        int[][] sources = new int[numHypernodes][];
+        for (int h = 0; h < numHypernodes; h++) {
+            int[] s = new int[snapshot.numSources(h)];
+            for (int i = 0; i < s.length; i++) {
+                s[i] = snapshot.source(snapshot.sourceBegin(h) + i);
+            }
+            Arrays.sort(s);
+            sources[h] = distinct(s);
+        }
+
+        int[] dominated = new int[numHypernodes]; // number of targets h is dominated at
+        int[] numTargets = new int[numHypernodes]; // distinct targets
+        boolean[] mark = new boolean[snapshot.numNodes()];
+        int[] seen = new int[numHypernodes]; // last target + 1 a hyperedge was seen at
+        List<Integer> kept = new ArrayList<>();
+
+        for (int t = 0; t < snapshot.numNodes(); t++) {
+            // incoming hyperedges by number of sources, then id
+            List<Integer> incoming = new ArrayList<>();
+            for (int i = snapshot.backwardBegin(t); i < snapshot.backwardEnd(t); i++) {
+                int h = snapshot.backward(i);
+                if (seen[h] == t + 1)
+                    continue;
+                seen[h] = t + 1;
+                incoming.add(h);
+                numTargets[h]++;
+            }
+            if (incoming.size() < 2)
+                continue;
+            incoming.sort((a, b) -> sources[a].length != sources[b].length
+                    ? Integer.compare(sources[a].length, sources[b].length) : Integer.compare(a, b));
+
+            // a dominated hyperedge is dominated by a non dominated one as well
+            kept.clear();
+            for (int h : incoming) {
+                if (sources[h].length == 0)
+                    continue;
+
+                for (int s : sources[h]) {
+                    mark[s] = true;
+                }
+
+                boolean isDominated = false;
+                for (int k : kept) {
+                    if (isMarked(sources[k], mark)) {
+                        isDominated = true;
+                        break;
+                    }
+                }
+
+                for (int s : sources[h]) {
+                    mark[s] = false;
+                }
+
+                if (isDominated) {
+                    dominated[h]++;
+                    statDominated++;
+                } else {
+                    kept.add(h);
+                }
+            }
+        }
+
+        BitSet redundant = new BitSet(numHypernodes);
+        for (int h = 0; h < numHypernodes; h++) {
+            if (numTargets[h] > 0 && dominated[h] == numTargets[h]) {
+                redundant.set(h);
+                statRedundant++;
+            }
+        }
+        return redundant;
+    }
+
+    private static boolean isMarked(int[] nodes, boolean[] mark) {
+        for (int v : nodes) {
+            if (!mark[v])
+                return false;
+        }
+        return true;
+    }
+
+    private static int[] distinct(int[] sorted) {
+        int n = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1])
+                sorted[n++] = sorted[i];
+        }
+        return n == sorted.length ? sorted : Arrays.copyOf(sorted, n);
+    }
+}
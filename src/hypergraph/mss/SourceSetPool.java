@@ -0,0 +1,154 @@
+package hypergraph.mss;
+
+import hypergraph.util.Log;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+
+/**
+ * Hash-consing pool of source sets
+ * Structurally equal source sets are replaced by one canonical array,
+ * so MSSs of different nodes share the memory of equal source sets.
+ *
+ * Entries are weak references, a canonical set is evicted once no MSS refers to it.
+ * Source set arrays are never modified after insertion (see MinimalSourceSet),
+ * so sharing them is safe.
+ */
+public class SourceSetPool {
+    private static final int INITIAL_CAPACITY = 1 << 10;
+
+    // approximate heap size of long[n]: 16 byte header + 8 byte per id
+    private static final int ARRAY_HEADER = 16;
+
+    private static class Entry extends WeakReference<long[]> {
+        final int hash;
+        Entry next;
+
+        Entry(long[] sourceSet, int hash, Entry next, ReferenceQueue<long[]> queue) {
+            super(sourceSet, queue);
+            this.hash = hash;
+            this.next = next;
+        }
+    }
+
+    private final ReferenceQueue<long[]> queue = new ReferenceQueue<>();
+    private Entry[] table = new Entry[INITIAL_CAPACITY];
+    private int size = 0;
+
+    // statistic
+    private long statLookup = 0;
+    private long statDuplicate = 0;
+    private long statSavedBytes = 0;
+    private long statEvicted = 0;
+
+    /**
+     * Replace every source set of mss by its canonical instance
+     */
+    public synchronized void intern(MinimalSourceSet mss) {
+        mss.intern(this);
+    }
+
+    /**
+     * @return canonical instance equal to sourceSet (sourceSet itself if it is new)
+     */
+    synchronized long[] intern(long[] sourceSet) {
+        expungeStaleEntries();
+        statLookup++;
+
+        int hash = Arrays.hashCode(sourceSet);
+        int i = indexFor(hash, table.length);
+        for (Entry e = table[i]; e != null; e = e.next) {
+            if (e.hash != hash)
+                continue;
+            long[] canonical = e.get();
+            if (canonical == sourceSet)
+                return canonical;
+            if (canonical != null && Arrays.equals(canonical, sourceSet)) {
+                statDuplicate++;
+                statSavedBytes += ARRAY_HEADER + 8L * sourceSet.length;
+                return canonical;
+            }
+        }
+
+        table[i] = new Entry(sourceSet, hash, table[i], queue);
+        if (++size > table.length * 3 / 4)
+            resize();
+        return sourceSet;
+    }
+
+    /**
+     * @return number of live canonical source sets
+     */
+    public synchronized int size() {
+        expungeStaleEntries();
+        return size;
+    }
+
+    public synchronized long getLookupCount() {
+        return statLookup;
+    }
+
+    public synchronized long getDuplicateCount() {
+        return statDuplicate;
+    }
+
+    /**
+     * @return duplicate lookups / all lookups
+     */
+    public synchronized double getDedupRatio() {
+        return statLookup == 0 ? 0 : (double) statDuplicate / statLookup;
+    }
+
+    /**
+     * @return approximate heap bytes of duplicated source sets which are replaced by canonical ones
+     */
+    public synchronized long getSavedBytes() {
+        return statSavedBytes;
+    }
+
+    public synchronized void printStatistic() {
+        expungeStaleEntries();
+        Log.info("source set pool - canonical " + size + ", evicted " + statEvicted);
+        Log.info(" lookup : " + statLookup);
+        Log.info(" duplicate : " + statDuplicate + String.format(" (%.1f%%)", getDedupRatio() * 100));
+        Log.info(" heap saved : " + statSavedBytes + " bytes");
+    }
+
+    private static int indexFor(int hash, int length) {
+        return (hash ^ (hash >>> 16)) & (length - 1);
+    }
+
+    private void resize() {
+        Entry[] newTable = new Entry[table.length * 2];
+        for (Entry head : table) {
+            Entry e = head;
+            while (e != null) {
+                Entry next = e.next;
+                int i = indexFor(e.hash, newTable.length);
+                e.next = newTable[i];
+                newTable[i] = e;
+                e = next;
+            }
+        }
+        table = newTable;
+    }
+
+    private void expungeStaleEntries() {
+        Object ref;
+        while ((ref = queue.poll()) != null) {
+            Entry stale = (Entry) ref;
+            int i = indexFor(stale.hash, table.length);
+            Entry prev = null;
+            for (Entry e = table[i]; e != null; prev = e, e = e.next) {
+                if (e == stale) {
+                    if (prev == null) table[i] = e.next;
+                    else prev.next = e.next;
+                    size--;
+                    statEvicted++;
+                    break;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package hypergraph.mss;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Set-trie over sorted source sets for subset / superset lookups
+ * Each source set is a path of ascending node ids,
+ * a node ending a source set keeps the slot of the set in MinimalSourceSet.
+ *
+ * Removed sets only clear their slot, empty branches are dropped
+ * when the owner rebuilds the trie.
+ */
+class SourceSetTrie {
+    private static final long[] NO_KEYS = new long[0];
+    private static final TrieNode[] NO_CHILDREN = new TrieNode[0];
+
+    private static class TrieNode {
+        long[] keys = NO_KEYS; // sorted child keys
+        TrieNode[] children = NO_CHILDREN;
+        int numChildren = 0;
+        int slot = -1; // slot of the source set ending here, -1 if none
+
+        TrieNode child(long key) {
+            int i = Arrays.binarySearch(keys, 0, numChildren, key);
+            return i >= 0 ? children[i] : null;
+        }
+
+        TrieNode getOrCreateChild(long key) {
+            int i = Arrays.binarySearch(keys, 0, numChildren, key);
+            if (i >= 0)
+                return children[i];
+
+            i = -(i + 1);
+            if (numChildren == keys.length) {
+                int capacity = numChildren == 0 ? 2 : numChildren * 2;
+                keys = Arrays.copyOf(keys, capacity);
+                children = Arrays.copyOf(children, capacity);
+            }
+            System.arraycopy(keys, i, keys, i + 1, numChildren - i);
+            System.arraycopy(children, i, children, i + 1, numChildren - i);
+
+            TrieNode child = new TrieNode();
+            keys[i] = key;
+            children[i] = child;
+            numChildren++;
+            return child;
+        }
+    }
+
+    private TrieNode root = new TrieNode();
+
+    void insert(long[] sourceSet, int slot) {
+        TrieNode node = root;
+        for (long id : sourceSet) {
+            node = node.getOrCreateChild(id);
+        }
+        node.slot = slot;
+    }
+
+    /**
+     * @return slot of the exactly same source set, -1 if not exists
+     */
+    int find(long[] sourceSet) {
+        TrieNode node = root;
+        for (long id : sourceSet) {
+            node = node.child(id);
+            if (node == null)
+                return -1;
+        }
+        return node.slot;
+    }
+
+    /**
+     * @return true if any stored set is a subset of (or equal to) sourceSet
+     */
+    boolean containsSubsetOf(long[] sourceSet) {
+        return containsSubsetOf(root, sourceSet, 0);
+    }
+
+    private boolean containsSubsetOf(TrieNode node, long[] q, int from) {
+        if (node.slot >= 0)
+            return true;
+
+        // walk children and remaining ids of q together (both sorted)
+        int j = from;
+        for (int i = 0; i < node.numChildren && j < q.length; i++) {
+            long key = node.keys[i];
+            while (j < q.length && q[j] < key) j++;
+            if (j == q.length)
+                break;
+            if (q[j] == key && containsSubsetOf(node.children[i], q, j + 1))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Remove every stored set which is a superset of (or equal to) sourceSet
+     * @param onRemoved called with the slot of each removed set
+     */
+    void removeSupersetsOf(long[] sourceSet, IntConsumer onRemoved) {
+        removeSupersetsOf(root, sourceSet, 0, onRemoved);
+    }
+
+    private void removeSupersetsOf(TrieNode node, long[] q, int from, IntConsumer onRemoved) {
+        if (from == q.length) {
+            removeAll(node, onRemoved);
+            return;
+        }
+
+        long next = q[from];
+        for (int i = 0; i < node.numChildren; i++) {
+            long key = node.keys[i];
+            if (key < next) {
+                removeSupersetsOf(node.children[i], q, from, onRemoved);
+            } else {
+                if (key == next)
+                    removeSupersetsOf(node.children[i], q, from + 1, onRemoved);
+                break;
+            }
+        }
+    }
+
+    private void removeAll(TrieNode node, IntConsumer onRemoved) {
+        if (node.slot >= 0) {
+            onRemoved.accept(node.slot);
+            node.slot = -1;
+        }
+        for (int i = 0; i < node.numChildren; i++) {
+            removeAll(node.children[i], onRemoved);
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package hypergraph.mss;
+
+import hypergraph.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Memory-bounded MSS map for builders
+ * MSSs are kept on heap up to a byte budget, least recently used ones are written to a
+ * temporary segment file (binary codec) and read back on access.
+ *
+ * Builders modify an MSS in place right after get(), so an evicted MSS is always written
+ * with its current content. A value must not be modified after a later access to the map,
+ * it may have been spilled in between.
+ *
+ * Heap size of an MSS is an estimate (see MinimalSourceSet.estimateHeapBytes). Every value
+ * handed out is re-weighed on the next access, and again when it is evicted.
+ * Not thread-safe.
+ */
+public class SpillingMinimalSourceSetMap extends AbstractMap<Long, MinimalSourceSet> implements Closeable {
+    // compact segment file when garbage exceeds live bytes and this
+    private static final long COMPACT_THRESHOLD = 64L << 20;
+
+    private static class Resident {
+        final MinimalSourceSet mss;
+        long bytes;
+
+        Resident(MinimalSourceSet mss) {
+            this.mss = mss;
+            this.bytes = mss.estimateHeapBytes();
+        }
+    }
+
+    private final long budget;
+    private final long compactThreshold;
+    private final LinkedHashMap<Long, Resident> resident = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Long, long[]> spilled = new HashMap<>(); // id -> {offset, length}
+    private long residentBytes = 0;
+    private final Set<Long> handedOut = new HashSet<>(); // values the caller may have modified
+
+    // segment file, created on first spill
+    private File file;
+    private FileChannel channel;
+    private long fileSize = 0;
+    private long liveBytes = 0;
+
+    // statistic
+    private long statSpill = 0;
+    private long statFault = 0;
+    private long statCompact = 0;
+
+    /**
+     * @param budget approximate heap bytes of resident MSSs
+     */
+    public SpillingMinimalSourceSetMap(long budget) {
+        this(budget, COMPACT_THRESHOLD);
+    }
+
+    /**
+     * @param budget approximate heap bytes of resident MSSs
+     * @param compactThreshold minimum garbage bytes of the segment file before compaction
+     */
+    public SpillingMinimalSourceSetMap(long budget, long compactThreshold) {
+        this.budget = budget;
+        this.compactThreshold = compactThreshold;
+    }
+
+    @Override
+    public MinimalSourceSet get(Object key) {
+        if (!(key instanceof Long))
+            return null;
+        Long id = (Long) key;
+        remeasure();
+
+        Resident r = resident.get(id);
+        if (r == null) {
+            long[] slot = spilled.remove(id);
+            if (slot == null)
+                return null;
+
+            r = new Resident(read(slot));
+            liveBytes -= slot[1];
+            statFault++;
+            resident.put(id, r);
+            residentBytes += r.bytes;
+        }
+
+        handedOut.add(id);
+        evict(id);
+        return r.mss;
+    }
+
+    @Override
+    public MinimalSourceSet put(Long id, MinimalSourceSet mss) {
+        remeasure();
+        MinimalSourceSet old = remove(id);
+
+        Resident r = new Resident(mss);
+        resident.put(id, r);
+        residentBytes += r.bytes;
+
+        handedOut.add(id);
+        evict(id);
+        return old;
+    }
+
+    @Override
+    public MinimalSourceSet remove(Object key) {
+        if (!(key instanceof Long))
+            return null;
+
+        handedOut.remove(key);
+        Resident r = resident.remove(key);
+        if (r != null) {
+            residentBytes -= r.bytes;
+            return r.mss;
+        }
+
+        long[] slot = spilled.remove(key);
+        if (slot != null) {
+            liveBytes -= slot[1];
+            return read(slot);
+        }
+        return null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return resident.containsKey(key) || spilled.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return resident.size() + spilled.size();
+    }
+
+    @Override
+    public void clear() {
+        resident.clear();
+        spilled.clear();
+        residentBytes = 0;
+        handedOut.clear();
+        close();
+    }
+
+    /**
+     * Entries of all MSSs, spilled ones are read back one by one while iterating
+     */
+    @Override
+    public Set<Entry<Long, MinimalSourceSet>> entrySet() {
+        return new AbstractSet<Entry<Long, MinimalSourceSet>>() {
+            @Override
+            public Iterator<Entry<Long, MinimalSourceSet>> iterator() {
+                List<Long> keys = new ArrayList<>(resident.keySet());
+                keys.addAll(spilled.keySet());
+                Iterator<Long> iter = keys.iterator();
+                return new Iterator<Entry<Long, MinimalSourceSet>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iter.hasNext();
+                    }
+
+                    @Override
+                    public Entry<Long, MinimalSourceSet> next() {
+                        Long id = iter.next();
+                        return new SimpleImmutableEntry<>(id, get(id));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return SpillingMinimalSourceSetMap.this.size();
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        file.delete();
+        channel = null;
+        fileSize = 0;
+        liveBytes = 0;
+    }
+
+    public long getResidentBytes() {
+        return residentBytes;
+    }
+
+    public int getSpilledCount() {
+        return spilled.size();
+    }
+
+    public long getCompactCount() {
+        return statCompact;
+    }
+
+    public void printStatistic() {
+        Log.info("spilling mss map - resident " + resident.size() + " (" + residentBytes + " bytes), spilled " + spilled.size());
+        Log.info(" spill : " + statSpill);
+        Log.info(" fault : " + statFault);
+        Log.info(" compact : " + statCompact);
+        Log.info(" segment file : " + fileSize + " bytes, live " + liveBytes);
+    }
+
+    // returned MSSs may have been modified since, re-weigh each of them
+    private void remeasure() {
+        for (Long id : handedOut) {
+            Resident r = resident.get(id);
+            if (r != null)
+                remeasure(r);
+        }
+        handedOut.clear();
+    }
+
+    private void remeasure(Resident r) {
+        long bytes = r.mss.estimateHeapBytes();
+        residentBytes += bytes - r.bytes;
+        r.bytes = bytes;
+    }
+
+    // spill least recently used MSSs except keep
+    private void evict(Long keep) {
+        Iterator<Map.Entry<Long, Resident>> iter = resident.entrySet().iterator();
+        while (residentBytes > budget && iter.hasNext()) {
+            Map.Entry<Long, Resident> entry = iter.next();
+            if (entry.getKey().equals(keep))
+                continue;
+
+            Resident r = entry.getValue();
+            remeasure(r);
+            spilled.put(entry.getKey(), write(r.mss));
+            residentBytes -= r.bytes;
+            statSpill++;
+            iter.remove();
+        }
+
+        if (fileSize - liveBytes > Math.max(liveBytes, compactThreshold))
+            compact();
+    }
+
+    private long[] write(MinimalSourceSet mss) {
+        try {
+            return writeRaw(MinimalSourceSetCodec.encode(mss));
+        } catch (IOException e) {
+            throw new UncheckedIOException("mss spill failed", e);
+        }
+    }
+
+    private MinimalSourceSet read(long[] slot) {
+        try {
+            return MinimalSourceSetCodec.decode(readRaw(channel, slot));
+        } catch (IOException e) {
+            throw new UncheckedIOException("mss fault failed", e);
+        }
+    }
+
+    // rewrite live records into a new segment file
+    private void compact() {
+        long t = System.currentTimeMillis();
+        long before = fileSize;
+
+        FileChannel oldChannel = channel;
+        File oldFile = file;
+        Map<Long, long[]> oldSlots = new HashMap<>(spilled);
+        channel = null;
+        fileSize = 0;
+        liveBytes = 0;
+
+        try {
+            for (Map.Entry<Long, long[]> entry : oldSlots.entrySet()) {
+                spilled.put(entry.getKey(), writeRaw(readRaw(oldChannel, entry.getValue())));
+            }
+            oldChannel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("mss segment compaction failed", e);
+        }
+        oldFile.delete();
+        statCompact++;
+
+        Log.info("mss segment compacted " + before + " -> " + fileSize + " bytes ("
+                + (System.currentTimeMillis() - t) + " ms)");
+    }
+
+    private long[] writeRaw(byte[] buf) throws IOException {
+        if (channel == null) {
+            file = File.createTempFile("mss", ".spill");
+            file.deleteOnExit();
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        long offset = fileSize;
+        ByteBuffer buffer = ByteBuffer.wrap(buf);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+        fileSize += buf.length;
+        liveBytes += buf.length;
+        return new long[] { offset, buf.length };
+    }
+
+    private static byte[] readRaw(FileChannel from, long[] slot) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) slot[1]);
+        while (buffer.hasRemaining()) {
+            if (from.read(buffer, slot[0] + buffer.position()) < 0)
+                throw new IOException("unexpected end of segment file");
+        }
+        return buffer.array();
+    }
+}
@@ -1,9 +1,10 @@
 package hypergraph.mss;
 
 import hypergraph.common.Const;
+import hypergraph.common.DecomposedIdSet;
 import hypergraph.common.HypergraphDatabase;
+import hypergraph.common.HypergraphSnapshot;
 import hypergraph.util.Log;
-import hypergraph.util.Measure;
 import org.neo4j.graphdb.*;
 
 import java.util.*;
@@ -14,15 +15,19 @@ import java.util.*;
 public class TargetableBuilder implements MinimalSourceSetBuilder {
     private static GraphDatabaseService graphDb;
     protected Map<Long, MinimalSourceSet> mssMap;
-    private Set<Long> visited;
-    private Set<Long> computed;
-
-    // hitting set for targetables
-    private Set<Long> hit;
+    private SourceSetPool pool;
+    private HypergraphSnapshot snapshot;
+    private BitSet visited; // dense node ids
+    private ComputationQueue queue;
+    private BitSet decomposed; // dense hypernode ids
+
+    // hitting set for targetables (dense ids)
+    private BitSet hitNodes;
+    private BitSet hitHypernodes;
     private Set<Long> startable;
 
     // decomposition parameter
-    private int maxMSS;
+    private DecompositionPolicy policy;
 
     // statistic - XXX: separate as a module
     private int statDecomposed;
@@ -34,66 +39,85 @@ public class TargetableBuilder implements MinimalSourceSetBuilder {
     }
 
     public TargetableBuilder(int maxMSS) {
-        this.maxMSS = maxMSS;
+        this.policy = new FixedDecompositionPolicy(maxMSS);
         graphDb = HypergraphDatabase.getGraphDatabase();
         mssMap = new HashMap<>();
-        visited = new HashSet<>();
-        computed = new HashSet<>();
+        pool = new SourceSetPool();
+        visited = new BitSet();
+        decomposed = new BitSet();
 
-        hit = new HashSet<>();
+        hitNodes = new BitSet();
+        hitHypernodes = new BitSet();
         startable = new HashSet<>();
     }
 
     // generate hitting set backward traversal
     public void setTargetables(Set<Long> targetables) {
-        Queue<Node> queue = new LinkedList<Node>();
+        snapshot = HypergraphDatabase.getHypergraphSnapshot();
+        int[] queue = new int[snapshot.numNodes()];
+        int head = 0, tail = 0;
 
         for (Long tid : targetables) {
-            Node t = graphDb.getNodeById(tid);
-            hit.add(t.getId());
-            queue.add(t);
+            int t = snapshot.toNode(tid);
+            if (t < 0 || hitNodes.get(t))
+                continue;
+            hitNodes.set(t);
+            queue[tail++] = t;
         }
 
-        while (!queue.isEmpty()) {
-            Node v = queue.poll();
-
-            Iterable<Relationship> toTargets = v.getRelationships(Direction.INCOMING, Const.REL_TO_TARGET);
+        while (head < tail) {
+            int v = queue[head++];
 
-            for (Relationship toTarget : toTargets) {
-                Node h = toTarget.getStartNode(); // hypernode
+            for (int i = snapshot.backwardBegin(v); i < snapshot.backwardEnd(v); i++) {
+                int h = snapshot.backward(i); // hypernode
 
-                if (hit.contains(h.getId()))
+                if (hitHypernodes.get(h))
                     continue;
-                hit.add(h.getId());
-
-                Iterable<Relationship> fromSources = h.getRelationships(Direction.INCOMING, Const.REL_FROM_SOURCE);
+                hitHypernodes.set(h);
 
-                for (Relationship fromSource : fromSources) {
-                    Node s = fromSource.getStartNode();
+                for (int j = snapshot.sourceBegin(h); j < snapshot.sourceEnd(h); j++) {
+                    int s = snapshot.source(j);
 
-                    if (hit.contains(s.getId()))
+                    if (hitNodes.get(s))
                         continue;
-                    hit.add(s.getId());
-                    queue.add(s);
+                    hitNodes.set(s);
+                    queue[tail++] = s;
 
-                    if (s.hasLabel(Const.LABEL_STARTABLE))
-                        startable.add(s.getId());
+                    if (snapshot.isStartable(s))
+                        startable.add(snapshot.nodeId(s));
                 }
             }
         }
 
-        System.out.println("hit " + hit.size());
+        System.out.println("hit " + (hitNodes.cardinality() + hitHypernodes.cardinality()));
         System.out.println("startable " + startable.size());
     }
 
+    /**
+     * Keep about heapBudget bytes of MSSs on heap, spill the rest to a temporary file
+     * @param heapBudget approximate bytes, set before run
+     */
+    public void setMemoryBudget(long heapBudget) {
+        mssMap = new SpillingMinimalSourceSetMap(heapBudget);
+    }
+
+    /**
+     * Decide decomposition per hyperedge instead of a fixed maxMSS
+     * @param policy set before run
+     */
+    public void setDecompositionPolicy(DecompositionPolicy policy) {
+        this.policy = policy;
+    }
+
     public void run() {
         // measure building time
         long t = System.currentTimeMillis();
         statDecomposed = 0;
         totalComputation = 0;
         queueLen = 0;
+        MinimalSourceSet.resetStatistic();
 
-        Log.info("MSS builder maxMSS = " + maxMSS);
+        Log.info("MSS builder " + policy);
 
         try (Transaction tx = graphDb.beginTx()) {
             // find all startable nodes
@@ -122,69 +146,52 @@ public class TargetableBuilder implements MinimalSourceSetBuilder {
         Log.info("Decomposed MSS " + statDecomposed);
         Log.info("totalComputation " + totalComputation);
         Log.info("queueLen " + queueLen);
+        Log.info("pruned candidates " + MinimalSourceSet.getPrunedCount());
+        Log.info("indexed minimality checks " + MinimalSourceSet.getIndexedCheckCount());
+        Log.info("cartesian skipped by estimate " + MinimalSourceSet.getEstimateSkipCount()
+                + " - avoided unions >= " + MinimalSourceSet.getAvoidedUnionCount()
+                + ", pairs <= " + MinimalSourceSet.getSkippedPairCount());
+        if (mssMap instanceof SpillingMinimalSourceSetMap)
+            ((SpillingMinimalSourceSetMap) mssMap).printStatistic();
+        pool.printStatistic();
     }
 
     private void saveTx() {
-        Measure measure = new Measure("MSS size");
-        Iterator<Map.Entry<Long, MinimalSourceSet>> iter = mssMap.entrySet().iterator();
-        while (saveTxHelper(iter, measure));
-        measure.printStatistic();
-    }
-
-    private boolean saveTxHelper(Iterator<Map.Entry<Long, MinimalSourceSet>> iter, Measure measure) {
-        final int maxCount = 5000;
-        int count = 0;
-        try (Transaction tx = graphDb.beginTx()) {
-            while (iter.hasNext()) {
-                Map.Entry<Long, MinimalSourceSet> entry = iter.next();
-
-                Long id = entry.getKey();
-                MinimalSourceSet mss = entry.getValue();
-                Node node = graphDb.getNodeById(id);
-                node.setProperty(Const.PROP_MSS, mss.toString());
-
-                Log.debug("MSS(" + id + ") = " + mss.toString());
-                measure.addData(mss.size());
-
-                if (count == maxCount) {
-                    tx.success();
-                    return true;
-                }
-            }
-            tx.success();
+        try (MinimalSourceSetWriter writer = new MinimalSourceSetWriter(Const.PROP_MSS)) {
+            writer.writeAll(mssMap);
         }
-        return false;
+        HypergraphDatabase.setDecomposedIdSet(DecomposedIdSet.of(snapshot, decomposed));
     }
 
-    private void printQueue(Queue<Node> queue) {
+    private void printQueue() {
         String str = "";
-        for (Node n : queue) {
-            str += getComputationRate(n) + ":" + n.getId() + ", ";
+        for (int i = 0; i < queue.size(); i++) {
+            int n = queue.get(i);
+            str += getComputationRate(n) + ":" + snapshot.nodeId(n) + ", ";
         }
         Log.debug(str);
     }
 
     protected void compute(Set<Node> start) {
-        PriorityQueue<Node> queue = new PriorityQueue<Node>(new Comparator<Node>() {
-            @Override
-            public int compare(Node n1, Node n2) {
-                return getComputationRate(n1) - getComputationRate(n2);
-            }
-        });
+        snapshot = HypergraphDatabase.getHypergraphSnapshot();
+        policy.init(snapshot);
+
+        queue = new ComputationQueue(snapshot);
 
         // enqueue start nodes
-        for (Node s : start) {
+        for (Node node : start) {
+            int s = snapshot.toNode(node.getId());
             setVisited(s);
             queue.add(s);
             MinimalSourceSet mss = getMinimalSourceSet(s);
-            mss.add(s.getId());
+            mss.add(node.getId());
         }
 
         while (!queue.isEmpty()) {
             // dequeue a normal node (one of source nodes)
-            printQueue(queue);
-            Node s = queue.poll();
-            Log.debug("node " + s.getId());
+            printQueue();
+            int s = queue.poll();
+            Log.debug("node " + snapshot.nodeId(s));
             queueLen++;
 
             if (getComputationRate(s) != 0) {
@@ -192,16 +199,15 @@ public class TargetableBuilder implements MinimalSourceSetBuilder {
             }
 
             // get forward star
-            Iterable<Relationship> fromSources = s.getRelationships(Direction.OUTGOING, Const.REL_FROM_SOURCE);
-            for (Relationship fromSource : fromSources) {
+            for (int i = snapshot.forwardBegin(s); i < snapshot.forwardEnd(s); i++) {
                 // get pseudo hypernode and check enabled
-                Node h = fromSource.getEndNode();
+                int h = snapshot.forward(i);
 
-                if (!hit.contains(h.getId()))
+                if (!hitHypernodes.get(h))
                     continue;
 
-                // skip if already computed and not modified
-                if (isComputed(h))
+                // skip if already computed and not modified, or redundant
+                if (isComputed(h) || snapshot.isRedundant(h))
                     continue;
 
                 // check enabled (all source visited)
@@ -213,17 +219,17 @@ public class TargetableBuilder implements MinimalSourceSetBuilder {
 
                 // calculate mss of hyperedge
                 MinimalSourceSet mssHyperedge = computeMinimalSourceSet(h);
+                pool.intern(mssHyperedge);
 
                 // get target node
-                Iterable<Relationship> toTargets = h.getRelationships(Direction.OUTGOING, Const.REL_TO_TARGET);
-                for (Relationship toTarget : toTargets) {
-                    Node t = toTarget.getEndNode();
+                for (int j = snapshot.targetBegin(h); j < snapshot.targetEnd(h); j++) {
+                    int t = snapshot.target(j);
 
-                    if (!hit.contains(t.getId()))
+                    if (!hitNodes.get(t))
                         continue;
 
                     setVisited(t);
-                    Log.debug("add target " + t.getId());
+                    Log.debug("add target " + snapshot.nodeId(t));
 
                     // calculate and update mss
                     MinimalSourceSet mssTarget = getMinimalSourceSet(t);
@@ -232,8 +238,7 @@ public class TargetableBuilder implements MinimalSourceSetBuilder {
                     boolean modified = mssTarget.addAll(mssHyperedge);
                     if (modified) {
                         if (queue.contains(t)) {
-                            queue.remove(t);
-                            Log.debug("already contains node " + t.getId());
+                            Log.debug("already contains node " + snapshot.nodeId(t));
                         }
                         queue.add(t);
                         unsetComputed(t);
@@ -243,8 +248,9 @@ public class TargetableBuilder implements MinimalSourceSetBuilder {
         }
     }
 
-    private MinimalSourceSet getMinimalSourceSet(Node node) {
-        MinimalSourceSet mss = mssMap.get(node.getId());
+    private MinimalSourceSet getMinimalSourceSet(int node) {
+        long id = snapshot.nodeId(node);
+        MinimalSourceSet mss = mssMap.get(id);
         if (mss != null)
             return mss;
 
@@ -253,47 +259,47 @@ public class TargetableBuilder implements MinimalSourceSetBuilder {
 //        if (node.hasLabel(Const.LABEL_STARTABLE))
 //            mss.add(node.getId());
 
-        mssMap.put(node.getId(), mss);
+        mssMap.put(id, mss);
         return mss;
     }
 
-    private MinimalSourceSet computeCartesianWithLimit(MinimalSourceSet a, MinimalSourceSet b, int limit) {
-        MinimalSourceSet result = new MinimalSourceSet();
-
-        if (a.cardinality() == 0 || b.cardinality() == 0)
-            return result;
-
-        for (Set<Long> s1 : a.getSourceSets()) {
-            for (Set<Long> s2 : b.getSourceSets()) {
-                Set<Long> s = new HashSet<>();
-                s.addAll(s1);
-                s.addAll(s2);
-                result.add(s);
-                if (result.cardinality() > limit)
-                    return null;
-            }
+    private List<MinimalSourceSet> getSourceMinimalSourceSets(int hypernode) {
+        List<MinimalSourceSet> families = new ArrayList<>();
+        for (int i = snapshot.sourceBegin(hypernode); i < snapshot.sourceEnd(hypernode); i++) {
+            families.add(getMinimalSourceSet(snapshot.source(i)));
         }
-        return result;
+        return families;
     }
 
-    private MinimalSourceSet computeMinimalSourceSet(Node hypernode) {
+    private MinimalSourceSet computeCartesianWithLimit(MinimalSourceSet a, MinimalSourceSet b, int limit) {
+        return a.cartesian(b, limit);
+    }
+
+    private MinimalSourceSet computeMinimalSourceSet(int hypernode) {
         // check already decomposed
-        if (hypernode.hasProperty("decomposed")) {
-            return new MinimalSourceSet(hypernode.getId());
+        if (isDecomposed(hypernode)) {
+            return new MinimalSourceSet(snapshot.hypernodeId(hypernode));
+        }
+
+        // decompose without enumerating if the product certainly exceeds the limit
+        if (snapshot.numSources(hypernode) > 1
+                && MinimalSourceSet.exceedsLimit(getSourceMinimalSourceSets(hypernode), policy.limit(hypernode))) {
+            setDecomposed(hypernode);
+            statDecomposed++;
+            return new MinimalSourceSet(snapshot.hypernodeId(hypernode));
         }
 
         MinimalSourceSet mss = null;
-        Iterable<Relationship> rels = hypernode.getRelationships(Direction.INCOMING, Const.REL_FROM_SOURCE);
-        for (Relationship rel : rels) {
-            Node s = rel.getStartNode();
+        for (int i = snapshot.sourceBegin(hypernode); i < snapshot.sourceEnd(hypernode); i++) {
+            int s = snapshot.source(i);
             if (mss == null) {
                 mss = getMinimalSourceSet(s);
             } else {
-                mss = computeCartesianWithLimit(mss, getMinimalSourceSet(s), maxMSS);
+                mss = computeCartesianWithLimit(mss, getMinimalSourceSet(s), policy.limit(hypernode));
                 if (mss == null) {
-                    hypernode.setProperty("decomposed", true);
+                    setDecomposed(hypernode);
                     statDecomposed++;
-                    return new MinimalSourceSet(hypernode.getId());
+                    return new MinimalSourceSet(snapshot.hypernodeId(hypernode));
                 }
             }
 
@@ -309,54 +315,46 @@ public class TargetableBuilder implements MinimalSourceSetBuilder {
         return mss;
     }
 
-    private void setVisited(Node node) {
-        visited.add(node.getId());
+    // recorded in the DecomposedIdSet of the index when saved
+    private void setDecomposed(int hypernode) {
+        decomposed.set(hypernode);
+    }
+
+    private boolean isDecomposed(int hypernode) {
+        return decomposed.get(hypernode);
+    }
+
+    private void setVisited(int node) {
+        visited.set(node);
     }
 
-    private boolean isVisited(Node node) {
-        return visited.contains(node.getId());
+    private boolean isVisited(int node) {
+        return visited.get(node);
     }
 
-    private boolean isEnabled(Node hypernode) {
-        Iterable<Relationship> rels = hypernode.getRelationships(Direction.INCOMING, Const.REL_FROM_SOURCE);
-        for (Relationship rel : rels) {
-            if (!isVisited(rel.getStartNode())) {
+    private boolean isEnabled(int hypernode) {
+        for (int i = snapshot.sourceBegin(hypernode); i < snapshot.sourceEnd(hypernode); i++) {
+            if (!isVisited(snapshot.source(i))) {
                 return false;
             }
         }
         return true;
     }
 
-    //TODO: how to handle changes
-    private int getComputationRate(Node node) {
-        int countComputed = 0;
-        int countTotal = 0;
-
-        // get incoming hyperedges
-        Iterable<Relationship> rels = node.getRelationships(Direction.INCOMING, Const.REL_TO_TARGET);
-        for (Relationship rel : rels) {
-            Node h = rel.getStartNode();
-            if (isComputed(h))
-                countComputed++;
-            countTotal++;
-        }
-
-        return countTotal - countComputed;
+    // number of incoming hyperedges not computed yet, kept up to date by queue
+    private int getComputationRate(int node) {
+        return queue.getComputationRate(node);
     }
 
-    private void setComputed(Node node) {
-        computed.add(node.getId());
+    private void setComputed(int hypernode) {
+        queue.setComputed(hypernode);
     }
 
-    private boolean isComputed(Node node) {
-        return computed.contains(node.getId());
+    private boolean isComputed(int hypernode) {
+        return queue.isComputed(hypernode);
     }
 
-    private void unsetComputed(Node node) {
-        Iterable<Relationship> rels = node.getRelationships(Direction.OUTGOING, Const.REL_FROM_SOURCE);
-        for (Relationship rel : rels) {
-            Node h = rel.getEndNode();
-            computed.remove(h.getId());
-        }
+    private void unsetComputed(int node) {
+        queue.unsetComputed(node);
     }
 }
@@ -2,11 +2,13 @@ package hypergraph.traversal;
 
 import hypergraph.common.Const;
 import hypergraph.common.HypergraphDatabase;
+import hypergraph.common.HypergraphSnapshot;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Queue;
@@ -18,17 +20,37 @@ import java.util.Set;
 public class BackwardTraversal {
     private Set<Long> visited; // visited nodes, in-memory
     private HypergraphTraversalCallback callback;
+    private HypergraphSnapshot snapshot; // null to traverse Neo4j directly
+    private BitSet visitedNodes; // visited dense ids when traversing snapshot
+    private BitSet visitedHypernodes;
 
     public BackwardTraversal() {
         this(node -> {});
     }
 
     public BackwardTraversal(HypergraphTraversalCallback callback) {
+        this(null, callback);
+    }
+
+    /**
+     * Traverse on in-memory snapshot, Neo4j is only called to create visited nodes for callback
+     */
+    public BackwardTraversal(HypergraphSnapshot snapshot, HypergraphTraversalCallback callback) {
         this.visited = new HashSet<Long>();
         this.callback = callback;
+        this.snapshot = snapshot;
+        if (snapshot != null) {
+            this.visitedNodes = new BitSet(snapshot.numNodes());
+            this.visitedHypernodes = new BitSet(snapshot.numHypernodes());
+        }
     }
 
     public void traverse(Set<Node> target) {
+        if (snapshot != null) {
+            traverseSnapshot(target);
+            return;
+        }
+
         Queue<Node> queue = new LinkedList<Node>();
 
         for (Node t : target) {
@@ -65,6 +87,43 @@ public class BackwardTraversal {
         }
     }
 
+    private void traverseSnapshot(Set<Node> target) {
+        GraphDatabaseService graphDb = HypergraphDatabase.getGraphDatabase();
+        int[] queue = new int[snapshot.numNodes()];
+        int head = 0, tail = 0;
+
+        for (Node t : target) {
+            int v = snapshot.toNode(t.getId());
+            if (v < 0 || visitedNodes.get(v))
+                continue;
+            visitedNodes.set(v);
+            queue[tail++] = v;
+        }
+
+        while (head < tail) {
+            // dequeue a normal node (one of source nodes)
+            int v = queue[head++];
+            callback.onVisit(graphDb.getNodeById(snapshot.nodeId(v)));
+
+            // backward star
+            for (int i = snapshot.backwardBegin(v); i < snapshot.backwardEnd(v); i++) {
+                int h = snapshot.backward(i);
+                if (visitedHypernodes.get(h))
+                    continue;
+                visitedHypernodes.set(h);
+
+                // get all source nodes
+                for (int j = snapshot.sourceBegin(h); j < snapshot.sourceEnd(h); j++) {
+                    int s = snapshot.source(j);
+                    if (!visitedNodes.get(s)) {
+                        visitedNodes.set(s);
+                        queue[tail++] = s;
+                    }
+                }
+            }
+        }
+    }
+
     private void setVisited(Node node) {
         visited.add(node.getId());
     }
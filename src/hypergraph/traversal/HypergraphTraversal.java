@@ -3,11 +3,13 @@ package hypergraph.traversal;
 import hypergraph.Application;
 import hypergraph.common.Const;
 import hypergraph.common.HypergraphDatabase;
+import hypergraph.common.HypergraphSnapshot;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Queue;
@@ -20,6 +22,9 @@ public class HypergraphTraversal {
     private Set<Long> visited; // visited nodes, in-memory
     private HypergraphTraversalCallback onVisitNode;
     private HypergraphTraversalCallback onVisitHyperedge;
+    private HypergraphSnapshot snapshot; // null to traverse Neo4j directly
+    private BitSet visitedNodes; // visited dense ids when traversing snapshot
+    private BitSet visitedHypernodes;
 
     public HypergraphTraversal() {
         this((v)->{}, (v)->{});
@@ -30,9 +35,25 @@ public class HypergraphTraversal {
     }
 
     public HypergraphTraversal(HypergraphTraversalCallback onVisitNode, HypergraphTraversalCallback onVisitHyperedge) {
+        this(null, onVisitNode, onVisitHyperedge);
+    }
+
+    public HypergraphTraversal(HypergraphSnapshot snapshot, HypergraphTraversalCallback onVisitNode) {
+        this(snapshot, onVisitNode, (v)->{});
+    }
+
+    /**
+     * Traverse on in-memory snapshot, Neo4j is only called to create visited nodes for callbacks
+     */
+    public HypergraphTraversal(HypergraphSnapshot snapshot, HypergraphTraversalCallback onVisitNode, HypergraphTraversalCallback onVisitHyperedge) {
         this.visited = new HashSet<Long>();
         this.onVisitNode = onVisitNode;
         this.onVisitHyperedge = onVisitHyperedge;
+        this.snapshot = snapshot;
+        if (snapshot != null) {
+            this.visitedNodes = new BitSet(snapshot.numNodes());
+            this.visitedHypernodes = new BitSet(snapshot.numHypernodes());
+        }
     }
 
     public void traverse(Node s) {
@@ -42,6 +63,11 @@ public class HypergraphTraversal {
     }
 
     public void traverse(Set<Node> start) {
+        if (snapshot != null) {
+            traverseSnapshot(start);
+            return;
+        }
+
         Queue<Node> queue = new LinkedList<Node>();
 
         for (Node s : start) {
@@ -83,6 +109,55 @@ public class HypergraphTraversal {
         }
     }
 
+    private void traverseSnapshot(Set<Node> start) {
+        GraphDatabaseService graphDb = HypergraphDatabase.getGraphDatabase();
+        int[] queue = new int[snapshot.numNodes()];
+        int head = 0, tail = 0;
+
+        for (Node s : start) {
+            int v = snapshot.toNode(s.getId());
+            if (v < 0 || visitedNodes.get(v))
+                continue;
+            visitedNodes.set(v);
+            queue[tail++] = v;
+            onVisitNode.onVisit(s);
+        }
+
+        while (head < tail) {
+            // dequeue a normal node (one of source nodes)
+            int v = queue[head++];
+
+            // get connected hyperedges
+            for (int i = snapshot.forwardBegin(v); i < snapshot.forwardEnd(v); i++) {
+                int h = snapshot.forward(i);
+                if (visitedHypernodes.get(h))
+                    continue;
+                else if (!isEnabled(h))
+                    continue;
+
+                visitedHypernodes.set(h);
+                onVisitHyperedge.onVisit(graphDb.getNodeById(snapshot.hypernodeId(h)));
+
+                for (int j = snapshot.targetBegin(h); j < snapshot.targetEnd(h); j++) {
+                    int t = snapshot.target(j);
+                    if (!visitedNodes.get(t)) {
+                        visitedNodes.set(t);
+                        queue[tail++] = t;
+                        onVisitNode.onVisit(graphDb.getNodeById(snapshot.nodeId(t)));
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean isEnabled(int hypernode) {
+        for (int i = snapshot.sourceBegin(hypernode); i < snapshot.sourceEnd(hypernode); i++) {
+            if (!visitedNodes.get(snapshot.source(i)))
+                return false;
+        }
+        return true;
+    }
+
     private void setVisited(Node node) {
         visited.add(node.getId());
     }
@@ -4,9 +4,11 @@ import hypergraph.data.Importer;
 import hypergraph.data.KeggImporter;
 import hypergraph.data.SimpleImporter;
 import hypergraph.discovery.BackwardDiscovery;
+import hypergraph.discovery.DiscoveryResult;
 import hypergraph.discovery.IndexedBackwardDiscovery;
 import hypergraph.discovery.MixedBackwardDiscovery;
 import hypergraph.discovery.NaiveBackwardDiscovery;
+import hypergraph.discovery.QueryBudget;
 import hypergraph.mss.*;
 import hypergraph.traversal.BackwardTraversal;
 import hypergraph.util.Log;
@@ -76,6 +78,55 @@ public class BackwardDiscoveryTest {
         }
     }
 
+    @Test
+    public void testAnytimeBackwardDiscovery() throws Exception {
+        try (Transaction tx = graphDb.beginTx()) {
+            Node t = graphDb.findNode(Const.LABEL_NODE, Const.PROP_UNIQUE, targetName);
+            Set<Node> target = new HashSet<>();
+            target.add(t);
+
+            BackwardDiscovery indexed = new IndexedBackwardDiscovery();
+            MinimalSourceSet mss = indexed.findMinimal(target);
+            int minimum = indexed.findMinimum(target).size();
+
+            DiscoveryResult result = indexed.findMinimal(target, QueryBudget.unlimited());
+            assertTrue(result.isComplete());
+            assertEquals(mss, result.getMinimalSourceSet());
+
+            // smallest sets stream first
+            result = indexed.findMinimal(target, QueryBudget.ofOperations(1));
+            assertEquals(mss.cardinality() <= 1, result.isComplete());
+            assertEquals(Math.min(1, mss.cardinality()), result.getMinimalSourceSet().cardinality());
+            MinimumSearchResult min = indexed.findMinimum(target, QueryBudget.ofOperations(1));
+            assertTrue(min.isOptimal());
+            assertEquals(minimum, min.getLowerBound());
+
+            // incomplete naive sets still reach target
+            BackwardDiscovery naive = new NaiveBackwardDiscovery();
+            result = naive.findMinimal(target, QueryBudget.ofOperations(10));
+            assertFalse(result.isComplete());
+            for (Set<Long> s : result.getMinimalSourceSet().getSourceSets()) {
+                assertTrue(containsSubset(mss, s));
+            }
+            min = naive.findMinimum(target, QueryBudget.ofOperations(10));
+            assertFalse(min.isOptimal());
+            assertTrue(min.getLowerBound() <= minimum);
+            assertTrue(min.getUpperBound() >= minimum);
+
+            result = naive.findMinimal(target, QueryBudget.unlimited());
+            assertTrue(result.isComplete());
+            assertEquals(mss, result.getMinimalSourceSet());
+        }
+    }
+
+    private boolean containsSubset(MinimalSourceSet mss, Set<Long> sourceSet) {
+        for (Set<Long> s : mss.getSourceSets()) {
+            if (sourceSet.containsAll(s))
+                return true;
+        }
+        return false;
+    }
+
     private void printNodes(MinimalSourceSet mss) {
         for (Set<Long> source : mss.getSourceSets()) {
             System.out.print("{");
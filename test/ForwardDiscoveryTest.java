@@ -11,6 +11,7 @@ import org.junit.Test;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Transaction;
+import org.neo4j.helpers.collection.IteratorUtil;
 
 import java.util.HashSet;
 import java.util.Set;
@@ -70,4 +71,23 @@ public class ForwardDiscoveryTest {
 
         HypergraphDatabase.close();
     }
+
+    @Test
+    public void testSnapshotTraversal() throws Exception {
+        GraphDatabaseService graphDb = HypergraphDatabase.init("db/test");
+        Importer importer = new SimpleImporter("input/example-2.txt");
+        importer.run();
+
+        // same nodes as traversing the store, from every node
+        try (Transaction tx = graphDb.beginTx()) {
+            ForwardDiscovery discovery = new ForwardDiscovery();
+            for (Node s : IteratorUtil.asIterable(graphDb.findNodes(Const.LABEL_NODE))) {
+                Set<Node> expected = new HashSet<>();
+                new HypergraphTraversal(expected::add).traverse(s);
+                assertEquals(expected, discovery.find(s, (v) -> (true)));
+            }
+        }
+
+        HypergraphDatabase.close();
+    }
 }
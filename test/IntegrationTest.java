@@ -1,11 +1,27 @@
+import hypergraph.common.Const;
+import hypergraph.common.Hyperedge;
 import hypergraph.common.HypergraphDatabase;
+import hypergraph.common.HypergraphSnapshot;
+import hypergraph.common.NodeIdDictionary;
 import hypergraph.data.Importer;
 import hypergraph.data.SimpleImporter;
+import hypergraph.discovery.BackwardDiscovery;
+import hypergraph.discovery.IndexedBackwardDiscovery;
+import hypergraph.discovery.QueryBudget;
 import hypergraph.mss.*;
 import org.junit.Test;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Transaction;
+import org.neo4j.helpers.collection.IteratorUtil;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 import static org.junit.Assert.*;
 
@@ -33,6 +49,638 @@ public class IntegrationTest {
         HypergraphDatabase.close();
     }
 
+    @Test
+    public void testCondensation() throws Exception {
+        GraphDatabaseService graphDb = HypergraphDatabase.init("db/test");
+        Importer importer = new SimpleImporter("input/example-1.txt");
+        MinimalSourceSetBuilder builder = new CondensationBuilder();
+        MinimalSourceSetFinder finder = new DecompositionFinder();
+
+        importer.run();
+        builder.run();
+
+        try (Transaction tx = graphDb.beginTx()) {
+            Node t = graphDb.findNode(hypergraph.common.Const.LABEL_NODE, hypergraph.common.Const.PROP_UNIQUE, "5");
+            MinimalSourceSet mss = finder.find(t);
+            assertTrue(mss.equals(new MinimalSourceSet(0, 1, 6)));
+        }
+
+        HypergraphDatabase.close();
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        GraphDatabaseService graphDb = HypergraphDatabase.init("db/test");
+        Importer importer = new SimpleImporter("input/example-1.txt");
+        MinimalSourceSetBuilder builder = new ParallelBuilder(4);
+        MinimalSourceSetFinder finder = new DecompositionFinder();
+
+        importer.run();
+        builder.run();
+
+        try (Transaction tx = graphDb.beginTx()) {
+            Node t = graphDb.findNode(hypergraph.common.Const.LABEL_NODE, hypergraph.common.Const.PROP_UNIQUE, "5");
+            MinimalSourceSet mss = finder.find(t);
+            assertTrue(mss.equals(new MinimalSourceSet(0, 1, 6)));
+        }
+
+        HypergraphDatabase.close();
+    }
+
+    @Test
+    public void testParallelFailure() throws Exception {
+        GraphDatabaseService graphDb = HypergraphDatabase.init("db/test");
+        Importer importer = new SimpleImporter("input/example-1.txt");
+
+        importer.run();
+        new FastDecompositionBuilder(1).run();
+        assertTrue(HypergraphDatabase.getDecomposedIdSet().size() > 0);
+
+        // fails after the tasks, part of the index may be committed
+        MinimalSourceSetBuilder builder = new ParallelBuilder(4) {
+            @Override
+            protected void compute(Set<Node> start) {
+                super.compute(start);
+                throw new IllegalStateException("interrupted");
+            }
+        };
+        try {
+            builder.run();
+            fail("failed build returned");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        // neither the previous index nor part of the new one is left
+        try (Transaction tx = graphDb.beginTx()) {
+            for (Node v : IteratorUtil.asIterable(graphDb.findNodes(Const.LABEL_NODE)))
+                assertFalse(v.hasProperty(Const.PROP_MSS));
+        }
+        assertEquals(0, HypergraphDatabase.getDecomposedIdSet().size());
+
+        HypergraphDatabase.close();
+    }
+
+    @Test
+    public void testParallelReconstruction() throws Exception {
+        GraphDatabaseService graphDb = HypergraphDatabase.init("db/test");
+        Importer importer = new SimpleImporter("input/test-2.txt");
+
+        importer.run();
+        new DecompositionBuilder(1).run();
+
+        try (Transaction tx = graphDb.beginTx()) {
+            for (Node t : IteratorUtil.asIterable(graphDb.findNodes(Const.LABEL_NODE))) {
+                ReconstructionCache.invalidateAll();
+                MinimalSourceSet sequential = new DecompositionFinder(1).find(t);
+                ReconstructionCache.invalidateAll();
+                assertEquals(sequential, new DecompositionFinder(4).find(t));
+            }
+        }
+
+        HypergraphDatabase.close();
+    }
+
+    @Test
+    public void testMaintainer() throws Exception {
+        GraphDatabaseService graphDb = HypergraphDatabase.init("db/test");
+        Importer importer = new SimpleImporter("input/example-1.txt");
+        MinimalSourceSetBuilder builder = new NaiveBuilder();
+        MinimalSourceSetMaintainer maintainer = new MinimalSourceSetMaintainer();
+
+        importer.run();
+        builder.run();
+
+        // remove 6 -> 4, then 4 and 5 are not reachable
+        Hyperedge removed;
+        try (Transaction tx = graphDb.beginTx()) {
+            Node s = graphDb.findNode(Const.LABEL_NODE, Const.PROP_UNIQUE, "6");
+            Node t = graphDb.findNode(Const.LABEL_NODE, Const.PROP_UNIQUE, "4");
+            removed = null;
+            for (Hyperedge e : Hyperedge.getHyperedgesFrom(Collections.singleton(s))) {
+                if (e.getTarget().contains(t))
+                    removed = e;
+            }
+            assertNotNull(removed);
+        }
+        maintainer.remove(removed);
+        assertSameAdjacency(HypergraphSnapshot.load(graphDb, NodeIdDictionary.build(graphDb)),
+                HypergraphDatabase.getHypergraphSnapshot());
+
+        try (Transaction tx = graphDb.beginTx()) {
+            Node t = graphDb.findNode(Const.LABEL_NODE, Const.PROP_UNIQUE, "5");
+            assertFalse(t.hasProperty(Const.PROP_MSS));
+        }
+
+        // insert 0 -> 4
+        Hyperedge inserted;
+        try (Transaction tx = graphDb.beginTx()) {
+            Node s = graphDb.findNode(Const.LABEL_NODE, Const.PROP_UNIQUE, "0");
+            Node t = graphDb.findNode(Const.LABEL_NODE, Const.PROP_UNIQUE, "4");
+            inserted = new Hyperedge(s, t);
+        }
+        maintainer.insert(inserted);
+        assertSameAdjacency(HypergraphSnapshot.load(graphDb, NodeIdDictionary.build(graphDb)),
+                HypergraphDatabase.getHypergraphSnapshot());
+
+        try (Transaction tx = graphDb.beginTx()) {
+            Node t = graphDb.findNode(Const.LABEL_NODE, Const.PROP_UNIQUE, "5");
+            MinimalSourceSet mss = MinimalSourceSetCodec.read(t, Const.PROP_MSS);
+            MinimalSourceSet expected = new MinimalSourceSet(0, 1, 2);
+            expected.add(new MinimalSourceSet(0, 1, 6).getSourceSets().iterator().next());
+            assertEquals(expected, mss);
+        }
+
+        // updated dictionary is saved by close
+        HypergraphDatabase.close();
+        graphDb = HypergraphDatabase.open("db/test");
+        assertSameAdjacency(HypergraphSnapshot.load(graphDb, NodeIdDictionary.build(graphDb)),
+                HypergraphDatabase.getHypergraphSnapshot());
+
+        HypergraphDatabase.close();
+    }
+
+    // same hyperedges, labels and marks in neo4j ids, dense ids may differ
+    private static void assertSameAdjacency(HypergraphSnapshot expected, HypergraphSnapshot actual) {
+        assertEquals(expected.numNodes(), actual.numNodes());
+        assertEquals(expected.numHypernodes(), actual.numHypernodes());
+        assertEquals(hyperedgeStrings(expected), hyperedgeStrings(actual));
+        for (int v = 0; v < expected.numNodes(); v++) {
+            int w = actual.toNode(expected.nodeId(v));
+            assertEquals(expected.isStartable(v), actual.isStartable(w));
+            assertEquals(expected.forwardEnd(v) - expected.forwardBegin(v), actual.forwardEnd(w) - actual.forwardBegin(w));
+            assertEquals(expected.inDegree(v), actual.inDegree(w));
+        }
+    }
+
+    private static Set<String> hyperedgeStrings(HypergraphSnapshot snapshot) {
+        Set<String> strings = new HashSet<>();
+        for (int h = 0; h < snapshot.numHypernodes(); h++) {
+            Set<Long> sources = new HashSet<>();
+            Set<Long> targets = new HashSet<>();
+            for (int i = snapshot.sourceBegin(h); i < snapshot.sourceEnd(h); i++)
+                sources.add(snapshot.nodeId(snapshot.source(i)));
+            for (int j = snapshot.targetBegin(h); j < snapshot.targetEnd(h); j++)
+                targets.add(snapshot.nodeId(snapshot.target(j)));
+            strings.add(snapshot.hypernodeId(h) + ":" + sources + "->" + targets + (snapshot.isRedundant(h) ? "*" : ""));
+        }
+        return strings;
+    }
+
+    @Test
+    public void testMaintainerDecomposed() throws Exception {
+        GraphDatabaseService graphDb = HypergraphDatabase.init("db/test");
+        Importer importer = new SimpleImporter("input/example-1.txt");
+        MinimalSourceSetMaintainer maintainer = new MinimalSourceSetMaintainer();
+
+        importer.run();
+        new FastDecompositionBuilder(1).run();
+
+        // 0,1,2 -> 3 is decomposed once MSS(2) has two source sets, MSS(3) contains its placeholder
+        long placeholder = -1;
+        Hyperedge removed = null;
+        try (Transaction tx = graphDb.beginTx()) {
+            Node t = graphDb.findNode(Const.LABEL_NODE, Const.PROP_UNIQUE, "3");
+            for (Set<Long> s : MinimalSourceSetCodec.read(t, Const.PROP_MSS).getSourceSets()) {
+                long id = s.iterator().next();
+                if (s.size() == 1 && HypergraphDatabase.getDecomposedIdSet().contains(id))
+                    placeholder = id;
+            }
+            assertTrue(placeholder >= 0);
+
+            // remove 6 -> 2, 3 is in the recomputed cone
+            Node s = graphDb.findNode(Const.LABEL_NODE, Const.PROP_UNIQUE, "6");
+            Node v = graphDb.findNode(Const.LABEL_NODE, Const.PROP_UNIQUE, "2");
+            for (Hyperedge e : Hyperedge.getHyperedgesFrom(Collections.singleton(s))) {
+                if (e.getTarget().contains(v))
+                    removed = e;
+            }
+            assertNotNull(removed);
+        }
+        maintainer.remove(removed);
+
+        // stays decomposed without a limit
+        try (Transaction tx = graphDb.beginTx()) {
+            Node t = graphDb.findNode(Const.LABEL_NODE, Const.PROP_UNIQUE, "3");
+            assertEquals(new MinimalSourceSet(placeholder), MinimalSourceSetCodec.read(t, Const.PROP_MSS));
+            assertEquals(new MinimalSourceSet(0, 1, 2), new DecompositionFinder().find(t));
+        }
+
+        HypergraphDatabase.close();
+    }
+
+    @Test
+    public void testMaintainerNodeDecomposed() throws Exception {
+        GraphDatabaseService graphDb = HypergraphDatabase.init("db/test");
+        Importer importer = new SimpleImporter("input/example-1.txt");
+        MinimalSourceSetMaintainer maintainer = new MinimalSourceSetMaintainer();
+
+        importer.run();
+        new NodeDecompositionBuilder(1).run();
+
+        Node v;
+        try (Transaction tx = graphDb.beginTx()) {
+            v = graphDb.findNode(Const.LABEL_NODE, Const.PROP_UNIQUE, "6");
+        }
+
+        // proxy nodes are not maintained, the graph is left unchanged
+        try {
+            maintainer.removeStartable(v);
+            fail("node decomposed index maintained");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        try (Transaction tx = graphDb.beginTx()) {
+            assertTrue(v.hasLabel(Const.LABEL_STARTABLE));
+        }
+
+        HypergraphDatabase.close();
+    }
+
+    @Test
+    public void testMaintainerStartable() throws Exception {
+        GraphDatabaseService graphDb = HypergraphDatabase.init("db/test");
+        Importer importer = new SimpleImporter("input/example-1.txt");
+        MinimalSourceSetBuilder builder = new NaiveBuilder();
+        MinimalSourceSetMaintainer maintainer = new MinimalSourceSetMaintainer();
+
+        importer.run();
+        builder.run();
+
+        // 4 is only reachable from 6
+        Node v;
+        try (Transaction tx = graphDb.beginTx()) {
+            v = graphDb.findNode(Const.LABEL_NODE, Const.PROP_UNIQUE, "6");
+        }
+        maintainer.removeStartable(v);
+
+        try (Transaction tx = graphDb.beginTx()) {
+            Node t = graphDb.findNode(Const.LABEL_NODE, Const.PROP_UNIQUE, "5");
+            assertFalse(t.hasProperty(Const.PROP_MSS));
+        }
+
+        maintainer.addStartable(v);
+
+        try (Transaction tx = graphDb.beginTx()) {
+            Node t = graphDb.findNode(Const.LABEL_NODE, Const.PROP_UNIQUE, "5");
+            assertEquals(new MinimalSourceSet(0, 1, 6), MinimalSourceSetCodec.read(t, Const.PROP_MSS));
+        }
+
+        HypergraphDatabase.close();
+    }
+
+    @Test
+    public void testReconstructionCache() throws Exception {
+        GraphDatabaseService graphDb = HypergraphDatabase.init("db/test");
+        Importer importer = new SimpleImporter("input/example-1.txt");
+        ReconstructionCache cache = ReconstructionCache.getInstance();
+
+        importer.run();
+        new DecompositionBuilder(1).run();
+        cache.resetStatistic();
+
+        try (Transaction tx = graphDb.beginTx()) {
+            Node t = graphDb.findNode(Const.LABEL_NODE, Const.PROP_UNIQUE, "5");
+            assertEquals(new MinimalSourceSet(0, 1, 6), new DecompositionFinder().find(t));
+            assertEquals(new MinimalSourceSet(0, 1, 6), new DecompositionFinder().find(t));
+        }
+        assertEquals(1, cache.getHitCount());
+
+        // rebuilding the index drops cached results
+        new NaiveBuilder().run();
+        assertEquals(0, cache.size());
+
+        HypergraphDatabase.close();
+    }
+
+    @Test
+    public void testMinimumSearch() throws Exception {
+        GraphDatabaseService graphDb = HypergraphDatabase.init("db/test");
+        Importer importer = new SimpleImporter("input/example-1.txt");
+
+        importer.run();
+        new FastDecompositionBuilder(1).run();
+
+        try (Transaction tx = graphDb.beginTx()) {
+            Node t = graphDb.findNode(Const.LABEL_NODE, Const.PROP_UNIQUE, "5");
+            MinimumSearchResult result = new FastDecompositionFinder().searchMinimum(t);
+            assertTrue(result.isOptimal());
+            assertEquals(3, result.getLowerBound());
+            assertEquals(3, result.getSourceSet().size());
+
+            // out of budget before reconstructing, bounds still hold
+            FastDecompositionFinder finder = new FastDecompositionFinder();
+            finder.setBudget(0, 60 * 1000);
+            result = finder.searchMinimum(t);
+            assertFalse(result.isOptimal());
+            assertTrue(result.getLowerBound() <= 3);
+            try {
+                finder.findMinimum(t);
+                fail("budget exhausted without exception");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        }
+
+        HypergraphDatabase.close();
+    }
+
+    @Test
+    public void testIndexedMinimumSearch() throws Exception {
+        GraphDatabaseService graphDb = HypergraphDatabase.init("db/test");
+        Importer importer = new SimpleImporter("input/example-1.txt");
+
+        importer.run();
+        new NodeDecompositionBuilder(1).run();
+
+        // budgeted and unbudgeted minimum queries read the same index as findMinimal
+        try (Transaction tx = graphDb.beginTx()) {
+            BackwardDiscovery discovery = new IndexedBackwardDiscovery();
+            for (Node v : IteratorUtil.asIterable(graphDb.findNodes(Const.LABEL_NODE))) {
+                Set<Node> target = Collections.singleton(v);
+                MinimumSearchResult result = discovery.findMinimum(target, QueryBudget.unlimited());
+                assertTrue(result.isOptimal());
+
+                int minimum = Integer.MAX_VALUE;
+                for (Set<Long> s : discovery.findMinimal(target).getSourceSets())
+                    minimum = Math.min(minimum, s.size());
+                assertEquals(minimum, result.getLowerBound());
+                assertEquals(discovery.findMinimum(target), result.getSourceSet() == null ? new HashSet<>() : result.getSourceSet());
+            }
+
+            Set<Node> target = Collections.singleton(graphDb.findNode(Const.LABEL_NODE, Const.PROP_UNIQUE, "5"));
+            MinimumSearchResult result = discovery.findMinimum(target, QueryBudget.ofOperations(0));
+            assertFalse(result.isOptimal());
+            assertTrue(result.getLowerBound() <= 3);
+            assertFalse(discovery.findMinimal(target, QueryBudget.ofOperations(0)).isComplete());
+        }
+
+        HypergraphDatabase.close();
+    }
+
+    @Test
+    public void testMinimumSearchDiamond() throws Exception {
+        GraphDatabaseService graphDb = HypergraphDatabase.init("db/test");
+        Importer importer = new SimpleImporter("input/example-3.txt");
+
+        importer.run();
+        new FastDecompositionBuilder(1).run();
+
+        // MSS(11) = {h9, h10}, every source set of h10 = 9,8 -> 10 contains h9 = 6,7 -> 9
+        // h9 has fewer source sets and is replaced first, h10 still brings it in without a cycle
+        try (Transaction tx = graphDb.beginTx()) {
+            Node t = graphDb.findNode(Const.LABEL_NODE, Const.PROP_UNIQUE, "11");
+            assertEquals(2, MinimalSourceSetCodec.read(t, Const.PROP_MSS).getSourceSets().iterator().next().size());
+
+            MinimumSearchResult result = new FastDecompositionFinder().searchMinimum(t);
+            assertTrue(result.isOptimal());
+            assertEquals(3, result.getLowerBound());
+            assertTrue(new DecompositionFinder().find(t).getSourceSets().contains(result.getSourceSet()));
+        }
+
+        HypergraphDatabase.close();
+    }
+
+    @Test
+    public void testMinimumSearchStartableProxy() throws Exception {
+        GraphDatabaseService graphDb = HypergraphDatabase.init("db/test");
+        Importer importer = new SimpleImporter("input/example-4.txt");
+
+        importer.run();
+        new NodeDecompositionBuilder(1).run();
+
+        // 3 is startable and decomposed, its proxy MSS {3}, {0,1}, {0,2} has 3 itself as a source
+        try (Transaction tx = graphDb.beginTx()) {
+            Node v = graphDb.findNode(Const.LABEL_NODE, Const.PROP_UNIQUE, "3");
+            Node t = graphDb.findNode(Const.LABEL_NODE, Const.PROP_UNIQUE, "4");
+            assertTrue(HypergraphDatabase.getDecomposedIdSet().contains(v.getId()));
+
+            MinimumSearchResult result = new FastDecompositionFinder().searchMinimum(t);
+            assertTrue(result.isOptimal());
+            assertEquals(Collections.singleton(v.getId()), result.getSourceSet());
+        }
+
+        HypergraphDatabase.close();
+    }
+
+    @Test
+    public void testNodeDecompositionFinder() throws Exception {
+        GraphDatabaseService graphDb = HypergraphDatabase.init("db/test");
+        Importer importer = new SimpleImporter("input/example-4.txt");
+
+        importer.run();
+        new NodeDecompositionBuilder(1).run();
+
+        // 3 is reconstructed from its proxy MSS and stays as a source
+        try (Transaction tx = graphDb.beginTx()) {
+            long[] ids = new long[4];
+            for (int i = 0; i < ids.length; i++)
+                ids[i] = graphDb.findNode(Const.LABEL_NODE, Const.PROP_UNIQUE, String.valueOf(i)).getId();
+            Node t = graphDb.findNode(Const.LABEL_NODE, Const.PROP_UNIQUE, "4");
+
+            MinimalSourceSet expected = new MinimalSourceSet();
+            expected.add(ids[3]);
+            expected.add(new HashSet<>(Arrays.asList(ids[0], ids[1])));
+            expected.add(new HashSet<>(Arrays.asList(ids[0], ids[2])));
+            assertEquals(expected, new IndexedBackwardDiscovery().findMinimal(t));
+        }
+
+        HypergraphDatabase.close();
+    }
+
+    @Test
+    public void testCheckpointResume() throws Exception {
+        GraphDatabaseService graphDb = HypergraphDatabase.init("db/test");
+        Importer importer = new SimpleImporter("input/example-1.txt");
+        File checkpoint = new File("db/test-checkpoint");
+        checkpoint.delete();
+
+        importer.run();
+        new FastDecompositionBuilder(1).run();
+        Map<Long, MinimalSourceSet> expected = readMinimalSourceSets(graphDb);
+        int numHypernodes = HypergraphDatabase.getHypergraphSnapshot().numHypernodes();
+
+        // interrupted after a few hyperedges, with a checkpoint before every node
+        FastDecompositionBuilder builder = new FastDecompositionBuilder(1);
+        builder.setCheckpoint(checkpoint.getPath(), 0);
+        builder.setDecompositionPolicy(new InterruptingPolicy(1, numHypernodes + 1));
+        try {
+            builder.run();
+            fail("build not interrupted");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertTrue(checkpoint.exists());
+
+        // resumed build writes the same MSSs and removes the checkpoint
+        builder = new FastDecompositionBuilder(1);
+        builder.setCheckpoint(checkpoint.getPath(), 0);
+        builder.run();
+        assertEquals(expected, readMinimalSourceSets(graphDb));
+        assertFalse(checkpoint.exists());
+
+        // a checkpoint of another policy is not resumed
+        builder = new FastDecompositionBuilder(1);
+        builder.setCheckpoint(checkpoint.getPath(), 0);
+        builder.setDecompositionPolicy(new InterruptingPolicy(1, numHypernodes + 1));
+        try {
+            builder.run();
+            fail("build not interrupted");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        builder = new FastDecompositionBuilder(Integer.MAX_VALUE);
+        builder.setCheckpoint(checkpoint.getPath(), 0);
+        builder.run();
+        Map<Long, MinimalSourceSet> resumed = readMinimalSourceSets(graphDb);
+        new FastDecompositionBuilder(Integer.MAX_VALUE).run();
+        assertEquals(readMinimalSourceSets(graphDb), resumed);
+
+        checkpoint.delete();
+        HypergraphDatabase.close();
+    }
+
+    /**
+     * Fixed limit, throws after a number of limit calls
+     */
+    private static class InterruptingPolicy extends FixedDecompositionPolicy {
+        private int calls;
+
+        InterruptingPolicy(int maxMSS, int calls) {
+            super(maxMSS);
+            this.calls = calls;
+        }
+
+        @Override
+        public int limit(int hypernode) {
+            if (--calls < 0)
+                throw new IllegalStateException("interrupted");
+            return super.limit(hypernode);
+        }
+    }
+
+    private static Map<Long, MinimalSourceSet> readMinimalSourceSets(GraphDatabaseService graphDb) {
+        Map<Long, MinimalSourceSet> mssMap = new HashMap<>();
+        try (Transaction tx = graphDb.beginTx()) {
+            for (Node v : IteratorUtil.asIterable(graphDb.findNodes(Const.LABEL_NODE))) {
+                mssMap.put(v.getId(), MinimalSourceSetCodec.read(v, Const.PROP_MSS));
+            }
+        }
+        return mssMap;
+    }
+
+    @Test
+    public void testAdaptiveDecompositionPolicy() throws Exception {
+        GraphDatabaseService graphDb = HypergraphDatabase.init("db/test");
+        Importer importer = new SimpleImporter("input/example-1.txt");
+
+        importer.run();
+
+        long id3, id5;
+        try (Transaction tx = graphDb.beginTx()) {
+            id3 = graphDb.findNode(Const.LABEL_NODE, Const.PROP_UNIQUE, "3").getId();
+            id5 = graphDb.findNode(Const.LABEL_NODE, Const.PROP_UNIQUE, "5").getId();
+        }
+        HypergraphSnapshot snapshot = HypergraphDatabase.getHypergraphSnapshot();
+        int to3 = hyperedgeTo(snapshot, id3);
+        int to5 = hyperedgeTo(snapshot, id5);
+
+        // fan-out only : 0,1,2 -> 3 feeds 2 targets, 3,4 -> 5 feeds 1 (mean 1.75)
+        AdaptiveDecompositionPolicy policy = new AdaptiveDecompositionPolicy(8);
+        policy.init(snapshot);
+        assertEquals(7, policy.limit(to3));
+        assertEquals(11, policy.limit(to5));
+        assertEquals(16, policy.nodeLimit(snapshot.toNode(id5)));
+
+        // queried nodes keep their hyperedges materialized longer
+        for (int i = 0; i < 3; i++) {
+            policy.recordQuery(id5);
+        }
+        policy.init(snapshot);
+        assertEquals(4, policy.limit(to3));
+        assertEquals(25, policy.limit(to5));
+        assertEquals(45, policy.nodeLimit(snapshot.toNode(id5)));
+
+        // build with the query counts of the graph, finders record queries
+        policy = new AdaptiveDecompositionPolicy(8, HypergraphDatabase.getQueryFrequency());
+        FastDecompositionBuilder builder = new FastDecompositionBuilder();
+        builder.setDecompositionPolicy(policy);
+        builder.run();
+        policy.save(graphDb);
+
+        try (Transaction tx = graphDb.beginTx()) {
+            Node t = graphDb.getNodeById(id5);
+            assertEquals(new MinimalSourceSet(0, 1, 6), new DecompositionFinder().find(t));
+        }
+        assertEquals(1, HypergraphDatabase.getQueryFrequency().get(id5));
+
+        // base and counts are persisted
+        HypergraphDatabase.close();
+        graphDb = HypergraphDatabase.open("db/test");
+        policy = AdaptiveDecompositionPolicy.load(graphDb);
+        assertNotNull(policy);
+        assertEquals(8, policy.getBase());
+        assertEquals(Collections.singletonMap(id5, 1L), policy.getQueryFrequency());
+
+        HypergraphDatabase.close();
+    }
+
+    // dense id of the hyperedge with target node id
+    private static int hyperedgeTo(HypergraphSnapshot snapshot, long nodeId) {
+        int v = snapshot.toNode(nodeId);
+        for (int h = 0; h < snapshot.numHypernodes(); h++) {
+            for (int j = snapshot.targetBegin(h); j < snapshot.targetEnd(h); j++) {
+                if (snapshot.target(j) == v)
+                    return h;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void testRedundantHyperedgePruner() throws Exception {
+        GraphDatabaseService graphDb = HypergraphDatabase.init("db/test");
+        Importer importer = new SimpleImporter("input/example-1.txt");
+        MinimalSourceSetMaintainer maintainer = new MinimalSourceSetMaintainer();
+
+        importer.run();
+        new NaiveBuilder().run();
+
+        // 0,6 -> 4 is dominated by 6 -> 4
+        Node s0, s6, t4;
+        Hyperedge dominating = null;
+        try (Transaction tx = graphDb.beginTx()) {
+            s0 = graphDb.findNode(Const.LABEL_NODE, Const.PROP_UNIQUE, "0");
+            s6 = graphDb.findNode(Const.LABEL_NODE, Const.PROP_UNIQUE, "6");
+            t4 = graphDb.findNode(Const.LABEL_NODE, Const.PROP_UNIQUE, "4");
+            for (Hyperedge e : Hyperedge.getHyperedgesFrom(Collections.singleton(s6))) {
+                if (e.getTarget().contains(t4))
+                    dominating = e;
+            }
+            assertNotNull(dominating);
+        }
+        maintainer.insert(new Hyperedge(new HashSet<>(Arrays.asList(s0, s6)), t4));
+
+        assertEquals(1, new RedundantHyperedgePruner().run());
+        new NaiveBuilder().run();
+
+        try (Transaction tx = graphDb.beginTx()) {
+            Node t = graphDb.findNode(Const.LABEL_NODE, Const.PROP_UNIQUE, "5");
+            assertEquals(new MinimalSourceSet(0, 1, 6), MinimalSourceSetCodec.read(t, Const.PROP_MSS));
+        }
+
+        // without 6 -> 4, the dominated hyperedge is necessary
+        maintainer.remove(dominating);
+
+        try (Transaction tx = graphDb.beginTx()) {
+            assertEquals(new MinimalSourceSet(0, 6), MinimalSourceSetCodec.read(t4, Const.PROP_MSS));
+        }
+        assertEquals(0, HypergraphDatabase.getHypergraphSnapshot().numRedundant());
+
+        HypergraphDatabase.close();
+    }
+
     @Test
     public void testKegg() throws Exception {
 
@@ -1,8 +1,17 @@
 import hypergraph.mss.MinimalSourceSet;
+import hypergraph.mss.MinimalSourceSetCodec;
+import hypergraph.mss.MinimalSourceSetExpression;
+import hypergraph.mss.SpillingMinimalSourceSetMap;
 import hypergraph.util.Log;
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
 import static org.junit.Assert.*;
@@ -62,6 +71,244 @@ public class MinimalSourceSetTest {
         assertTrue(cartesian.cardinality() == 0);
     }
 
+    @Test
+    public void testValueOf() throws Exception {
+        MinimalSourceSet mss = new MinimalSourceSet();
+        mss.add(constructSourceSet(12, 3, 7));
+        mss.add(constructSourceSet(5));
+
+        MinimalSourceSet parsed = MinimalSourceSet.valueOf(mss.toString());
+        assertTrue(parsed.equals(mss));
+        assertTrue(parsed.contains(constructSourceSet(3, 7, 12)));
+
+        // empty mss is stored as an empty string
+        assertTrue(MinimalSourceSet.valueOf("").cardinality() == 0);
+    }
+
+    @Test
+    public void testAddWithIndex() throws Exception {
+        // enough source sets to use subset index
+        MinimalSourceSet mss = new MinimalSourceSet();
+        for (int i = 0; i < 100; i++) {
+            mss.add(constructSourceSet(i, i + 100));
+        }
+        assertTrue(mss.cardinality() == 100);
+
+        // superset is rejected, subset replaces supersets
+        assertFalse(mss.add(constructSourceSet(1, 101, 7)));
+        assertTrue(mss.add(constructSourceSet(150)));
+        assertTrue(mss.cardinality() == 100);
+        assertFalse(mss.contains(constructSourceSet(50, 150)));
+        assertTrue(mss.contains(constructSourceSet(150)));
+        assertTrue(mss.contains(constructSourceSet(49, 149)));
+    }
+
+    @Test
+    public void testCompactOnRemove() throws Exception {
+        MinimalSourceSet mss = new MinimalSourceSet();
+        for (int i = 0; i < 100; i++) {
+            mss.add(constructSourceSet(i, i + 100));
+        }
+
+        // removed sets leave no gap, others keep their order and index slots
+        assertTrue(mss.add(constructSourceSet(120)));
+        assertTrue(mss.add(constructSourceSet(110)));
+        assertTrue(mss.add(constructSourceSet(3)));
+        int n = 0;
+        long last = -1;
+        for (Set<Long> s : mss.getSourceSets()) {
+            if (s.size() == 2) {
+                assertTrue(Collections.min(s) > last);
+                last = Collections.min(s);
+            }
+            n++;
+        }
+        assertEquals(100, n);
+        assertEquals(n, mss.cardinality());
+
+        assertFalse(mss.add(constructSourceSet(50, 150, 7)));
+        assertFalse(mss.add(constructSourceSet(3, 8)));
+        assertTrue(mss.contains(constructSourceSet(99, 199)));
+        assertTrue(mss.add(constructSourceSet(99)));
+        assertFalse(mss.contains(constructSourceSet(99, 199)));
+        assertEquals(new MinimalSourceSet(mss), mss);
+    }
+
+    @Test
+    public void testCodec() throws Exception {
+        MinimalSourceSet mss = new MinimalSourceSet();
+        mss.add(constructSourceSet(1000000, 3, 7));
+        mss.add(constructSourceSet(5));
+
+        byte[] encoded = MinimalSourceSetCodec.encode(mss);
+        assertTrue(MinimalSourceSetCodec.decode(encoded).equals(mss));
+
+        // old string format is still readable
+        assertTrue(MinimalSourceSetCodec.decode((Object) mss.toString()).equals(mss));
+        assertTrue(MinimalSourceSetCodec.decode((Object) null).cardinality() == 0);
+    }
+
+    @Test
+    public void testCartesianSmallest() throws Exception {
+        MinimalSourceSet mss1 = new MinimalSourceSet();
+        mss1.add(constructSourceSet(1, 2, 3));
+        mss1.add(constructSourceSet(4));
+        mss1.add(constructSourceSet(5, 6));
+
+        MinimalSourceSet mss2 = new MinimalSourceSet();
+        mss2.add(constructSourceSet(1, 2));
+        mss2.add(constructSourceSet(7, 8, 9));
+
+        // full product: {1,2,3}, {1,2,4}, {1,2,5,6}, {4,7,8,9}, ...
+        MinimalSourceSet min = mss1.cartesianSmallest(mss2, 2);
+        assertTrue(min.cardinality() == 2);
+        assertTrue(min.contains(constructSourceSet(1, 2, 3)));
+        assertTrue(min.contains(constructSourceSet(1, 2, 4)));
+
+        MinimalSourceSet union = mss1.unionSmallest(mss2, 2);
+        assertTrue(union.contains(constructSourceSet(4)));
+        assertTrue(union.cardinality() == 2);
+    }
+
+    @Test
+    public void testExpression() throws Exception {
+        MinimalSourceSet mss1 = new MinimalSourceSet();
+        mss1.add(constructSourceSet(1, 2, 3));
+        mss1.add(constructSourceSet(4));
+
+        MinimalSourceSet mss2 = new MinimalSourceSet();
+        mss2.add(constructSourceSet(1, 2));
+        mss2.add(constructSourceSet(7, 8, 9));
+
+        MinimalSourceSetExpression product = MinimalSourceSetExpression.cartesian(
+                MinimalSourceSetExpression.leaf(mss1), MinimalSourceSetExpression.leaf(mss2));
+        assertFalse(product.isEmpty());
+        assertTrue(product.materialize().equals(mss1.cartesian(mss2)));
+
+        // streamed in size order
+        int size = 0;
+        for (Set<Long> s : product) {
+            assertTrue(s.size() >= size);
+            size = s.size();
+        }
+
+        // empty leaf makes the product empty
+        MinimalSourceSetExpression empty = MinimalSourceSetExpression.cartesian(
+                product, MinimalSourceSetExpression.leaf(new MinimalSourceSet()));
+        assertTrue(empty.isEmpty());
+        assertFalse(empty.iterator().hasNext());
+    }
+
+    @Test
+    public void testCartesianBounds() throws Exception {
+        // no shared ids : every union stays minimal, lower bound is exact
+        MinimalSourceSet mss1 = new MinimalSourceSet();
+        mss1.add(constructSourceSet(1));
+        mss1.add(constructSourceSet(2, 3));
+        mss1.add(constructSourceSet(4));
+        MinimalSourceSet mss2 = new MinimalSourceSet();
+        mss2.add(constructSourceSet(5));
+        mss2.add(constructSourceSet(6, 7));
+
+        List<MinimalSourceSet> families = Arrays.asList(mss1, mss2);
+        long[] bounds = MinimalSourceSet.cartesianBounds(families);
+        assertTrue(bounds[0] == 6 && bounds[1] == 6);
+        assertTrue(mss1.cartesian(mss2).cardinality() == 6);
+        assertTrue(MinimalSourceSet.exceedsLimit(families, 5));
+        assertFalse(MinimalSourceSet.exceedsLimit(families, 6));
+
+        // shared id 1 : {1, 2} and {1} are not private, {1, 2, 4} is absorbed by {1, 2}
+        mss1 = new MinimalSourceSet();
+        mss1.add(constructSourceSet(1, 2));
+        mss1.add(constructSourceSet(3));
+        mss2 = new MinimalSourceSet();
+        mss2.add(constructSourceSet(1));
+        mss2.add(constructSourceSet(4));
+
+        families = Arrays.asList(mss1, mss2);
+        bounds = MinimalSourceSet.cartesianBounds(families);
+        assertTrue(bounds[0] == 1 && bounds[1] == 4);
+        assertTrue(mss1.cartesian(mss2).cardinality() == 3);
+        // product may fit, so it is not skipped
+        assertFalse(MinimalSourceSet.exceedsLimit(families, 2));
+
+        // random families over a small id range, with and without shared ids
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            int range = round % 2 == 0 ? 8 : 64;
+            MinimalSourceSet[] random3 = new MinimalSourceSet[3];
+            for (int i = 0; i < random3.length; i++) {
+                random3[i] = new MinimalSourceSet();
+                int count = 1 + random.nextInt(4);
+                for (int j = 0; j < count; j++) {
+                    Set<Long> s = new HashSet<>();
+                    int size = 1 + random.nextInt(3);
+                    for (int k = 0; k < size; k++) {
+                        s.add((long) (round % 2 == 0 ? random.nextInt(range) : i * range + random.nextInt(range)));
+                    }
+                    random3[i].add(s);
+                }
+            }
+
+            families = Arrays.asList(random3);
+            bounds = MinimalSourceSet.cartesianBounds(families);
+            int actual = random3[0].cartesian(random3[1]).cartesian(random3[2]).cardinality();
+            assertTrue(bounds[0] <= actual && actual <= bounds[1]);
+            if (round % 2 == 1)
+                assertTrue(bounds[0] == actual);
+            // never skips a product which fits
+            assertFalse(MinimalSourceSet.exceedsLimit(families, actual));
+            if (bounds[0] > 0)
+                assertTrue(MinimalSourceSet.exceedsLimit(families, (int) bounds[0] - 1));
+        }
+    }
+
+    @Test
+    public void testSpillingMap() throws Exception {
+        // budget of a few MSSs, compact as soon as garbage exceeds live bytes
+        SpillingMinimalSourceSetMap map = new SpillingMinimalSourceSetMap(2048, 0);
+        Map<Long, MinimalSourceSet> expected = new HashMap<>();
+        Random random = new Random(7);
+        try {
+            for (long id = 0; id < 100; id++) {
+                MinimalSourceSet mss = new MinimalSourceSet();
+                mss.add(constructSourceSet(id));
+                map.put(id, mss);
+                expected.put(id, new MinimalSourceSet(mss));
+            }
+            assertTrue(map.getSpilledCount() > 0);
+
+            // modify in place right after get, faulted values are spilled again
+            for (int i = 0; i < 2000; i++) {
+                long id = random.nextInt(100);
+                Set<Long> s = constructSourceSet(1000 + random.nextInt(1000), 1000 + random.nextInt(1000));
+                map.get(id).add(s);
+                expected.get(id).add(s);
+            }
+            assertTrue(map.getCompactCount() > 0);
+            assertTrue(map.size() == expected.size());
+            for (Map.Entry<Long, MinimalSourceSet> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), map.get(entry.getKey()));
+            }
+            assertEquals(expected, new HashMap<>(map));
+        } finally {
+            map.close();
+        }
+
+        // growth of every returned value is counted on the next access
+        map = new SpillingMinimalSourceSetMap(Long.MAX_VALUE);
+        map.put(1L, new MinimalSourceSet());
+        map.put(2L, new MinimalSourceSet());
+        long empty = map.getResidentBytes();
+        for (Map.Entry<Long, MinimalSourceSet> entry : map.entrySet()) {
+            entry.getValue().add(constructSourceSet(entry.getKey(), 10, 11));
+        }
+        assertFalse(map.containsKey(3L));
+        map.get(1L);
+        assertTrue(map.getResidentBytes() == empty + 2 * (16 + 8 + 8 * 3));
+        map.close();
+    }
+
     private Set<Long> constructSourceSet(Number... ids) {
         Set<Long> sourceSet = new HashSet<>();
         for (Number id : ids) {
@@ -69,4 +316,4 @@ public class MinimalSourceSetTest {
         }
         return sourceSet;
     }
-}
\ No newline at end of file
+}
\ No newline at end of file